@@ -20,6 +20,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
 
 /**
  * Partial implementation of a Source that is backed by an InputStream of some description.
@@ -28,6 +31,11 @@ import java.io.Reader;
  */
 public abstract class AbstractSource implements Source {
   
+  /**
+   * Source files are always read as UTF-8, regardless of the platform default.
+   */
+  private static final Charset CHARSET = Charset.forName ("UTF-8");
+  
   private final String _displayName;
   
   private final SourceResolver _resolver;
@@ -54,9 +62,46 @@ public abstract class AbstractSource implements Source {
   
   protected abstract InputStream openInputStream () throws IOException;
   
+  /**
+   * Returns the number of bytes {@link #openInputStream} will deliver, or -1 if not known.
+   */
+  protected long getContentLength () {
+    return -1;
+  }
+  
   @Override
   public Reader openReader () throws IOException {
-      return new InputStreamReader (new BufferedInputStream (openInputStream ()));
+      return new InputStreamReader (new BufferedInputStream (openInputStream ()), CHARSET);
+  }
+  
+  /**
+   * Reads the whole source into memory and decodes it. When the length is known up front the bytes are read into a
+   * buffer of exactly that size, so the content is copied once from the stream and once by the decoder.
+   */
+  public CharBuffer readContents () throws IOException {
+    final long length = getContentLength ();
+    byte[] buffer = new byte[((length >= 0) && (length < Integer.MAX_VALUE)) ? (int)length : 4096];
+    int count = 0;
+    final InputStream in = openInputStream ();
+    try {
+      for (;;) {
+        if (count == buffer.length) {
+          // full; only grow the buffer if the stream really has more to give
+          final int b = in.read ();
+          if (b < 0) break;
+          final byte[] newBuffer = new byte[Math.max (count * 2, 4096)];
+          System.arraycopy (buffer, 0, newBuffer, 0, count);
+          newBuffer[count++] = (byte)b;
+          buffer = newBuffer;
+        }
+        final int n = in.read (buffer, count, buffer.length - count);
+        if (n < 0) break;
+        count += n;
+      }
+    } finally {
+      in.close ();
+    }
+    return CHARSET.decode (ByteBuffer.wrap (buffer, 0, count));
   }
   
   @Override
@@ -16,9 +16,12 @@
 package org.fudgemsg.proto;
 
 import java.io.IOException;
+import java.nio.CharBuffer;
 import java.util.List;
 
 import org.antlr.runtime.ANTLRReaderStream;
+import org.antlr.runtime.ANTLRStringStream;
+import org.antlr.runtime.CharStream;
 import org.antlr.runtime.CommonTokenStream;
 import org.antlr.runtime.RecognitionException;
 import org.fudgemsg.proto.antlr.ProtoLexer;
@@ -54,47 +57,25 @@ import org.fudgemsg.proto.antlr.ProtoParser;
     }
   }
 
-  /**
-   * Ideally the lexer should discard leading $ symbols on identifiers. I couldn't work out how
-   * to do that so we have this initial fixup pass. Someone with more ANTLR know-how should fix
-   * this properly in the grammar file.
-   */
-  private AST fixIdentifiers(AST node) {
-    if (node.getNodeLabel() == ProtoLexer.IDENTIFIER) {
-      if (node.getNodeValue().charAt(0) == '$') {
-        node = new ASTNode(node, node.getNodeValue().substring(1));
-      }
-    }
-    final List<AST> children = node.getChildNodes();
-    boolean changed = false;
-    if (children != null) {
-      for (int i = 0; i < children.size(); i++) {
-        final AST child = children.get(i);
-        final AST newChild = fixIdentifiers(child);
-        if (newChild != child) {
-          children.set(i, newChild);
-          changed = true;
-        }
-      }
-    }
-    if (changed) {
-      node = new ASTNode(node, children);
-    }
-    return node;
-  }
-
   @Override
   public void parseSource (final Compiler.Context context, final Source source) {
     try {
       
       // Setup the ANTLR parser
-      final ANTLRReaderStream input = new ANTLRReaderStream (source.openReader ());
+      final CharStream input;
+      if (source instanceof AbstractSource) {
+        // Decoded straight into the array the lexer will work from, saving the reader's buffering and copy
+        final CharBuffer contents = ((AbstractSource)source).readContents ();
+        input = new ANTLRStringStream (contents.array (), contents.remaining ());
+      } else {
+        input = new ANTLRReaderStream (source.openReader ());
+      }
       final ProtoLexer lexer = new ProtoLexer (context, source, input);
       final CommonTokenStream tokens = new CommonTokenStream (lexer);
       final ProtoParser parser = new ProtoParser (context, source, tokens);
       
       // Parse the root node
-      final AST root = fixIdentifiers((AST) parser.root().getTree());
+      final AST root = (AST) parser.root().getTree();
 
       //System.out.println (source);
       //debug_print_tree(root, "");
@@ -17,6 +17,13 @@
 package org.fudgemsg.proto;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Helper class for functions common to 2 or more of the code generator implementations.
@@ -60,5 +67,145 @@ public class CodeGeneratorUtil {
     }
     return file;
   }
+  
+  /**
+   * Ordinal of the class header fields that hold type identifiers. The class names are at ordinal 0, but an integer
+   * there is read by the Fudge serialization framework as a reference back to an earlier class header, so the
+   * identifiers are kept apart from them. A message written with identifiers can't have a field of its own at this
+   * ordinal.
+   */
+  public static final int TYPE_ID_ORDINAL = -1;
+  
+  private static final String MESSAGE_INDEX = CodeGeneratorUtil.class.getName () + ".messageIndex";
+  
+  /**
+   * The subclasses and type identifiers of the messages known to the compiler, worked out once for a compilation
+   * instead of searching all of the definitions for each message that needs them.
+   */
+  private static final class MessageIndex {
+    
+    private final int _definitionCount;
+    
+    private final Map<MessageDefinition,List<MessageDefinition>> _subclasses = new HashMap<MessageDefinition,List<MessageDefinition>> ();
+    
+    private final Map<MessageDefinition,Integer> _typeIds = new HashMap<MessageDefinition,Integer> ();
+    
+    private final Map<MessageDefinition,String> _collisions = new HashMap<MessageDefinition,String> ();
+    
+    private MessageIndex (final Compiler.Context context) {
+      _definitionCount = context.getDefinitionCount ();
+      final Map<String,MessageDefinition> messages = new TreeMap<String,MessageDefinition> ();
+      for (Definition definition : context.getDefinitions ()) {
+        if (definition instanceof MessageDefinition) {
+          messages.put (definition.getIdentifier (), (MessageDefinition)definition);
+        }
+      }
+      // subclasses are added in identifier order, so each list is ordered by identifier
+      for (MessageDefinition message : messages.values ()) {
+        for (MessageDefinition parent = message.getExtends (); parent != null; parent = parent.getExtends ()) {
+          List<MessageDefinition> subclasses = _subclasses.get (parent);
+          if (subclasses == null) {
+            _subclasses.put (parent, subclasses = new ArrayList<MessageDefinition> ());
+          }
+          subclasses.add (message);
+        }
+      }
+      final TypeIdRegistry registry = context.getTypeIdRegistry ();
+      final Map<Integer,String> used = new HashMap<Integer,String> ();
+      if (registry != null) {
+        // messages with a recorded identifier take it first, so the new ones can avoid them
+        for (MessageDefinition message : messages.values ()) {
+          final Integer typeId = registry.getTypeId (message.getIdentifier ());
+          if (typeId != null) {
+            _typeIds.put (message, typeId);
+            used.put (typeId, message.getIdentifier ());
+          }
+        }
+      }
+      for (MessageDefinition message : messages.values ()) {
+        if (_typeIds.containsKey (message)) continue;
+        int typeId = message.getIdentifier ().hashCode ();
+        if (registry != null) {
+          // the registry is the only record of where a moved identifier ended up, so a collision can be resolved
+          while ((used.get (typeId) != null) || (registry.getIdentifier (typeId) != null)) {
+            typeId++;
+          }
+        } else if (used.get (typeId) != null) {
+          _collisions.put (message, used.get (typeId));
+        }
+        _typeIds.put (message, typeId);
+        used.put (typeId, message.getIdentifier ());
+      }
+    }
+    
+  }
+  
+  private static MessageIndex getMessageIndex (final Compiler.Context context) {
+    MessageIndex index = context.getUserState (MESSAGE_INDEX);
+    if ((index == null) || (index._definitionCount != context.getDefinitionCount ())) {
+      context.setUserState (MESSAGE_INDEX, index = new MessageIndex (context));
+    }
+    return index;
+  }
+  
+  /**
+   * Returns the integer written to a message's class header in place of the class name when compact headers are
+   * requested. Without a type identifier registry it is the hash of the fully qualified identifier, which is defined
+   * by {@link String#hashCode}, so the same message gets the same identifier from every compilation and every language
+   * binding. With a registry, the identifier recorded for the message is used; a message that doesn't have one yet is
+   * given its hash, or the next free value if that is taken, and it is recorded.
+   * <p>
+   * A receiver can only map an identifier back to a message that was compiled in the same unit, so a subclass
+   * compiled separately is skipped over and decoded as the nearest class it does know, and a receiver built without
+   * compact headers skips all of them. Messages that may be extended elsewhere should keep their names, through the
+   * language binding where there is one.
+   */
+  public static int getTypeId (final Compiler.Context context, final MessageDefinition message) {
+    final Integer typeId = getMessageIndex (context)._typeIds.get (message);
+    if (typeId == null) {
+      // not a definition known to the compiler
+      return message.getIdentifier ().hashCode ();
+    }
+    final TypeIdRegistry registry = context.getTypeIdRegistry ();
+    if ((registry != null) && (registry.getTypeId (message.getIdentifier ()) == null)) {
+      registry.register (message.getIdentifier (), typeId);
+    }
+    return typeId;
+  }
+  
+  /**
+   * Checks that the type identifier of a message can be used. An error is reported if another known message has the
+   * same one, as a decoder could not tell them apart, or if the message has a field at {@link #TYPE_ID_ORDINAL}.
+   * Without a registry only the messages of the current compilation are known, so a collision with one compiled
+   * separately is not detected.
+   */
+  public static boolean checkTypeId (final Compiler.Context context, final MessageDefinition message) {
+    boolean result = true;
+    final String collision = getMessageIndex (context)._collisions.get (message);
+    if (collision != null) {
+      context.error (message.getCodePosition (), "message '" + message.getIdentifier () + "' has the same type identifier as '"
+          + collision + "'");
+      result = false;
+    }
+    for (MessageDefinition msg = message; msg != null; msg = msg.getExtends ()) {
+      final FieldDefinition field = msg.getFieldDefinition (TYPE_ID_ORDINAL);
+      if (field != null) {
+        context.error (field.getCodePosition (), "ordinal " + TYPE_ID_ORDINAL + " of '" + field.getIdentifier ()
+            + "' is used for the type identifiers of '" + message.getIdentifier () + "'");
+        result = false;
+      }
+    }
+    return result;
+  }
+  
+  /**
+   * Returns the messages known to the compiler that extend the one given, directly or indirectly, ordered by
+   * identifier.
+   */
+  public static Collection<MessageDefinition> getSubclasses (final Compiler.Context context, final MessageDefinition message) {
+    final List<MessageDefinition> subclasses = getMessageIndex (context)._subclasses.get (message);
+    if (subclasses == null) return Collections.emptyList ();
+    return Collections.unmodifiableList (subclasses);
+  }
 
 }
\ No newline at end of file
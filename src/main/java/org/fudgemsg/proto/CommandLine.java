@@ -15,12 +15,18 @@
 
 package org.fudgemsg.proto;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 /**
  * A basic command line compiler.
@@ -37,8 +43,51 @@ public class CommandLine implements Compiler.WarningListener, Compiler.ErrorList
   
   private List<Object> _searchPath = new ArrayList<Object> ();
   
+  /**
+   * The archives opened for this run, keyed on their canonical path so that one named twice is only opened once. They
+   * are closed when the run ends.
+   */
+  private final Map<File, SourceArchive> _archives = new HashMap<File, SourceArchive> ();
+  
   private int _verbosity = 0;
   
+  /**
+   * The results of probing the source folder and each search path element, in search order, keyed on the path of the
+   * .proto file relative to that location. Misses are recorded too, and everything is discarded if the locations change.
+   */
+  private final List<Map<String, Source>> _probed = new ArrayList<Map<String, Source>> ();
+  
+  /**
+   * Previous results of {@link #findSource(String)}, including the misses.
+   */
+  private final Map<String, Source> _resolved = new HashMap<String, Source> ();
+  
+  private final PrintWriter _out = new PrintWriter (new BufferedWriter (new OutputStreamWriter (System.out)), false);
+  
+  private final PrintWriter _err = new PrintWriter (new BufferedWriter (new OutputStreamWriter (System.err)), false);
+  
+  /**
+   * Lines already written for warnings and errors, so that repeats of the same diagnostic are only shown once.
+   */
+  private final Set<String> _reported = new HashSet<String> ();
+  
+  private int _maxWarnings = Integer.MAX_VALUE;
+  
+  private int _maxErrors = Integer.MAX_VALUE;
+  
+  private int _shownWarnings = 0;
+  
+  private int _shownErrors = 0;
+  
+  private int _hiddenWarnings = 0;
+  
+  private int _hiddenErrors = 0;
+  
+  /**
+   * Write messages as tab separated severity, file, line, column and text rather than the human readable form.
+   */
+  private boolean _tabular = false;
+  
   private CommandLine () {
   }
   
@@ -50,7 +99,95 @@ public class CommandLine implements Compiler.WarningListener, Compiler.ErrorList
     (err ? System.err : System.out).println (sb.toString ());
   }
   
+  private String formatMessage (final String pfx, final CodePosition position, final String message) {
+    final StringBuilder sb = new StringBuilder ();
+    if (_tabular) {
+      sb.append (pfx).append ('\t');
+      if (position != null) {
+        if (position.getFile () != null) sb.append (position.getFile ());
+        sb.append ('\t').append (position.getLine ()).append ('\t').append (position.getColumn ());
+      } else {
+        sb.append ("\t\t");
+      }
+      sb.append ('\t').append (message.replace ('\t', ' ').replace ('\n', ' ').replace ('\r', ' '));
+    } else {
+      if (position != null) sb.append (position.toString ()).append (": ");
+      sb.append (pfx).append (": ");
+      sb.append (message);
+    }
+    return sb.toString ();
+  }
+  
+  /**
+   * Writes a diagnostic to the buffered output, unless the limit for its category has been reached or the identical
+   * message has already been written. Nothing is formatted for a message that is over the limit.
+   */
+  private void diagnostic (final boolean error, final CodePosition position, final String message) {
+    if (error ? (_shownErrors >= _maxErrors) : (_shownWarnings >= _maxWarnings)) {
+      if (error) {
+        _hiddenErrors++;
+      } else {
+        _hiddenWarnings++;
+      }
+      return;
+    }
+    final String line = formatMessage (error ? MSG_ERROR : MSG_WARN, position, message);
+    if (!_reported.add (line)) return;
+    if (error) {
+      _shownErrors++;
+    } else {
+      _shownWarnings++;
+    }
+    _err.println (line);
+  }
+  
+  private void flushMessages () {
+    _err.flush ();
+    _out.flush ();
+  }
+  
+  private boolean setMessageLimit (final String str) {
+    final int i = str.indexOf ('=');
+    try {
+      if (i > 0) {
+        final String category = str.substring (0, i);
+        final int limit = Integer.parseInt (str.substring (i + 1));
+        if (limit >= 0) {
+          if (category.equals ("warnings")) {
+            _maxWarnings = limit;
+            return true;
+          } else if (category.equals ("errors")) {
+            _maxErrors = limit;
+            return true;
+          }
+        }
+      }
+    } catch (NumberFormatException e) {
+      // ignore - error will be handled below
+    }
+    compilerError (null, "invalid message limit '" + str + "'");
+    return false;
+  }
+  
+  private boolean setMessageFormat (final String str) {
+    if (str.equals ("text")) {
+      _tabular = false;
+    } else if (str.equals ("tab")) {
+      _tabular = true;
+    } else {
+      compilerError (null, "invalid message format '" + str + "'");
+      return false;
+    }
+    return true;
+  }
+  
+  private void setSourceDir (final File path) {
+    _sourceDir = path;
+    invalidateSourceIndex ();
+  }
+  
   private boolean addSearchDir (final File path) {
+    invalidateSourceIndex ();
     if (path.isDirectory ()) {
       _searchPath.add (path);
       return true;
@@ -61,7 +198,7 @@ public class CommandLine implements Compiler.WarningListener, Compiler.ErrorList
       if (dot > 0) {
         final String ext = name.substring (dot + 1);
         if (ext.equals ("zip") || ext.equals ("war") || ext.equals ("jar")) {
-          _searchPath.add (new ZipFile (path));
+          _searchPath.add (openArchive (path));
           return true;
         }
       }
@@ -72,62 +209,94 @@ public class CommandLine implements Compiler.WarningListener, Compiler.ErrorList
     return false;
   }
   
+  private SourceArchive openArchive (final File path) throws IOException {
+    final File file = path.getCanonicalFile ();
+    SourceArchive archive = _archives.get (file);
+    if (archive == null) {
+      archive = new SourceArchive (file);
+      _archives.put (file, archive);
+    }
+    return archive;
+  }
+  
+  private void closeArchives () {
+    for (SourceArchive archive : _archives.values ()) {
+      try {
+        archive.close ();
+      } catch (IOException e) {
+        // ignore - the compilation has finished with it
+      }
+    }
+    _archives.clear ();
+  }
+  
   @Override
   public void compilerWarning (final CodePosition position, final String message) {
-    compilerMessage (true, MSG_WARN, position, message);
+    diagnostic (false, position, message);
   }
   
   @Override
   public void compilerError (final CodePosition position, final String message) {
-    compilerMessage (true, MSG_ERROR, position, message);
+    diagnostic (true, position, message);
   }
   
-  private Source findSource (final File dir, final String[] identifier, final boolean compilationTarget) throws IOException {
-    final StringBuilder stem = new StringBuilder ();
-    for (int i = 0; i < identifier.length; i++) {
-      if (i > 0) stem.append (File.separatorChar);
-      stem.append (identifier[i]);
-      final int ext = stem.length ();
-      stem.append (".proto");
-      final File f = new File (dir, stem.toString ());
-      // NOTE: jim 21-Mar-2011 -- Changed to make stem use only UNIX style paths in display name so output format regular.
-      if (f.exists ()) return new SourceFile (stem.toString().replace('\\', '/'), f, this, compilationTarget);
-      stem.delete (ext, ext + 6);
+  private void invalidateSourceIndex () {
+    _probed.clear ();
+    _resolved.clear ();
+  }
+  
+  private Source probeSource (final Object location, final String stem, final boolean compilationTarget) throws IOException {
+    if (location instanceof File) {
+      final File f = new File ((File)location, stem.replace ('/', File.separatorChar));
+      if (f.exists ()) return new SourceFile (stem, f, this, compilationTarget);
+    } else if (location instanceof SourceArchive) {
+      final SourceArchive archive = (SourceArchive)location;
+      final ZipEntry entry = archive.getEntries ().get (stem);
+      if (entry != null) return new ZipSourceFile (stem, archive.getZipFile (), entry, this, compilationTarget);
+    } else {
+      throw new IllegalStateException ("unexpected object '" + location + "' in search path");
     }
     return null;
   }
   
-  private Source findSource (final ZipFile zip, final String[] identifier, final boolean compilationTarget) throws IOException {
+  private Source findSource (final int index, final Object location, final String[] identifier, final boolean compilationTarget) throws IOException {
+    while (_probed.size () <= index) {
+      _probed.add (new HashMap<String, Source> ());
+    }
+    final Map<String, Source> probed = _probed.get (index);
     final StringBuilder stem = new StringBuilder ();
     for (int i = 0; i < identifier.length; i++) {
       if (i > 0) stem.append ('/');
       stem.append (identifier[i]);
       final int ext = stem.length ();
       stem.append (".proto");
-      final ZipEntry entry = zip.getEntry (stem.toString ());
-      if (entry != null) {
-        return new ZipSourceFile (stem.toString (), zip, entry, this, compilationTarget);
+      final String path = stem.toString ();
+      Source source = probed.get (path);
+      if ((source == null) && !probed.containsKey (path)) {
+        source = probeSource (location, path, compilationTarget);
+        probed.put (path, source);
       }
+      if (source != null) return source;
       stem.delete (ext, ext + 6);
     }
     return null;
   }
   
+  /**
+   * Resolves an identifier against the source folder and search path. The result, found or not, is remembered so that
+   * repeated lookups from each scope level of each type reference don't touch the file system again.
+   */
   @Override
   public Source findSource (final String identifier) throws IOException {
+    Source source = _resolved.get (identifier);
+    if ((source != null) || _resolved.containsKey (identifier)) return source;
     final String[] identifierAsArray = identifier.split ("\\.");
-    Source source;
-    if ((source = findSource (_sourceDir, identifierAsArray, true)) != null) return source;
-    for (Object elem : _searchPath) {
-      if (elem instanceof File) {
-        if ((source = findSource ((File)elem, identifierAsArray, false)) != null) return source;
-      } else if (elem instanceof ZipFile) {
-        if ((source = findSource ((ZipFile)elem, identifierAsArray, false)) != null) return source;
-      } else {
-        throw new IllegalStateException ("unexpected object '" + elem + "' in search path");
-      }
+    source = findSource (0, _sourceDir, identifierAsArray, true);
+    for (int i = 0; (source == null) && (i < _searchPath.size ()); i++) {
+      source = findSource (i + 1, _searchPath.get (i), identifierAsArray, false);
     }
-    return null;
+    _resolved.put (identifier, source);
+    return source;
   }
   
   private void setVerbosity (final int level) {
@@ -139,9 +308,15 @@ public class CommandLine implements Compiler.WarningListener, Compiler.ErrorList
     return _verbosity;
   }
   
+  /**
+   * Writes a progress message straight away. Any diagnostics buffered before it are written first so that the two
+   * streams keep their original order.
+   */
   @Override
   public void verboseMessage (final String message) {
-    compilerMessage (false, MSG_INFO, null, message);
+    _err.flush ();
+    _out.println (formatMessage (MSG_INFO, null, message));
+    _out.flush ();
   }
   
   private boolean codeGenOption (final Compiler compiler, final String option) {
@@ -186,11 +361,19 @@ public class CommandLine implements Compiler.WarningListener, Compiler.ErrorList
    */
   public static int compile (final String[] args) {
     final CommandLine cmdLine = new CommandLine ();
-    final Compiler compiler = new Compiler ();
+    try {
+      return cmdLine.compile (new Compiler (), args);
+    } finally {
+      cmdLine.closeArchives ();
+      cmdLine.flushMessages ();
+    }
+  }
+  
+  private int compile (final Compiler compiler, final String[] args) {
     final CodeGeneratorFactory codeGeneratorFactory = new CodeGeneratorFactory ();
-    compiler.setWarningListener (cmdLine);
-    compiler.setErrorListener (cmdLine);
-    compiler.setVerboseListener (cmdLine);
+    compiler.setWarningListener (this);
+    compiler.setErrorListener (this);
+    compiler.setVerboseListener (this);
     for (int i = 0; i < args.length; i++) {
       if (args[i].charAt (0) == '-') {
         switch (args[i].charAt (1)) {
@@ -198,7 +381,17 @@ public class CommandLine implements Compiler.WarningListener, Compiler.ErrorList
           compiler.setTargetPath (new File (args[i].substring (2)));
           break;
         case 'f' : // -f<property>    Set a field default property (readonly, mutable, required, optional)
-          if (!cmdLine.fieldDefaultProperty (compiler, args[i].substring (2))) {
+          if (!fieldDefaultProperty (compiler, args[i].substring (2))) {
+            return 1;
+          }
+          break;
+        case 'm' : // -m<format>      Message format (text, or tab for tab separated fields)
+          if (!setMessageFormat (args[i].substring (2))) {
+            return 1;
+          }
+          break;
+        case 'M' : // -M<category>=<n>  Show at most n messages of a category (warnings, errors)
+          if (!setMessageLimit (args[i].substring (2))) {
             return 1;
           }
           break;
@@ -206,54 +399,54 @@ public class CommandLine implements Compiler.WarningListener, Compiler.ErrorList
           compiler.setCodeGenerator(codeGeneratorFactory.createCodeGenerator(args[i].substring(2)));
           break;
         case 's' : // -s<path>        Select a source folder for loading in referenced files
-          cmdLine._sourceDir = new File (args[i].substring (2));
+          setSourceDir (new File (args[i].substring (2)));
           break;
         case 'p' : // -p<path>        Add a source folder for loading additional .proto files from (no code will be generated)
-          if (!cmdLine.addSearchDir (new File (args[i].substring (2)))) {
+          if (!addSearchDir (new File (args[i].substring (2)))) {
             return 1;
           }
           break;
         case 'v' : // -v[v[v]]        Verbosity level
           if (args[i].equals ("-v")) {
-            cmdLine.setVerbosity (1);
+            setVerbosity (1);
           } else if (args[i].equals ("-vv")) {
-            cmdLine.setVerbosity (2);
+            setVerbosity (2);
           } else if (args[i].equals ("-vvv")) {
-            cmdLine.setVerbosity (3);
+            setVerbosity (3);
           } else {
-            cmdLine.compilerError (null, "invalid command line option " + args[i]);
+            compilerError (null, "invalid command line option " + args[i]);
             return 1;
           }
           break;
         case 'X' : // -X<option>[=<value>]  Pass flags to the code generator
-          if (!cmdLine.codeGenOption (compiler, args[i].substring (2))) {
+          if (!codeGenOption (compiler, args[i].substring (2))) {
             return 1;
           }
           break;
         default:
-          cmdLine.compilerError (null, "invalid command line option " + args[i]);
+          compilerError (null, "invalid command line option " + args[i]);
           return 1;
         }
       } else {
         File f = new File (args[i]);
         if (!f.isAbsolute ()) {
-          if (cmdLine._sourceDir != null) {
-            f = new File (cmdLine._sourceDir, args[i]);
+          if (_sourceDir != null) {
+            f = new File (_sourceDir, args[i]);
           }
         }
         if (f.exists ()) {
           String displayName = args[i];
-          if (cmdLine._sourceDir != null) {
-            final String pfx = cmdLine._sourceDir.toString () + File.separatorChar;
+          if (_sourceDir != null) {
+            final String pfx = _sourceDir.toString () + File.separatorChar;
             if (displayName.startsWith (pfx)) {
               displayName = displayName.substring (pfx.length ());
             }
           }
           // make sure paths appear in UNIX form so we don't get different output on Windows and UNIX.
           displayName = displayName.replace('\\', '/');
-          compiler.addSource (new SourceFile (displayName, f, cmdLine, true));
+          compiler.addSource (new SourceFile (displayName, f, this, true));
         } else {
-          cmdLine.compilerError (null, "source file '" + args[i] + "' doesn't exist");
+          compilerError (null, "source file '" + args[i] + "' doesn't exist");
           return 1;
         }
       }
@@ -261,8 +454,11 @@ public class CommandLine implements Compiler.WarningListener, Compiler.ErrorList
     compiler.compileAll ();
     final int warnings = compiler.getWarningCount ();
     final int errors = compiler.getErrorCount ();
+    if ((_hiddenWarnings > 0) || (_hiddenErrors > 0)) {
+      _err.println (formatMessage (MSG_INFO, null, "" + _hiddenWarnings + " warning(s), " + _hiddenErrors + " error(s) not shown"));
+    }
     if ((warnings > 0) || (errors > 0)) {
-      compilerMessage (true, MSG_INFO, null, "" + warnings + " warning(s), " + errors + " error(s)");  
+      _err.println (formatMessage (MSG_INFO, null, "" + warnings + " warning(s), " + errors + " error(s)"));
     }
     return (errors > 0) ? 1 : 0;
   }
@@ -16,6 +16,7 @@
 package org.fudgemsg.proto;
 
 import java.io.File;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -23,6 +24,8 @@ import java.util.LinkedList;
 import java.util.Map;
 import java.util.Queue;
 
+import org.fudgemsg.proto.antlr.ProtoLexer;
+
 /**
  * <p>Main compiler functionality. An instance of this should be used to convert
  * the {@code .proto} files into a particular language binding.</p>
@@ -115,7 +118,15 @@ public class Compiler {
     }
     
     public void addFixedRoot (final AST node) {
-      Compiler.this.addFixedRoot (node);
+      Compiler.this.addFixedRoot (node, false);
+    }
+    
+    /**
+     * Adds a fixed root. If everything it refers to is already declared it is built straight away, so its tree can be
+     * released, unless it depends on other roots being built first.
+     */
+    public void addFixedRoot (final AST node, final boolean declared) {
+      Compiler.this.addFixedRoot (node, declared);
     }
     
     public void addDefinition (final Definition definition) {
@@ -126,6 +137,22 @@ public class Compiler {
       return Compiler.this.getDefinition (identifier);
     }
     
+    /**
+     * Returns the number of definitions currently known. This only ever increases, so a phase can use it to tell
+     * whether anything it cached from {@link #getDefinition} might now be stale.
+     */
+    public int getDefinitionCount () {
+      return Compiler.this._definitions.size ();
+    }
+    
+    /**
+     * Returns all of the definitions currently known, for a code generator that needs to find the other definitions
+     * related to the one it is writing.
+     */
+    public Collection<Definition> getDefinitions () {
+      return Collections.unmodifiableCollection (Compiler.this._definitions.values ());
+    }
+    
     @SuppressWarnings("unchecked")
     public <T> T getUserState (final String key) {
       return (T)Compiler.this.getUserState (key);
@@ -147,6 +174,13 @@ public class Compiler {
       return Compiler.this.isToFromWithContext ();
     }
     
+    /**
+     * Returns the registry of type identifiers shared with other compilations, or null if there isn't one.
+     */
+    public TypeIdRegistry getTypeIdRegistry () {
+      return Compiler.this.getTypeIdRegistry ();
+    }
+    
   }
   
   private final Context _context = new Context ();
@@ -195,6 +229,8 @@ public class Compiler {
 
   private boolean _toFromWithContext = true;
 
+  private TypeIdRegistry _typeIdRegistry = null;
+
   /**
    * Creates a new compiler object. Note that a compiler is not thread-safe. If you want to do concurrent compilations, use multiple Compiler objects.
    */ 
@@ -294,6 +330,18 @@ public class Compiler {
     return _toFromWithContext;
   }
 
+  /**
+   * Sets the registry that type identifiers are read from before code generation and any new ones written back to
+   * after it.
+   */
+  public void setTypeIdRegistry (final TypeIdRegistry typeIdRegistry) {
+    _typeIdRegistry = typeIdRegistry;
+  }
+
+  public TypeIdRegistry getTypeIdRegistry () {
+    return _typeIdRegistry;
+  }
+
   public void reset () {
     _warningCount = 0;
     _errorCount = 0;
@@ -320,9 +368,14 @@ public class Compiler {
     _expandedRoots.add (node);
   }
   
-  private void addFixedRoot (final AST node) {
+  private void addFixedRoot (final AST node, final boolean declared) {
     if (node == null) throw new IllegalArgumentException ("node cannot be null");
-    _fixedRoots.add (node);
+    // a taxonomy imports the fields of messages so waits until they have all been built
+    if (declared && (node.getNodeLabel () != ProtoLexer.TAXONOMY)) {
+      walkAstNode (node, _semanticBuildPhase, "fourth phase of compilation");
+    } else {
+      _fixedRoots.add (node);
+    }
   }
   
   private void addDefinition (final Definition definition) {
@@ -367,19 +420,23 @@ public class Compiler {
     _userState.put (key, state);
   }
   
+  private void walkAstNode (final AST node, final ASTWalker walker, final String phaseName) {
+    try {
+      walker.walkAstNode (_context, node);
+    } catch (CompilationException e) {
+      throw e; // default error handler
+    } catch (RuntimeException e) {
+      final String errMsg = "uncaught exception from " + phaseName;
+      error (node.getCodePosition (), errMsg);
+      if (_rethrowExceptions) throw new CompilationException (errMsg, e);
+    }
+  }
+  
   private boolean runASTPhase (final Queue<AST> inputs, final ASTWalker walker, final String phaseName) {
     if (inputs.isEmpty ()) return false;
     AST node;
     while ((node = inputs.poll ()) != null) {
-      try {
-        walker.walkAstNode (_context, node);
-      } catch (CompilationException e) {
-        throw e; // default error handler
-      } catch (RuntimeException e) {
-        final String errMsg = "uncaught exception from " + phaseName;
-        error (node.getCodePosition (), errMsg);
-        if (_rethrowExceptions) throw new CompilationException (errMsg, e);
-      }
+      walkAstNode (node, walker, phaseName);
     }
     return true;
   }
@@ -387,6 +444,12 @@ public class Compiler {
  /**
    * Runs all compilation phases on the set of sources. Any phase may request data be fed into an ealier phase - e.g. referencing
    * additional source files. This causes a repeat of earlier phases for the new data
+   * <p>
+   * Roots are passed on as soon as they can be, so that trees are released once their definitions have been built rather
+   * than all being held to the end. Each source is expanded straight after it is parsed. References can only be fixed once
+   * every known source has been expanded, as the closest declaration of a name might be in any of them, but a fixed root
+   * whose references are all declared is built at once. Only taxonomies and roots waiting on further sources are held for
+   * the final build.
    */
   public boolean compileAll () {
     setCompilerDefaults ();
@@ -404,11 +467,11 @@ public class Compiler {
             error (new CodePosition (src), "uncaught exception from parser");
             if (_rethrowExceptions) throw new CompilationException ("uncaught exception from parser", e);
           }
+          runASTPhase (_parsedRoots, _expansionPhase, "second phase of compilation");
         }
         continue;
       }
       // AST phases
-      if (runASTPhase (_parsedRoots, _expansionPhase, "second phase of compilation")) continue;
       if (runASTPhase (_expandedRoots, _fixupPhase, "third phase of compilation")) continue;
       // Sort the roots so that we process enums, then messages, then taxonomies (the symbols are in that order in the grammar)
       Collections.sort (_fixedRoots, new Comparator<AST> () {
@@ -429,6 +492,7 @@ public class Compiler {
         }
       }
       // Phase 6 - generate output code from the model
+      if (_typeIdRegistry != null) _typeIdRegistry.load (_context);
       for (Definition definition : _definitions.values ()) {
         if (definition.isCompilationTarget ()) {
           try {
@@ -454,6 +518,7 @@ public class Compiler {
       }
       // Phase 7 - optional cleanup for the code generator (e.g. closing stuff)
       getCodeGenerator ().generationComplete (_context, _targetPath);
+      if ((_typeIdRegistry != null) && (getErrorCount () == 0)) _typeIdRegistry.store (_context);
       return true;
     }
     return false;
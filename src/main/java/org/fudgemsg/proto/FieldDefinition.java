@@ -50,6 +50,7 @@ public class FieldDefinition extends Definition {
   
   /* package */ void setOrdinal (final Integer ordinal) {
     _ordinal = ordinal;
+    getOuterMessage ().invalidateFieldIndex ();
   }
   
   public FieldType getType () {
@@ -16,7 +16,10 @@
 package org.fudgemsg.proto;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.fudgemsg.proto.antlr.ProtoLexer;
 
@@ -30,10 +33,61 @@ import org.fudgemsg.proto.antlr.ProtoLexer;
   
   /* package */ static final FixupExternalReferences INSTANCE = new FixupExternalReferences ();
   
+  private static final String _resolvedIdentifiers = FixupExternalReferences.class.getName () + ":resolvedIdentifiers"; // ResolvedIdentifiers
+  
+  private static final String _undeclaredReference = FixupExternalReferences.class.getName () + ":undeclaredReference"; // Boolean
+  
+  /**
+   * Memo of previous resolutions for a compilation. A result depends on the definitions in memory, so the whole table is
+   * discarded whenever more have been added, and on the source containing the reference, so results are held per source.
+   */
+  private static final class ResolvedIdentifiers {
+    
+    private int _definitionCount = -1;
+    
+    private final Map<Source, Map<String, String>> _bySource = new IdentityHashMap<Source, Map<String, String>> ();
+    
+    private Map<String, String> get (final Compiler.Context context, final Source source) {
+      final int definitionCount = context.getDefinitionCount ();
+      if (definitionCount != _definitionCount) {
+        _bySource.clear ();
+        _definitionCount = definitionCount;
+      }
+      Map<String, String> resolved = _bySource.get (source);
+      if (resolved == null) {
+        _bySource.put (source, resolved = new HashMap<String, String> ());
+      }
+      return resolved;
+    }
+    
+  }
+  
   private FixupExternalReferences () {
   }
   
-  private String resolveIdentifier(final Compiler.Context context, final String[] scope, final int scopeIgnore,
+  private String resolveIdentifier (final Compiler.Context context, final String[] scope, final int scopeIgnore,
+      final String id, final CodePosition codePosition) {
+    ResolvedIdentifiers state = context.getUserState (_resolvedIdentifiers);
+    if (state == null) {
+      context.setUserState (_resolvedIdentifiers, state = new ResolvedIdentifiers ());
+    }
+    final Map<String, String> resolved = state.get (context, codePosition.getSource ());
+    final StringBuilder sb = new StringBuilder ();
+    sb.append (scopeIgnore);
+    for (String element : scope) {
+      sb.append ('.').append (element);
+    }
+    final String key = sb.append (':').append (id).toString ();
+    String fullID = resolved.get (key);
+    if (fullID == null) {
+      fullID = lookupIdentifier (context, scope, scopeIgnore, id, codePosition);
+      resolved.put (key, fullID);
+    }
+    if (context.getDefinition (fullID) == null) context.setUserState (_undeclaredReference, Boolean.TRUE);
+    return fullID;
+  }
+  
+  private String lookupIdentifier(final Compiler.Context context, final String[] scope, final int scopeIgnore,
       final String id, final CodePosition codePosition) {
     // Try from closest scope outwards. Note that this eventually covers the case of us being given a fully qualified identifier to start with
     // Check for something already in memory
@@ -228,28 +282,35 @@ import org.fudgemsg.proto.antlr.ProtoLexer;
     }
   }
 
+  /**
+   * Passes the fixed root on, noting whether everything it refers to is already declared. If something isn't, a source
+   * that might declare it has been queued, or the reference is unknown and will be reported when the root is built.
+   */
   @Override
   public void walkAstNode (final Compiler.Context context, final AST node) {
+    context.setUserState (_undeclaredReference, Boolean.FALSE);
+    final AST fixed;
     switch (node.getNodeLabel ()) {
       case ProtoLexer.ENUM:
         // no action required for enums
-        context.addFixedRoot(node);
+        fixed = node;
         break;
       case ProtoLexer.MESSAGE:
-        context.addFixedRoot(walkMessageNode(context, node));
+        fixed = walkMessageNode(context, node);
         break;
       case ProtoLexer.TAXONOMY:
-        context.addFixedRoot(walkTaxonomyNode(context, node));
+        fixed = walkTaxonomyNode(context, node);
         break;
       case ProtoLexer.EXTERN:
-        context.addFixedRoot(walkExternNode(context, node));
+        fixed = walkExternNode(context, node);
         break;
       case ProtoLexer.TYPEDEF:
-        context.addFixedRoot(walkTypedefNode(context, node));
+        fixed = walkTypedefNode(context, node);
         break;
       default:
         throw new IllegalStateException("invalid root type '" + node.getNodeLabel() + "'");
     }
+    context.addFixedRoot (fixed, !context.<Boolean>getUserState (_undeclaredReference));
   }
   
 }
\ No newline at end of file
@@ -15,9 +15,11 @@
 
 package org.fudgemsg.proto;
 
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.fudgemsg.wire.types.FudgeWireType;
@@ -51,14 +53,33 @@ public abstract class MessageDefinition extends Definition {
     
   }
   
+  /**
+   * Field list that exposes its structural modification count, so indexes over it can tell when they are stale.
+   */
+  private static class FieldList extends LinkedList<FieldDefinition> {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private int getModCount () {
+      return modCount;
+    }
+    
+  }
+  
   private static class MessageDefinitionImpl extends MessageDefinition {
     
     private final List<MessageDefinition> _innerMessages = new LinkedList<MessageDefinition>();
     
-    private final List<FieldDefinition> _innerFields = new LinkedList<FieldDefinition>();
+    private final FieldList _innerFields = new FieldList ();
     
     private final List<EnumDefinition> _innerEnums = new LinkedList<EnumDefinition>();
     
+    private Map<String, FieldDefinition> _fieldsByName;
+    
+    private Map<Integer, FieldDefinition> _fieldsByOrdinal;
+    
+    private int _fieldsIndexed;
+    
     private MessageDefinitionImpl (final String identifier, final CodePosition codePosition, final MessageDefinition outerMessage, final boolean compilationTarget) {
       super (identifier, codePosition, outerMessage, compilationTarget);
     }
@@ -89,6 +110,41 @@ public abstract class MessageDefinition extends Definition {
       return _innerFields;
     }
     
+    @Override
+    /* package */ void invalidateFieldIndex () {
+      _fieldsByName = null;
+      _fieldsByOrdinal = null;
+    }
+    
+    /**
+     * Builds the name and ordinal indexes on first use, or again if the field list has been modified since. Where
+     * names or ordinals are duplicated the first field wins, as with a scan of the list.
+     */
+    private void indexFields () {
+      if ((_fieldsByName != null) && (_fieldsIndexed == _innerFields.getModCount ())) return;
+      final Map<String, FieldDefinition> byName = new HashMap<String, FieldDefinition> ();
+      final Map<Integer, FieldDefinition> byOrdinal = new HashMap<Integer, FieldDefinition> ();
+      for (FieldDefinition field : _innerFields) {
+        if (!byName.containsKey (field.getIdentifier ())) byName.put (field.getIdentifier (), field);
+        if ((field.getOrdinal () != null) && !byOrdinal.containsKey (field.getOrdinal ())) byOrdinal.put (field.getOrdinal (), field);
+      }
+      _fieldsByName = byName;
+      _fieldsByOrdinal = byOrdinal;
+      _fieldsIndexed = _innerFields.getModCount ();
+    }
+    
+    @Override
+    public FieldDefinition getFieldDefinition (final String identifier) {
+      indexFields ();
+      return _fieldsByName.get (identifier);
+    }
+    
+    @Override
+    public FieldDefinition getFieldDefinition (final Integer ordinal) {
+      indexFields ();
+      return _fieldsByOrdinal.get (ordinal);
+    }
+    
     @Override
     public List<EnumDefinition> getEnumDefinitions () {
       return _innerEnums;
@@ -112,17 +168,80 @@ public abstract class MessageDefinition extends Definition {
     }
     
     @Override
-    protected boolean hasExternalMessageReferences (Set<MessageDefinition> considered) {
+    public boolean hasExternalMessageReferences () {
       return false;
     }
     
   }
   
+  /**
+   * Single pass over the message graph, using Tarjan's strongly connected components algorithm, that caches the
+   * result of {@link #hasExternalMessageReferences} on every message reachable from the starting point. All messages
+   * in a reference cycle share the same answer, so the value for a component is known when its root is popped.
+   */
+  private static class ExternalReferenceSearch {
+    
+    private final Map<MessageDefinition, Integer> _index = new HashMap<MessageDefinition, Integer> ();
+    
+    private final Map<MessageDefinition, Integer> _lowLink = new HashMap<MessageDefinition, Integer> ();
+    
+    private final Set<MessageDefinition> _onStack = new HashSet<MessageDefinition> ();
+    
+    private final LinkedList<MessageDefinition> _stack = new LinkedList<MessageDefinition> ();
+    
+    /**
+     * Whether each message on the stack is external, references something external directly, or reaches something
+     * external through a message outside of its own component.
+     */
+    private final Map<MessageDefinition, Boolean> _reaches = new HashMap<MessageDefinition, Boolean> ();
+    
+    private void visit (final MessageDefinition message) {
+      final int index = _index.size ();
+      _index.put (message, index);
+      _lowLink.put (message, index);
+      _stack.push (message);
+      _onStack.add (message);
+      final List<MessageDefinition> references = new LinkedList<MessageDefinition> ();
+      boolean reaches = message.isExternal () | message.getMessageReferences (references);
+      for (MessageDefinition reference : references) {
+        if (reference._hasExternalMessageReferences != null) {
+          reaches |= reference._hasExternalMessageReferences;
+        } else if (!_index.containsKey (reference)) {
+          visit (reference);
+          _lowLink.put (message, Math.min (_lowLink.get (message), _lowLink.get (reference)));
+          reaches |= (reference._hasExternalMessageReferences != null) ? reference._hasExternalMessageReferences : _reaches.get (reference);
+        } else if (_onStack.contains (reference)) {
+          _lowLink.put (message, Math.min (_lowLink.get (message), _index.get (reference)));
+        }
+      }
+      _reaches.put (message, reaches);
+      if (_lowLink.get (message) == index) {
+        final List<MessageDefinition> component = new LinkedList<MessageDefinition> ();
+        MessageDefinition member;
+        do {
+          member = _stack.pop ();
+          _onStack.remove (member);
+          component.add (member);
+          reaches |= _reaches.remove (member);
+        } while (member != message);
+        for (MessageDefinition m : component) {
+          m._hasExternalMessageReferences = reaches;
+        }
+      }
+    }
+    
+  }
+  
   private MessageDefinition _baseMessage;
   
   private boolean _abstract;
   private boolean _external;
   
+  /**
+   * Cached result of {@link #hasExternalMessageReferences}, calculated once the definitions are complete.
+   */
+  private Boolean _hasExternalMessageReferences;
+  
   private MessageDefinition (final String identifier, final CodePosition codePosition, final MessageDefinition outerMessage, final boolean compilationTarget) {
     super (identifier, codePosition, outerMessage, compilationTarget);
   }
@@ -154,6 +273,12 @@ public abstract class MessageDefinition extends Definition {
     throw new UnsupportedOperationException ();
   }
   
+  /**
+   * Called when the ordinal of one of the fields changes.
+   */
+  /* package */ void invalidateFieldIndex () {
+  }
+  
   public FieldDefinition getFieldDefinition (final String identifier) {
     for (FieldDefinition field : getFieldDefinitions ()) {
       if (identifier.equals (field.getIdentifier ())) return field;
@@ -234,36 +359,42 @@ public abstract class MessageDefinition extends Definition {
     _abstract = true;
   }
 
-  protected boolean hasExternalMessageReferences (final FieldType type, final Set<MessageDefinition> considered) {
-    if (type instanceof FieldType.MessageType) {
-      return ((FieldType.MessageType)type).getMessageDefinition ().hasExternalMessageReferences (considered);
+  /**
+   * Adds the messages referenced by a field type to the list, returning true if the type is an external typedef of a
+   * message.
+   */
+  private static boolean getMessageReferences (final FieldType type, final List<MessageDefinition> references) {
+    if (type instanceof FieldType.AnonMessageType) {
+      return false;
+    } else if (type instanceof FieldType.MessageType) {
+      references.add (((FieldType.MessageType)type).getMessageDefinition ());
+      return false;
     } else if (type instanceof FieldType.ArrayType) {
-      return hasExternalMessageReferences (((FieldType.ArrayType)type).getBaseType (), considered);
+      return getMessageReferences (((FieldType.ArrayType)type).getBaseType (), references);
     } else if (type instanceof FieldType.UserType) {
       final TypeDefinition typedef = ((FieldType.UserType) type).getTypeDefinition();
       final FieldType underlying = typedef.getUnderlyingType();
       if (typedef.isExternal()) {
         return underlying.getFudgeFieldType() == FudgeWireType.SUB_MESSAGE_TYPE_ID;
       } else {
-        return hasExternalMessageReferences(underlying, considered);
+        return getMessageReferences (underlying, references);
       }
     } else {
       return false;
     }
   }
   
-  protected boolean hasExternalMessageReferences (Set<MessageDefinition> considered) {
-    if (isExternal ()) return true;
-    if (considered == null) considered = new HashSet<MessageDefinition> ();
-    if (considered.contains (this)) return false;
-    considered.add (this);
-    if (getExtends () != null) {
-      if (getExtends ().hasExternalMessageReferences (considered)) return true;
-    }
+  /**
+   * Adds the base message and the messages used by fields to the list, returning true if any field is an external
+   * typedef of a message.
+   */
+  private boolean getMessageReferences (final List<MessageDefinition> references) {
+    if (getExtends () != null) references.add (getExtends ());
+    boolean external = false;
     for (final FieldDefinition field : getFieldDefinitions ()) {
-      if (hasExternalMessageReferences (field.getType (), considered)) return true;
+      external |= getMessageReferences (field.getType (), references);
     }
-    return false;
+    return external;
   }
 
   /**
@@ -271,7 +402,10 @@ public abstract class MessageDefinition extends Definition {
    * which is an external message.
    */
   public boolean hasExternalMessageReferences () {
-    return hasExternalMessageReferences (null);
+    if (_hasExternalMessageReferences == null) {
+      new ExternalReferenceSearch ().visit (this);
+    }
+    return _hasExternalMessageReferences;
   }
 
 }
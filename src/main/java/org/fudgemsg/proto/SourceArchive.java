@@ -0,0 +1,72 @@
+/* Copyright 2009 by OpenGamma Inc and other contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.fudgemsg.proto;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A zip, jar or war file on the search path, along with an index of the .proto entries from its central directory.
+ * The archive is opened for a single compilation run and must be closed at the end of it.
+ */
+/* package */ final class SourceArchive implements Closeable {
+
+  private final ZipFile _zipFile;
+
+  private final Map<String, ZipEntry> _entries;
+
+  public SourceArchive (final File file) throws IOException {
+    _zipFile = new ZipFile (file);
+    final Map<String, ZipEntry> entries = new HashMap<String, ZipEntry> ();
+    final Enumeration<? extends ZipEntry> e = _zipFile.entries ();
+    while (e.hasMoreElements ()) {
+      final ZipEntry entry = e.nextElement ();
+      if (!entry.isDirectory () && entry.getName ().endsWith (".proto")) {
+        entries.put (entry.getName (), entry);
+      }
+    }
+    _entries = Collections.unmodifiableMap (entries);
+  }
+
+  public ZipFile getZipFile () {
+    return _zipFile;
+  }
+
+  /**
+   * Returns the .proto entries in the archive, keyed by their path.
+   */
+  public Map<String, ZipEntry> getEntries () {
+    return _entries;
+  }
+
+  @Override
+  public void close () throws IOException {
+    _zipFile.close ();
+  }
+
+  @Override
+  public String toString () {
+    return _zipFile.getName ();
+  }
+
+}
@@ -55,6 +55,11 @@ public class SourceFile extends AbstractSource {
     return sf._file.equals (_file);
   }
 
+  @Override
+  protected long getContentLength () {
+    return getFile ().length ();
+  }
+  
   @Override
   protected InputStream openInputStream() throws FileNotFoundException {
     return new FileInputStream (getFile ());
@@ -0,0 +1,153 @@
+/* Copyright 2009 by OpenGamma Inc and other contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fudgemsg.proto;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The type identifiers issued to messages, kept in a file between compilations. Each line of the file is a message
+ * identifier and its type identifier separated by '='; blank lines and lines starting with '#' are ignored.
+ * <p>
+ * A message keeps the identifier recorded for it, so separately compiled units that share the file agree on them and
+ * a new message can't be given one already in use by a message that isn't part of the current compilation.
+ *
+ * @author Andrew
+ */
+public class TypeIdRegistry {
+
+  private final File _file;
+
+  private final Map<String,Integer> _typeIds = new TreeMap<String,Integer> ();
+
+  private final Map<Integer,String> _identifiers = new HashMap<Integer,String> ();
+
+  private boolean _modified = false;
+
+  public TypeIdRegistry (final File file) {
+    if (file == null) throw new IllegalArgumentException ("file cannot be null");
+    _file = file;
+  }
+
+  public File getFile () {
+    return _file;
+  }
+
+  /**
+   * Discards anything held and reads the identifiers from the file. A file that doesn't exist yet is an empty
+   * registry.
+   */
+  /* package */ void load (final Compiler.Context context) {
+    _typeIds.clear ();
+    _identifiers.clear ();
+    _modified = false;
+    if (!_file.exists ()) return;
+    if (context.getVerbosity () >= 2) context.verboseMessage ("Reading " + _file);
+    try {
+      final BufferedReader r = new BufferedReader (new FileReader (_file));
+      try {
+        String line;
+        int lineNumber = 0;
+        while ((line = r.readLine ()) != null) {
+          lineNumber++;
+          line = line.trim ();
+          if ((line.length () == 0) || (line.charAt (0) == '#')) continue;
+          final int i = line.indexOf ('=');
+          Integer typeId = null;
+          if (i > 0) {
+            try {
+              typeId = Integer.decode (line.substring (i + 1).trim ());
+            } catch (NumberFormatException e) {
+              // reported below
+            }
+          }
+          if (typeId == null) {
+            context.error (null, "invalid type identifier at line " + lineNumber + " of '" + _file + "'");
+            continue;
+          }
+          final String identifier = line.substring (0, i).trim ();
+          final String previous = _identifiers.get (typeId);
+          if ((previous != null) && !previous.equals (identifier)) {
+            context.error (null, "type identifier " + typeId + " of '" + identifier + "' is already used by '" + previous + "' in '" + _file + "'");
+            continue;
+          }
+          _typeIds.put (identifier, typeId);
+          _identifiers.put (typeId, identifier);
+        }
+      } finally {
+        r.close ();
+      }
+    } catch (IOException e) {
+      context.error (null, "couldn't read type identifiers from '" + _file + "': " + e.getMessage ());
+    }
+  }
+
+  /**
+   * Returns the type identifier recorded for a message, or null if there isn't one.
+   */
+  public Integer getTypeId (final String identifier) {
+    return _typeIds.get (identifier);
+  }
+
+  /**
+   * Returns the message that a type identifier is recorded for, or null if it is free.
+   */
+  public String getIdentifier (final int typeId) {
+    return _identifiers.get (typeId);
+  }
+
+  /**
+   * Records the type identifier of a message that didn't have one.
+   */
+  /* package */ void register (final String identifier, final int typeId) {
+    _typeIds.put (identifier, typeId);
+    _identifiers.put (typeId, identifier);
+    _modified = true;
+  }
+
+  /**
+   * Writes the identifiers back to the file if any were added by the compilation.
+   */
+  /* package */ void store (final Compiler.Context context) {
+    if (!_modified) return;
+    if (context.getVerbosity () >= 2) context.verboseMessage ("Writing " + _file);
+    try {
+      final BufferedWriter out = new BufferedWriter (new FileWriter (_file));
+      try {
+        out.write ("# Fudge message type identifiers\n");
+        for (Map.Entry<String,Integer> entry : _typeIds.entrySet ()) {
+          out.write (entry.getKey ());
+          out.write ('=');
+          out.write (entry.getValue ().toString ());
+          out.write ('\n');
+        }
+      } finally {
+        out.close ();
+      }
+      _modified = false;
+    } catch (IOException e) {
+      context.error (null, "couldn't write type identifiers to '" + _file + "': " + e.getMessage ());
+    }
+  }
+
+}
@@ -53,6 +53,11 @@ public class ZipSourceFile extends AbstractSource {
     return jsf.getZipFile().getName().equals(getZipFile().getName()) && jsf.getZipEntry().getName().equals(getZipEntry().getName());
   }
 
+  @Override
+  protected long getContentLength () {
+    return getZipEntry ().getSize ();
+  }
+  
   @Override
   protected InputStream openInputStream() throws IOException {
     return getZipFile ().getInputStream (getZipEntry ());
@@ -34,11 +34,26 @@ import org.fudgemsg.proto.Source;
   /* package */ ProtoToken (final Source source, final int tokenType, final String text) {
     super (tokenType, text);
     _source = source;
+    fixIdentifier ();
   }
   
   /* package */ ProtoToken (final Source source, final Token fromToken) {
     super (fromToken);
     _source = source;
+    fixIdentifier ();
+  }
+  
+  /**
+   * The lexer accepts a leading $ on an identifier so that reserved words can be used as names; it isn't part of the
+   * name itself so is dropped as the token is copied into the tree.
+   */
+  private void fixIdentifier () {
+    if (getType () == ProtoLexer.IDENTIFIER) {
+      final String text = getText ();
+      if ((text != null) && (text.length () > 0) && (text.charAt (0) == '$')) {
+        setText (text.substring (1));
+      }
+    }
   }
   
   /* package */ CodePosition getCodePosition () {
@@ -22,6 +22,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Stack;
 
+import org.fudgemsg.proto.CodeGeneratorUtil;
 import org.fudgemsg.proto.Compiler;
 import org.fudgemsg.proto.EnumDefinition;
 import org.fudgemsg.proto.EnumDefinition.Type;
@@ -43,12 +44,38 @@ import org.fudgemsg.wire.types.FudgeWireType;
  */
 /* package */class CClassCode extends CStyleClassCode {
 
-  /* package */static final CClassCode INSTANCE = new CClassCode();
+  /**
+   * Number of leading fields isClass copies onto the stack. The class names, one for each level of the hierarchy, are
+   * usually written before any other field, so only messages with very deep hierarchies or names after their fields
+   * need more.
+   */
+  private static final int IS_CLASS_FIELDS = 8;
 
-  private CClassCode() {
+  /**
+   * Name of the header holding the direct buffer encoding helpers, written alongside the generated files.
+   */
+  /* package */static final String WIRE_RUNTIME_HEADER = "FudgeWire.h";
+
+  private static final String WIRE_RUNTIME_GUARD = "__FUDGEWIRE_H";
+
+  private boolean _classIds;
+
+  /* package */CClassCode() {
     super(blockCodeDelegate(new CBlockCode(literalCodeDelegate(CLiteralCode.INSTANCE))), ".h", ".c");
   }
 
+  /**
+   * Sets whether class headers are written as integer type identifiers, at their own ordinal, instead of class names. The
+   * isClass test accepts either form.
+   */
+  /* package */void setClassIds(final boolean classIds) {
+    _classIds = classIds;
+  }
+
+  /* package */boolean isClassIds() {
+    return _classIds;
+  }
+
   @Override
   public void writeHeaderFileHeader(final Compiler.Context context, final File targetFile, final IndentWriter writer)
       throws IOException {
@@ -163,6 +190,12 @@ import org.fudgemsg.wire.types.FudgeWireType;
       writer.write("FudgeStatus " + getIdentifier(message) + "_toFudgeMsg (struct _" + getIdentifier(message)
           + " *ptr, FudgeMsg *msg)");
       endStmt(writer);
+      writer.write("FudgeStatus " + getIdentifier(message) + "_encodedSize (struct _" + getIdentifier(message)
+          + " *ptr, size_t *size)");
+      endStmt(writer);
+      writer.write("FudgeStatus " + getIdentifier(message) + "_toBuffer (struct _" + getIdentifier(message)
+          + " *ptr, fudge_byte *buffer, size_t bufferSize, size_t *written)");
+      endStmt(writer);
     }
     writer.write("FudgeStatus " + getIdentifier(message) + "_addClass (FudgeMsg msg)");
     endStmt(writer);
@@ -178,6 +211,12 @@ import org.fudgemsg.wire.types.FudgeWireType;
     writer.write("FudgeStatus " + getIdentifier(message) + "_toFudgeMsgImpl (struct _" + getIdentifier(message)
         + " *ptr, FudgeMsg msg)");
     endStmt(writer);
+    writer.write("size_t " + getIdentifier(message) + "_encodedSizeImpl (struct _" + getIdentifier(message)
+        + " *ptr)");
+    endStmt(writer);
+    writer.write("fudge_byte *" + getIdentifier(message) + "_toBufferImpl (struct _" + getIdentifier(message)
+        + " *ptr, fudge_byte *buffer)");
+    endStmt(writer);
     writer.write("#endif /* ifdef FUDGE_INTERNAL */");
     writer.newLine();
     // Short name defines
@@ -218,6 +257,10 @@ import org.fudgemsg.wire.types.FudgeWireType;
         writer.newLine();
         writer.write("#define " + message.getName() + "_toFudgeMsg " + getIdentifier(message) + "_toFudgeMsg");
         writer.newLine();
+        writer.write("#define " + message.getName() + "_encodedSize " + getIdentifier(message) + "_encodedSize");
+        writer.newLine();
+        writer.write("#define " + message.getName() + "_toBuffer " + getIdentifier(message) + "_toBuffer");
+        writer.newLine();
       }
       writer.write("#define " + message.getName() + "_addClass " + getIdentifier(message) + "_addClass");
       writer.newLine();
@@ -349,7 +392,8 @@ import org.fudgemsg.wire.types.FudgeWireType;
   public void beginClassImplementationDeclaration(final Compiler.Context context, final MessageDefinition message,
       final IndentWriter writer) throws IOException {
     super.beginClassImplementationDeclaration(context, message, writer);
-    // nothing required
+    writer.write("#include \"" + WIRE_RUNTIME_HEADER + "\"");
+    writer.newLine();
   }
 
   @Override
@@ -609,13 +653,13 @@ import org.fudgemsg.wire.types.FudgeWireType;
           fieldValueToString(writer, source, "*" + target, unwind, allowNull, varLen);
           break;
         case FudgeWireType.DATE_TYPE_ID:
-          comment(writer, "TODO date type");
+          decodeFieldStruct(writer, source, target, unwind, "FUDGE_TYPE_DATE", "date");
           break;
         case FudgeWireType.DATETIME_TYPE_ID:
-          comment(writer, "TODO datetime type");
+          decodeFieldStruct(writer, source, target, unwind, "FUDGE_TYPE_DATETIME", "datetime");
           break;
         case FudgeWireType.TIME_TYPE_ID:
-          comment(writer, "TODO time type");
+          decodeFieldStruct(writer, source, target, unwind, "FUDGE_TYPE_TIME", "time");
           break;
         default:
           throw new IllegalStateException("type '" + type + "' is not an expected type (fudge field type "
@@ -624,6 +668,14 @@ import org.fudgemsg.wire.types.FudgeWireType;
     }
   }
 
+  private void decodeFieldStruct(final IndentWriter writer, final String source, final String target,
+      final Stack<String> unwind, final String fudgeType, final String member) throws IOException {
+    writer.write("if (" + source + ".type == " + fudgeType + ") *" + target + " = " + source + ".data." + member);
+    endStmt(writer);
+    writer.write("else ");
+    returnAndUnwindStmt(writer, unwind, "FUDGE_INVALID_TYPE_COERCION");
+  }
+
   private void writeIfFieldMatches(final IndentWriter writer, final FieldDefinition field, final String fieldRef)
       throws IOException {
     if (field.getOrdinal() != null) {
@@ -995,13 +1047,16 @@ import org.fudgemsg.wire.types.FudgeWireType;
           value = "str";
           break;
         case FudgeWireType.DATE_TYPE_ID:
-          comment(writer, "TODO date type");
+          type = "Date";
+          value = "&" + value;
           break;
         case FudgeWireType.DATETIME_TYPE_ID:
-          comment(writer, "TODO datetime type");
+          type = "DateTime";
+          value = "&" + value;
           break;
         case FudgeWireType.TIME_TYPE_ID:
-          comment(writer, "TODO time type");
+          type = "Time";
+          value = "&" + value;
           break;
         default:
           throw new IllegalStateException("type '" + fieldType + "' is not an expected type (fudge field type "
@@ -1424,30 +1479,78 @@ import org.fudgemsg.wire.types.FudgeWireType;
     endBlock(writer); // fromFudgeMsgImpl
   }
 
-  private void writeMessageIsClass(final IndentWriter writer, final MessageDefinition message) throws IOException {
+  /**
+   * Writes the start of an isClass loop body. The class names are either written before the other fields or appended
+   * after them, so fields other than ordinal 0, or the type identifier ordinal, are skipped until the first name is
+   * found and end the search after the last one.
+   */
+  private void writeIsClassSkipField(final IndentWriter writer, final String field, final String end)
+      throws IOException {
+    if (isClassIds()) {
+      writer.write("if (!(" + field + ".flags & FUDGE_FIELD_HAS_ORDINAL) || ((" + field + ".ordinal != 0) && ("
+          + field + ".ordinal != " + CodeGeneratorUtil.TYPE_ID_ORDINAL + ")))");
+    } else {
+      writer.write("if (!(" + field + ".flags & FUDGE_FIELD_HAS_ORDINAL) || (" + field + ".ordinal != 0))");
+    }
+    beginBlock(writer); // if
+    writer.write("if (classHeader) " + end);
+    endStmt(writer);
+    writer.write("continue");
+    endStmt(writer);
+    endBlock(writer); // if
+    writer.write("classHeader = FUDGE_TRUE");
+    endStmt(writer);
+  }
+
+  private void writeMessageIsClass(final Compiler.Context context, final IndentWriter writer,
+      final MessageDefinition message) throws IOException {
+    final byte[] className = UTF8.encode(message.getIdentifier());
+    final String nameTest = "(FudgeString_getSize (fields[i].data.string) == " + className.length
+        + ") && !memcmp (FudgeString_getData (fields[i].data.string), \"" + utf8Literal(className) + "\", "
+        + className.length + ")";
+    final String test;
+    if (isClassIds()) {
+      // an integer at ordinal 0 is a reference to an earlier class header, not a type identifier
+      test = "(fields[i].ordinal == " + CodeGeneratorUtil.TYPE_ID_ORDINAL
+          + ") ? ((FudgeMsg_getFieldAsI32 (&fields[i], &typeId) == FUDGE_OK) && (typeId == "
+          + CodeGeneratorUtil.getTypeId(context, message) + ")) : ((fields[i].type == FUDGE_TYPE_STRING) && "
+          + nameTest + ")";
+    } else {
+      test = "(fields[i].type == FUDGE_TYPE_STRING) && " + nameTest;
+    }
     // public isClass function - tests if the message contains this class name
     writer.write("fudge_bool " + getIdentifier(message) + "_isClass (FudgeMsg msg)");
     beginBlock(writer); // isClass
-    writer.write("FudgeString className");
+    writer.write("FudgeField fields[" + IS_CLASS_FIELDS + "]");
     endStmt(writer);
-    writer.write("FudgeField *fields");
+    writer.write("FudgeField *allFields");
     endStmt(writer);
-    writer.write("int i, n");
+    writer.write(isClassIds() ? "fudge_i32 i, n, typeId" : "fudge_i32 i, n");
     endStmt(writer);
-    writer.write("fudge_bool result = FUDGE_FALSE");
+    writer.write("fudge_bool classHeader = FUDGE_FALSE, result = FUDGE_FALSE");
     endStmt(writer);
-    writer
-        .write("if (((n = FudgeMsg_numFields (msg)) > 0) && ((fields = (FudgeField*)malloc (sizeof (FudgeField) * n)) != NULL))");
+    // fast path; compare the fields at the head of the message, without allocating
+    writer.write("if ((n = FudgeMsg_getFields (fields, " + IS_CLASS_FIELDS + ", msg)) <= 0) return FUDGE_FALSE");
+    endStmt(writer);
+    writer.write("for (i = 0; i < n; i++)");
+    beginBlock(writer); // for
+    writeIsClassSkipField(writer, "fields[i]", "return FUDGE_FALSE");
+    writer.write("if (" + test + ") return FUDGE_TRUE");
+    endStmt(writer);
+    endBlock(writer); // for
+    writer.write("if (n < " + IS_CLASS_FIELDS + ") return FUDGE_FALSE");
+    endStmt(writer);
+    // slow path; the class names are after the fields, or more than fit on the stack
+    writer.write("n = (fudge_i32)FudgeMsg_numFields (msg)");
+    endStmt(writer);
+    writer.write("if ((allFields = (FudgeField*)malloc (sizeof (FudgeField) * n)) != NULL)");
     beginBlock(writer); // malloc-if
-    writer.write("if (FudgeString_createFrom (&className, " + getIdentifier(message) + "_Class, "
-        + message.getIdentifier().length() + " * sizeof (TCHAR)) == FUDGE_OK)");
-    beginBlock(writer); // createFrom-if
-    writer.write("if (FudgeMsg_getFields (fields, n, msg) > 0)");
+    writer.write("if ((n = FudgeMsg_getFields (allFields, n, msg)) > 0)");
     beginBlock(writer); // getFields-if
-    writer.write("for (i = 0; i < n; i++)");
+    writer.write("for (i = " + IS_CLASS_FIELDS + "; i < n; i++)");
     beginBlock(writer); // for
-    writer
-        .write("if ((fields[i].flags & FUDGE_FIELD_HAS_ORDINAL) && (fields[i].ordinal == 0) && (fields[i].type == FUDGE_TYPE_STRING) && !FudgeString_compare (className, fields[i].data.string))");
+    writeIsClassSkipField(writer, "allFields[i]", "break");
+    writer.write("if (" + test.replace("fields[i]", "allFields[i]") + ")");
     beginBlock(writer); // if
     writer.write("result = FUDGE_TRUE");
     endStmt(writer);
@@ -1456,10 +1559,7 @@ import org.fudgemsg.wire.types.FudgeWireType;
     endBlock(writer); // if
     endBlock(writer); // for
     endBlock(writer); // getFields-if
-    writer.write("FudgeString_release (className)");
-    endStmt(writer);
-    endBlock(writer); // createFrom-if
-    writer.write("free (fields)");
+    writer.write("free (allFields)");
     endStmt(writer);
     endBlock(writer); // malloc-if
     writer.write("return result");
@@ -1522,9 +1622,19 @@ import org.fudgemsg.wire.types.FudgeWireType;
     endBlock(writer); // toFudgeMsg
   }
 
-  private void writeMessageAddClass(final IndentWriter writer, final MessageDefinition message) throws IOException {
+  private void writeMessageAddClass(final Compiler.Context context, final IndentWriter writer,
+      final MessageDefinition message) throws IOException {
     writer.write("FudgeStatus " + getIdentifier(message) + "_addClass (FudgeMsg msg)");
     beginBlock(writer); // addClass
+    if (isClassIds()) {
+      writer.write("fudge_i16 ordinal = " + CodeGeneratorUtil.TYPE_ID_ORDINAL);
+      endStmt(writer);
+      writer.write("return FudgeMsg_addFieldI32 (msg, 0, &ordinal, " + CodeGeneratorUtil.getTypeId(context, message)
+          + ")");
+      endStmt(writer);
+      endBlock(writer); // addClass
+      return;
+    }
     writer.write("FudgeStatus status");
     endStmt(writer);
     writer.write("fudge_i16 ordinal = 0");
@@ -1543,14 +1653,856 @@ import org.fudgemsg.wire.types.FudgeWireType;
     endBlock(writer); // addClass
   }
 
+  /**
+   * Writes the helpers used by the direct buffer encoding functions. These follow the Fudge wire format directly so
+   * that a message can be written without building an intermediate FudgeMsg. They are written once, to a header
+   * included by each implementation file after the string macros it depends on, as static inline functions so that
+   * the ones a file doesn't use are dropped without a warning.
+   */
+  /* package */void writeWireRuntime(final IndentWriter writer) throws IOException {
+    writer.write("#ifndef " + WIRE_RUNTIME_GUARD);
+    writer.newLine();
+    writer.write("#define " + WIRE_RUNTIME_GUARD);
+    writer.newLine();
+    writer.write("#include <fudge/codec.h>");
+    writer.newLine();
+    writer.write("#include <fudge/envelope.h>");
+    writer.newLine();
+    writer.write("#include <fudge/message.h>");
+    writer.newLine();
+    writer.write("#include <malloc.h>");
+    writer.newLine();
+    writer.write("#include <string.h>");
+    writer.newLine();
+    writer.write("#ifndef FUDGEWIRE_INLINE");
+    writer.newLine();
+    writer.write("#if defined (_MSC_VER)");
+    writer.newLine();
+    writer.write("#define FUDGEWIRE_INLINE __inline");
+    writer.newLine();
+    writer.write("#elif defined (__GNUC__)");
+    writer.newLine();
+    writer.write("#define FUDGEWIRE_INLINE __inline__");
+    writer.newLine();
+    writer.write("#else");
+    writer.newLine();
+    writer.write("#define FUDGEWIRE_INLINE inline");
+    writer.newLine();
+    writer.write("#endif");
+    writer.newLine();
+    writer.write("#endif /* ifndef FUDGEWIRE_INLINE */");
+    writer.newLine();
+    writer.write("static FUDGEWIRE_INLINE size_t FudgeWire_varSize (size_t header, size_t size)");
+    beginBlock(writer);
+    writer.write("if (size <= 255) return header + 1 + size");
+    endStmt(writer);
+    writer.write("if (size <= 32767) return header + 2 + size");
+    endStmt(writer);
+    writer.write("return header + 4 + size");
+    endStmt(writer);
+    endBlock(writer);
+    writer.write("static FUDGEWIRE_INLINE fudge_byte *FudgeWire_i16 (fudge_byte *buffer, fudge_i16 value)");
+    beginBlock(writer);
+    writer.write("buffer[0] = (fudge_byte)(value >> 8)");
+    endStmt(writer);
+    writer.write("buffer[1] = (fudge_byte)value");
+    endStmt(writer);
+    writer.write("return buffer + 2");
+    endStmt(writer);
+    endBlock(writer);
+    writer.write("static FUDGEWIRE_INLINE fudge_byte *FudgeWire_i32 (fudge_byte *buffer, fudge_i32 value)");
+    beginBlock(writer);
+    writer.write("buffer[0] = (fudge_byte)(value >> 24)");
+    endStmt(writer);
+    writer.write("buffer[1] = (fudge_byte)(value >> 16)");
+    endStmt(writer);
+    writer.write("buffer[2] = (fudge_byte)(value >> 8)");
+    endStmt(writer);
+    writer.write("buffer[3] = (fudge_byte)value");
+    endStmt(writer);
+    writer.write("return buffer + 4");
+    endStmt(writer);
+    endBlock(writer);
+    writer.write("static FUDGEWIRE_INLINE fudge_byte *FudgeWire_i64 (fudge_byte *buffer, fudge_i64 value)");
+    beginBlock(writer);
+    writer.write("return FudgeWire_i32 (FudgeWire_i32 (buffer, (fudge_i32)(value >> 32)), (fudge_i32)value)");
+    endStmt(writer);
+    endBlock(writer);
+    writer.write("static FUDGEWIRE_INLINE fudge_byte *FudgeWire_f32 (fudge_byte *buffer, fudge_f32 value)");
+    beginBlock(writer);
+    writer.write("fudge_i32 bits");
+    endStmt(writer);
+    writer.write("memcpy (&bits, &value, sizeof (bits))");
+    endStmt(writer);
+    writer.write("return FudgeWire_i32 (buffer, bits)");
+    endStmt(writer);
+    endBlock(writer);
+    writer.write("static FUDGEWIRE_INLINE fudge_byte *FudgeWire_f64 (fudge_byte *buffer, fudge_f64 value)");
+    beginBlock(writer);
+    writer.write("fudge_i64 bits");
+    endStmt(writer);
+    writer.write("memcpy (&bits, &value, sizeof (bits))");
+    endStmt(writer);
+    writer.write("return FudgeWire_i64 (buffer, bits)");
+    endStmt(writer);
+    endBlock(writer);
+    writer.write("static FUDGEWIRE_INLINE fudge_byte *FudgeWire_bytes (fudge_byte *buffer, const void *data, size_t size)");
+    beginBlock(writer);
+    writer.write("memcpy (buffer, data, size)");
+    endStmt(writer);
+    writer.write("return buffer + size");
+    endStmt(writer);
+    endBlock(writer);
+    for (String type : new String[] {"i16", "i32", "i64", "f32", "f64" }) {
+      writer.write("static FUDGEWIRE_INLINE fudge_byte *FudgeWire_" + type + "Array (fudge_byte *buffer, const fudge_"
+          + type + " *values, size_t count)");
+      beginBlock(writer);
+      writer.write("size_t i");
+      endStmt(writer);
+      writer.write("for (i = 0; i < count; i++) buffer = FudgeWire_" + type + " (buffer, values[i])");
+      endStmt(writer);
+      writer.write("return buffer");
+      endStmt(writer);
+      endBlock(writer);
+    }
+    writer.write("static FUDGEWIRE_INLINE fudge_byte *FudgeWire_key (fudge_byte *buffer, fudge_byte prefix, fudge_byte type, fudge_i16 ordinal, const char *name, size_t nameLength)");
+    beginBlock(writer);
+    writer.write("*buffer++ = prefix");
+    endStmt(writer);
+    writer.write("*buffer++ = type");
+    endStmt(writer);
+    writer.write("if (prefix & 0x10) buffer = FudgeWire_i16 (buffer, ordinal)");
+    endStmt(writer);
+    writer.write("if (prefix & 0x08)");
+    beginBlock(writer);
+    writer.write("*buffer++ = (fudge_byte)nameLength");
+    endStmt(writer);
+    writer.write("buffer = FudgeWire_bytes (buffer, name, nameLength)");
+    endStmt(writer);
+    endBlock(writer);
+    writer.write("return buffer");
+    endStmt(writer);
+    endBlock(writer);
+    writer.write("static FUDGEWIRE_INLINE fudge_byte *FudgeWire_fixed (fudge_byte *buffer, fudge_byte prefix, fudge_byte type, fudge_i16 ordinal, const char *name, size_t nameLength)");
+    beginBlock(writer);
+    writer.write("return FudgeWire_key (buffer, prefix | 0x80, type, ordinal, name, nameLength)");
+    endStmt(writer);
+    endBlock(writer);
+    writer.write("static FUDGEWIRE_INLINE fudge_byte *FudgeWire_variable (fudge_byte *buffer, fudge_byte prefix, fudge_byte type, fudge_i16 ordinal, const char *name, size_t nameLength, size_t size)");
+    beginBlock(writer);
+    writer.write("if (size <= 255)");
+    beginBlock(writer);
+    writer.write("buffer = FudgeWire_key (buffer, prefix | 0x20, type, ordinal, name, nameLength)");
+    endStmt(writer);
+    writer.write("*buffer++ = (fudge_byte)size");
+    endStmt(writer);
+    writer.write("return buffer");
+    endStmt(writer);
+    endBlock(writer);
+    writer.write("if (size <= 32767) return FudgeWire_i16 (FudgeWire_key (buffer, prefix | 0x40, type, ordinal, name, nameLength), (fudge_i16)size)");
+    endStmt(writer);
+    writer.write("return FudgeWire_i32 (FudgeWire_key (buffer, prefix | 0x60, type, ordinal, name, nameLength), (fudge_i32)size)");
+    endStmt(writer);
+    endBlock(writer);
+    comment(writer, "Sub-messages always use a 4 byte length so that it can be written once the content is known");
+    writer.write("static FUDGEWIRE_INLINE fudge_byte *FudgeWire_subMsgBegin (fudge_byte *buffer, fudge_byte prefix, fudge_i16 ordinal, const char *name, size_t nameLength)");
+    beginBlock(writer);
+    writer.write("return FudgeWire_key (buffer, prefix | 0x60, " + FudgeWireType.SUB_MESSAGE_TYPE_ID
+        + ", ordinal, name, nameLength) + 4");
+    endStmt(writer);
+    endBlock(writer);
+    writer.write("static FUDGEWIRE_INLINE fudge_byte *FudgeWire_subMsgEnd (fudge_byte *mark, fudge_byte *buffer)");
+    beginBlock(writer);
+    writer.write("FudgeWire_i32 (mark - 4, (fudge_i32)(buffer - mark))");
+    endStmt(writer);
+    writer.write("return buffer");
+    endStmt(writer);
+    endBlock(writer);
+    writer.write("static FUDGEWIRE_INLINE size_t FudgeWire_fudgeStringSize (FudgeString str)");
+    beginBlock(writer);
+    writer.write("return str ? FudgeString_getSize (str) : 0");
+    endStmt(writer);
+    endBlock(writer);
+    writer.write("static FUDGEWIRE_INLINE fudge_byte *FudgeWire_fudgeString (fudge_byte *buffer, fudge_byte prefix, fudge_i16 ordinal, const char *name, size_t nameLength, FudgeString str)");
+    beginBlock(writer);
+    writer.write("const size_t size = FudgeWire_fudgeStringSize (str)");
+    endStmt(writer);
+    writer.write("buffer = FudgeWire_variable (buffer, prefix, " + FudgeWireType.STRING_TYPE_ID
+        + ", ordinal, name, nameLength, size)");
+    endStmt(writer);
+    writer.write("return size ? FudgeWire_bytes (buffer, FudgeString_getData (str), size) : buffer");
+    endStmt(writer);
+    endBlock(writer);
+    writer.write("#if !FUDGE_STRING_DIRECT");
+    writer.newLine();
+    comment(writer, "Strings are converted to UTF-8 as they are written, by the width of TCHAR for UTF-16 or UTF-32; an "
+        + "unpaired surrogate or invalid code point becomes U+FFFD");
+    writer.write("static FUDGEWIRE_INLINE fudge_i32 FudgeWire_codePoint (const TCHAR *str, size_t length, size_t *i)");
+    beginBlock(writer);
+    writer.write("fudge_i32 c = (fudge_i32)str[(*i)++]");
+    endStmt(writer);
+    writer.write("if (sizeof (TCHAR) == 2)");
+    beginBlock(writer);
+    writer.write("c &= 0xFFFF");
+    endStmt(writer);
+    writer.write("if ((c >= 0xD800) && (c < 0xDC00) && (*i < length) && ((str[*i] & 0xFC00) == 0xDC00)) return 0x10000 + ((c - 0xD800) << 10) + (str[(*i)++] & 0x3FF)");
+    endStmt(writer);
+    endBlock(writer);
+    writer.write("return ((c < 0) || (c > 0x10FFFF) || ((c >= 0xD800) && (c < 0xE000))) ? 0xFFFD : c");
+    endStmt(writer);
+    endBlock(writer);
+    writer.write("static FUDGEWIRE_INLINE size_t FudgeWire_utf8Size (fudge_i32 c)");
+    beginBlock(writer);
+    writer.write("return (c < 0x80) ? 1 : ((c < 0x800) ? 2 : ((c < 0x10000) ? 3 : 4))");
+    endStmt(writer);
+    endBlock(writer);
+    writer.write("#endif /* if !FUDGE_STRING_DIRECT */");
+    writer.newLine();
+    writer.write("static FUDGEWIRE_INLINE size_t FudgeWire_stringSize (const TCHAR *str)");
+    beginBlock(writer);
+    writer.write("#if FUDGE_STRING_DIRECT");
+    writer.newLine();
+    writer.write("return FUDGE_STRING_LENGTH (str) * sizeof (TCHAR)");
+    endStmt(writer);
+    writer.write("#else /* if FUDGE_STRING_DIRECT */");
+    writer.newLine();
+    writer.write("const size_t length = FUDGE_STRING_LENGTH (str)");
+    endStmt(writer);
+    writer.write("size_t i = 0, size = 0");
+    endStmt(writer);
+    writer.write("while (i < length) size += FudgeWire_utf8Size (FudgeWire_codePoint (str, length, &i))");
+    endStmt(writer);
+    writer.write("return size");
+    endStmt(writer);
+    writer.write("#endif /* if FUDGE_STRING_DIRECT */");
+    writer.newLine();
+    endBlock(writer);
+    writer.write("static FUDGEWIRE_INLINE fudge_byte *FudgeWire_string (fudge_byte *buffer, fudge_byte prefix, fudge_i16 ordinal, const char *name, size_t nameLength, const TCHAR *str)");
+    beginBlock(writer);
+    writer.write("#if FUDGE_STRING_DIRECT");
+    writer.newLine();
+    writer.write("const size_t size = FUDGE_STRING_LENGTH (str) * sizeof (TCHAR)");
+    endStmt(writer);
+    writer.write("return FudgeWire_bytes (FudgeWire_variable (buffer, prefix, " + FudgeWireType.STRING_TYPE_ID
+        + ", ordinal, name, nameLength, size), str, size)");
+    endStmt(writer);
+    writer.write("#else /* if FUDGE_STRING_DIRECT */");
+    writer.newLine();
+    writer.write("const size_t length = FUDGE_STRING_LENGTH (str)");
+    endStmt(writer);
+    writer.write("size_t i = 0");
+    endStmt(writer);
+    writer.write("fudge_i32 c");
+    endStmt(writer);
+    writer.write("buffer = FudgeWire_variable (buffer, prefix, " + FudgeWireType.STRING_TYPE_ID
+        + ", ordinal, name, nameLength, FudgeWire_stringSize (str))");
+    endStmt(writer);
+    writer.write("while (i < length)");
+    beginBlock(writer); // while
+    writer.write("c = FudgeWire_codePoint (str, length, &i)");
+    endStmt(writer);
+    writer.write("switch (FudgeWire_utf8Size (c))");
+    beginBlock(writer); // switch
+    writer.write("case 1 : *buffer++ = (fudge_byte)c; break");
+    endStmt(writer);
+    writer.write("case 2 : *buffer++ = (fudge_byte)(0xC0 | (c >> 6)); break");
+    endStmt(writer);
+    writer.write("case 3 : *buffer++ = (fudge_byte)(0xE0 | (c >> 12)); *buffer++ = (fudge_byte)(0x80 | ((c >> 6) & 0x3F)); break");
+    endStmt(writer);
+    writer.write("default : *buffer++ = (fudge_byte)(0xF0 | (c >> 18)); *buffer++ = (fudge_byte)(0x80 | ((c >> 12) & 0x3F)); *buffer++ = (fudge_byte)(0x80 | ((c >> 6) & 0x3F)); break");
+    endStmt(writer);
+    endBlock(writer); // switch
+    writer.write("if (c >= 0x80) *buffer++ = (fudge_byte)(0x80 | (c & 0x3F))");
+    endStmt(writer);
+    endBlock(writer); // while
+    writer.write("return buffer");
+    endStmt(writer);
+    writer.write("#endif /* if FUDGE_STRING_DIRECT */");
+    writer.newLine();
+    endBlock(writer);
+    comment(writer, "Encodes a message with the Fudge library, for the messages with fields that can't be written "
+        + "directly. The fields follow an envelope header in the returned buffer, which the caller must free");
+    writer.write("static FUDGEWIRE_INLINE fudge_byte *FudgeWire_encodeMsg (FudgeMsg msg, size_t *size)");
+    beginBlock(writer);
+    writer.write("FudgeMsgEnvelope envelope");
+    endStmt(writer);
+    writer.write("fudge_byte *bytes = NULL");
+    endStmt(writer);
+    writer.write("fudge_i32 numBytes");
+    endStmt(writer);
+    writer.write("if (FudgeMsgEnvelope_create (&envelope, 0, 0, 0, msg) != FUDGE_OK) return NULL");
+    endStmt(writer);
+    writer.write("if (FudgeCodec_encodeMsg (envelope, &bytes, &numBytes) == FUDGE_OK) *size = (size_t)numBytes - 8");
+    endStmt(writer);
+    writer.write("else bytes = NULL");
+    endStmt(writer);
+    writer.write("FudgeMsgEnvelope_release (envelope)");
+    endStmt(writer);
+    writer.write("return bytes");
+    endStmt(writer);
+    endBlock(writer);
+    writer.write("#endif /* ifndef " + WIRE_RUNTIME_GUARD + " */");
+    writer.newLine();
+  }
+
+  private static int varWidth(final int size) {
+    if (size <= 255) {
+      return 1;
+    } else if (size <= 32767) {
+      return 2;
+    } else {
+      return 4;
+    }
+  }
+
+  private static String prefixLiteral(final int prefix) {
+    return (prefix != 0) ? "0x" + Integer.toHexString(prefix) : "0";
+  }
+
+  /**
+   * Returns the number of bytes written by the fixed width types, or -1 for the variable width ones.
+   */
+  private int fixedWireWidth(final FieldType type) {
+    if (type instanceof FieldType.ArrayType) {
+      switch (type.getFudgeFieldType()) {
+        case FudgeWireType.BYTE_ARRAY_4_TYPE_ID:
+        case FudgeWireType.BYTE_ARRAY_8_TYPE_ID:
+        case FudgeWireType.BYTE_ARRAY_16_TYPE_ID:
+        case FudgeWireType.BYTE_ARRAY_20_TYPE_ID:
+        case FudgeWireType.BYTE_ARRAY_32_TYPE_ID:
+        case FudgeWireType.BYTE_ARRAY_64_TYPE_ID:
+        case FudgeWireType.BYTE_ARRAY_128_TYPE_ID:
+        case FudgeWireType.BYTE_ARRAY_256_TYPE_ID:
+        case FudgeWireType.BYTE_ARRAY_512_TYPE_ID:
+          return ((FieldType.ArrayType) type).getFixedLength();
+        default:
+          return -1;
+      }
+    } else if (type instanceof FieldType.MessageType) {
+      return -1;
+    } else if (type instanceof FieldType.EnumType) {
+      return (((FieldType.EnumType) type).getEnumDefinition().getType() == EnumDefinition.Type.INTEGER_ENCODED) ? 4
+          : -1;
+    } else {
+      switch (type.getFudgeFieldType()) {
+        case FudgeWireType.INDICATOR_TYPE_ID:
+          return 0;
+        case FudgeWireType.BOOLEAN_TYPE_ID:
+        case FudgeWireType.BYTE_TYPE_ID:
+          return 1;
+        case FudgeWireType.SHORT_TYPE_ID:
+          return 2;
+        case FudgeWireType.INT_TYPE_ID:
+        case FudgeWireType.FLOAT_TYPE_ID:
+          return 4;
+        case FudgeWireType.LONG_TYPE_ID:
+        case FudgeWireType.DOUBLE_TYPE_ID:
+          return 8;
+        default:
+          return -1;
+      }
+    }
+  }
+
+  private FieldType underlyingType(FieldType type) {
+    while (type instanceof FieldType.UserType) {
+      type = ((FieldType.UserType) type).getTypeDefinition().getUnderlyingType();
+    }
+    return type;
+  }
+
+  /**
+   * Returns the number of array length/index variables (n0, n1, ...) the buffer functions need for a type.
+   */
+  private int wireIndexCount(FieldType type, final int arrayDepth) {
+    type = underlyingType(type);
+    if (type instanceof FieldType.ArrayType) {
+      final FieldType.ArrayType array = (FieldType.ArrayType) type;
+      if (type.getFudgeFieldType() == FudgeWireType.SUB_MESSAGE_TYPE_ID) {
+        return Math.max(arrayDepth + 1, wireIndexCount(array.getBaseType(), arrayDepth + 1));
+      } else if ((fixedWireWidth(type) < 0) && !array.isFixedLength()) {
+        return arrayDepth + 1;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the number of sub-message marker variables (m0, m1, ...) the buffer functions need for a type.
+   */
+  private int wireMarkCount(FieldType type, final int arrayDepth) {
+    type = underlyingType(type);
+    if (type instanceof FieldType.ArrayType) {
+      if (type.getFudgeFieldType() == FudgeWireType.SUB_MESSAGE_TYPE_ID) {
+        return Math.max(arrayDepth + 1, wireMarkCount(((FieldType.ArrayType) type).getBaseType(), arrayDepth + 1));
+      }
+    } else if ((type instanceof FieldType.MessageType) && !(type instanceof FieldType.AnonMessageType)) {
+      return arrayDepth + 1;
+    }
+    return 0;
+  }
+
+  private String wireArrayElementType(final FieldType.ArrayType type) {
+    switch (type.getFudgeFieldType()) {
+      case FudgeWireType.SHORT_ARRAY_TYPE_ID:
+        return "i16";
+      case FudgeWireType.INT_ARRAY_TYPE_ID:
+        return "i32";
+      case FudgeWireType.LONG_ARRAY_TYPE_ID:
+        return "i64";
+      case FudgeWireType.FLOAT_ARRAY_TYPE_ID:
+        return "f32";
+      case FudgeWireType.DOUBLE_ARRAY_TYPE_ID:
+        return "f64";
+      default:
+        return null;
+    }
+  }
+
+  private int wireArrayElementWidth(final FieldType.ArrayType type) {
+    switch (type.getFudgeFieldType()) {
+      case FudgeWireType.SHORT_ARRAY_TYPE_ID:
+        return 2;
+      case FudgeWireType.INT_ARRAY_TYPE_ID:
+      case FudgeWireType.FLOAT_ARRAY_TYPE_ID:
+        return 4;
+      case FudgeWireType.LONG_ARRAY_TYPE_ID:
+      case FudgeWireType.DOUBLE_ARRAY_TYPE_ID:
+        return 8;
+      default:
+        return 1;
+    }
+  }
+
+  private boolean isVariableByteArray(final FieldType type) {
+    return (type.getFudgeFieldType() == FudgeWireType.BYTE_ARRAY_TYPE_ID)
+        || (type.getFudgeFieldType() == FudgeWireType.BYTE_TYPE_ID);
+  }
+
+  private String wireArrayLength(final IndentWriter writer, final FieldType.ArrayType type, final String value,
+      final int arrayDepth) throws IOException {
+    if (type.isFixedLength()) {
+      return Integer.toString(type.getFixedLength());
+    }
+    withArrayLength(writer, value, arrayDepth);
+    return "n" + arrayDepth;
+  }
+
+  /**
+   * Tests whether a type can be written by the FudgeWire helpers. Anonymous messages and the date/time types are
+   * only encoded by the Fudge library.
+   */
+  private boolean isDirectType(FieldType type) {
+    type = underlyingType(type);
+    if (type instanceof FieldType.ArrayType) {
+      return isDirectType(((FieldType.ArrayType) type).getBaseType());
+    } else if (type instanceof FieldType.AnonMessageType) {
+      return false;
+    } else if ((type instanceof FieldType.MessageType) || (type instanceof FieldType.EnumType)) {
+      return true;
+    } else {
+      switch (type.getFudgeFieldType()) {
+        case FudgeWireType.DATE_TYPE_ID:
+        case FudgeWireType.DATETIME_TYPE_ID:
+        case FudgeWireType.TIME_TYPE_ID:
+          return false;
+        default:
+          return true;
+      }
+    }
+  }
+
+  /**
+   * Tests whether the buffer functions for a message can write its fields directly, or must build a FudgeMsg and
+   * have the Fudge library encode it. Inherited fields are written by the parent's functions so aren't considered.
+   */
+  private boolean isDirectMessage(final MessageDefinition message) {
+    for (FieldDefinition field : message.getFieldDefinitions()) {
+      if ((field.getOverride() == null) && !isDirectType(field.getType())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes the body of a buffer function for a message that can't be written directly. The fields, including the
+   * class header and any parent's fields, are encoded by the Fudge library and follow its 8 byte envelope header.
+   */
+  private void writeMessageViaFudgeMsg(final IndentWriter writer, final MessageDefinition message,
+      final boolean toBuffer) throws IOException {
+    writer.write("FudgeMsg msg");
+    endStmt(writer);
+    writer.write("fudge_byte *bytes");
+    endStmt(writer);
+    writer.write("size_t size = 0");
+    endStmt(writer);
+    writer.write("if (FudgeMsg_create (&msg) != FUDGE_OK) return " + (toBuffer ? "buffer" : "0"));
+    endStmt(writer);
+    writer.write("if ((" + getIdentifier(message)
+        + "_toFudgeMsgImpl (ptr, msg) == FUDGE_OK) && ((bytes = FudgeWire_encodeMsg (msg, &size)) != NULL))");
+    beginBlock(writer); // if
+    if (toBuffer) {
+      writer.write("memcpy (buffer, bytes + 8, size)");
+      endStmt(writer);
+      writer.write("buffer += size");
+      endStmt(writer);
+    }
+    writer.write("free (bytes)");
+    endStmt(writer);
+    endBlock(writer); // if
+    writer.write("FudgeMsg_release (msg)");
+    endStmt(writer);
+    writer.write("return " + (toBuffer ? "buffer" : "size"));
+    endStmt(writer);
+  }
+
+  /**
+   * Writes statements which add the encoded size of a field to the "size" variable.
+   */
+  private void writeEncodedSizeValue(final IndentWriter writer, final int header, final String value,
+      FieldType type, final int arrayDepth) throws IOException {
+    type = underlyingType(type);
+    final int width = fixedWireWidth(type);
+    if (width >= 0) {
+      if (type.getFudgeFieldType() == FudgeWireType.INDICATOR_TYPE_ID) {
+        writer.write("if (" + value + ") ");
+      }
+      writer.write("size += " + (header + width));
+    } else if (type instanceof FieldType.MessageType) {
+      writer.write("size += " + (header + 4) + " + "
+          + getIdentifier(((FieldType.MessageType) type).getMessageDefinition()) + "_encodedSizeImpl (" + value + ")");
+    } else if (type instanceof FieldType.ArrayType) {
+      final FieldType.ArrayType array = (FieldType.ArrayType) type;
+      if (type.getFudgeFieldType() == FudgeWireType.SUB_MESSAGE_TYPE_ID) {
+        writer.write("size += " + (header + 4));
+        endStmt(writer);
+        writer.write("for (n" + arrayDepth + " = 0; "
+            + isNullCheck(safeIndex(value, "n" + arrayDepth), array.getBaseType()) + "; n" + arrayDepth + "++)");
+        beginBlock(writer); // for
+        writeEncodedSizeValue(writer, 2, safeIndex(value, "n" + arrayDepth), array.getBaseType(), arrayDepth + 1);
+        endBlock(writer); // for
+        return;
+      }
+      writer.write("size += FudgeWire_varSize (" + header + ", " + wireArrayLength(writer, array, value, arrayDepth)
+          + " * " + wireArrayElementWidth(array) + ")");
+    } else if (type instanceof FieldType.EnumType) {
+      writer.write("size += FudgeWire_varSize (" + header + ", FudgeWire_fudgeStringSize ("
+          + getIdentifier(((FieldType.EnumType) type).getEnumDefinition()) + "_toFudgeEncoding (" + value + ")))");
+    } else {
+      switch (type.getFudgeFieldType()) {
+        case FudgeWireType.STRING_TYPE_ID:
+          writer.write("size += FudgeWire_varSize (" + header + ", FudgeWire_stringSize (" + value + "))");
+          break;
+        default:
+          throw new IllegalStateException("type '" + type + "' is not an expected type (fudge field type "
+              + type.getFudgeFieldType() + ")");
+      }
+    }
+    endStmt(writer);
+  }
+
+  /**
+   * Writes statements which encode a field at "buffer", advancing it. The key is the prefix bits for the
+   * ordinal and/or name followed by the ordinal, name and name length parameters for the FudgeWire helpers.
+   */
+  private void writeToBufferValue(final IndentWriter writer, final int prefix, final String key, final String value,
+      FieldType type, final int arrayDepth) throws IOException {
+    type = underlyingType(type);
+    final int width = fixedWireWidth(type);
+    final String fixedKey = "buffer = FudgeWire_fixed (buffer, " + prefixLiteral(prefix) + ", "
+        + type.getFudgeFieldType() + ", " + key + ")";
+    if (type instanceof FieldType.MessageType) {
+      writer.write("buffer = m" + arrayDepth + " = FudgeWire_subMsgBegin (buffer, " + prefixLiteral(prefix) + ", "
+          + key + ")");
+      endStmt(writer);
+      writer.write("buffer = FudgeWire_subMsgEnd (m" + arrayDepth + ", "
+          + getIdentifier(((FieldType.MessageType) type).getMessageDefinition()) + "_toBufferImpl (" + value
+          + ", buffer))");
+    } else if (type instanceof FieldType.ArrayType) {
+      final FieldType.ArrayType array = (FieldType.ArrayType) type;
+      if (type.getFudgeFieldType() == FudgeWireType.SUB_MESSAGE_TYPE_ID) {
+        writer.write("buffer = m" + arrayDepth + " = FudgeWire_subMsgBegin (buffer, " + prefixLiteral(prefix) + ", "
+            + key + ")");
+        endStmt(writer);
+        writer.write("for (n" + arrayDepth + " = 0; "
+            + isNullCheck(safeIndex(value, "n" + arrayDepth), array.getBaseType()) + "; n" + arrayDepth + "++)");
+        beginBlock(writer); // for
+        writeToBufferValue(writer, 0, "0, NULL, 0", safeIndex(value, "n" + arrayDepth), array.getBaseType(),
+            arrayDepth + 1);
+        endBlock(writer); // for
+        writer.write("buffer = FudgeWire_subMsgEnd (m" + arrayDepth + ", buffer)");
+      } else if (width >= 0) {
+        writer.write(fixedKey);
+        endStmt(writer);
+        writer.write("buffer = FudgeWire_bytes (buffer, " + value + ", " + width + ")");
+      } else {
+        final String length = wireArrayLength(writer, array, value, arrayDepth);
+        final String element = wireArrayElementType(array);
+        writer.write("buffer = FudgeWire_variable (buffer, " + prefixLiteral(prefix) + ", "
+            + (isVariableByteArray(type) ? FudgeWireType.BYTE_ARRAY_TYPE_ID : type.getFudgeFieldType()) + ", " + key
+            + ", " + length + " * " + wireArrayElementWidth(array) + ")");
+        endStmt(writer);
+        if (element != null) {
+          writer.write("buffer = FudgeWire_" + element + "Array (buffer, (const fudge_" + element + "*)" + value + ", "
+              + length + ")");
+        } else {
+          writer.write("buffer = FudgeWire_bytes (buffer, " + value + ", " + length + ")");
+        }
+      }
+    } else if (type instanceof FieldType.EnumType) {
+      final EnumDefinition enumDefinition = ((FieldType.EnumType) type).getEnumDefinition();
+      if (enumDefinition.getType() == EnumDefinition.Type.INTEGER_ENCODED) {
+        writer.write(fixedKey);
+        endStmt(writer);
+        writer.write("buffer = FudgeWire_i32 (buffer, " + getIdentifier(enumDefinition) + "_toFudgeEncoding (" + value
+            + "))");
+      } else {
+        writer.write("buffer = FudgeWire_fudgeString (buffer, " + prefixLiteral(prefix) + ", " + key + ", "
+            + getIdentifier(enumDefinition) + "_toFudgeEncoding (" + value + "))");
+      }
+    } else {
+      switch (type.getFudgeFieldType()) {
+        case FudgeWireType.INDICATOR_TYPE_ID:
+          writer.write("if (" + value + ") " + fixedKey);
+          break;
+        case FudgeWireType.BOOLEAN_TYPE_ID:
+          writer.write(fixedKey);
+          endStmt(writer);
+          writer.write("*buffer++ = (fudge_byte)(" + value + " ? 1 : 0)");
+          break;
+        case FudgeWireType.BYTE_TYPE_ID:
+          writer.write(fixedKey);
+          endStmt(writer);
+          writer.write("*buffer++ = (fudge_byte)" + value);
+          break;
+        case FudgeWireType.SHORT_TYPE_ID:
+          writer.write(fixedKey);
+          endStmt(writer);
+          writer.write("buffer = FudgeWire_i16 (buffer, " + value + ")");
+          break;
+        case FudgeWireType.INT_TYPE_ID:
+          writer.write(fixedKey);
+          endStmt(writer);
+          writer.write("buffer = FudgeWire_i32 (buffer, " + value + ")");
+          break;
+        case FudgeWireType.LONG_TYPE_ID:
+          writer.write(fixedKey);
+          endStmt(writer);
+          writer.write("buffer = FudgeWire_i64 (buffer, " + value + ")");
+          break;
+        case FudgeWireType.FLOAT_TYPE_ID:
+          writer.write(fixedKey);
+          endStmt(writer);
+          writer.write("buffer = FudgeWire_f32 (buffer, " + value + ")");
+          break;
+        case FudgeWireType.DOUBLE_TYPE_ID:
+          writer.write(fixedKey);
+          endStmt(writer);
+          writer.write("buffer = FudgeWire_f64 (buffer, " + value + ")");
+          break;
+        case FudgeWireType.STRING_TYPE_ID:
+          writer.write("buffer = FudgeWire_string (buffer, " + prefixLiteral(prefix) + ", " + key + ", " + value + ")");
+          break;
+        default:
+          throw new IllegalStateException("type '" + type + "' is not an expected type (fudge field type "
+              + type.getFudgeFieldType() + ")");
+      }
+    }
+    endStmt(writer);
+  }
+
+  private void writeWireLocals(final IndentWriter writer, final MessageDefinition message, final boolean marks)
+      throws IOException {
+    boolean repeated = false;
+    int indexes = 0;
+    int markers = 0;
+    for (FieldDefinition field : message.getFieldDefinitions()) {
+      if (field.getOverride() != null) {
+        continue;
+      }
+      repeated |= field.isRepeated();
+      indexes = Math.max(indexes, wireIndexCount(field.getType(), 0));
+      markers = Math.max(markers, wireMarkCount(field.getType(), 0));
+    }
+    if (repeated) {
+      writer.write("int i");
+      endStmt(writer);
+    }
+    if (indexes > 0) {
+      writer.write("size_t n0");
+      for (int i = 1; i < indexes; i++) {
+        writer.write(", n" + i);
+      }
+      endStmt(writer);
+    }
+    if (marks && (markers > 0)) {
+      writer.write("fudge_byte *m0");
+      for (int i = 1; i < markers; i++) {
+        writer.write(", *m" + i);
+      }
+      endStmt(writer);
+    }
+  }
+
+  /**
+   * Writes the statements to process each field of a message for the direct buffer functions.
+   */
+  private void writeWireFields(final IndentWriter writer, final MessageDefinition message, final boolean toBuffer)
+      throws IOException {
+    for (FieldDefinition field : message.getFieldDefinitions()) {
+      if (field.getOverride() != null) {
+        continue;
+      }
+      final int prefix;
+      final int header;
+      final String key;
+      if (field.getOrdinal() != null) {
+        prefix = 0x10;
+        header = 4;
+        key = field.getOrdinal() + ", NULL, 0";
+      } else {
+        final byte[] utf8 = UTF8.encode(field.getName());
+        prefix = 0x08;
+        header = 3 + utf8.length;
+        key = "0, \"" + utf8Literal(utf8) + "\", " + utf8.length;
+      }
+      String value = "ptr->" + privateFieldName(field);
+      if (field.isRepeated()) {
+        writer.write("for (i = 0; i < ptr->fudgeCount" + camelCaseFieldName(field) + "; i++)");
+        beginBlock(writer); // for
+        value = value + "[i]";
+      }
+      if (isPointerType(field.getType())) {
+        writer.write("if (" + value + ")");
+        beginBlock(writer); // if
+      } else if (!field.isRepeated() && !field.isRequired()) {
+        writer.write("if (" + value + ")");
+        beginBlock(writer); // if
+        value = "*" + value;
+      }
+      if (toBuffer) {
+        writeToBufferValue(writer, prefix, key, value, field.getType(), 0);
+      } else {
+        writeEncodedSizeValue(writer, header, value, field.getType(), 0);
+      }
+      if (isPointerType(field.getType()) || (!field.isRepeated() && !field.isRequired())) {
+        endBlock(writer); // if
+      }
+      if (field.isRepeated()) {
+        endBlock(writer); // for
+      }
+    }
+  }
+
+  private void writeMessageEncodedSize(final IndentWriter writer, final MessageDefinition message) throws IOException {
+    final byte[] className = UTF8.encode(message.getIdentifier());
+    if (!message.isAbstract()) {
+      // Public encodedSize function
+      writer.write("FudgeStatus " + getIdentifier(message) + "_encodedSize (struct _" + getIdentifier(message)
+          + " *ptr, size_t *size)");
+      beginBlock(writer); // encodedSize
+      writer.write("if (!ptr || !size) return FUDGE_NULL_POINTER");
+      endStmt(writer);
+      comment(writer, "Envelope header is 8 bytes");
+      writer.write("*size = 8 + " + getIdentifier(message) + "_encodedSizeImpl (ptr)");
+      endStmt(writer);
+      writer.write("return FUDGE_OK");
+      endStmt(writer);
+      endBlock(writer); // encodedSize
+    }
+    // Private encodedSize function
+    writer.write("size_t " + getIdentifier(message) + "_encodedSizeImpl (struct _" + getIdentifier(message) + " *ptr)");
+    beginBlock(writer); // encodedSizeImpl
+    if (!isDirectMessage(message)) {
+      writeMessageViaFudgeMsg(writer, message, false);
+      endBlock(writer); // encodedSizeImpl
+      return;
+    }
+    writeWireLocals(writer, message, false);
+    // the key is 4 bytes; an identifier follows it as a 4 byte int, or a name as its length and bytes
+    writer.write("size_t size = " + (isClassIds() ? 8 : (4 + varWidth(className.length) + className.length)));
+    endStmt(writer);
+    if (message.getExtends() != null) {
+      writer.write("size += " + getIdentifier(message.getExtends()) + "_encodedSizeImpl (&ptr->fudgeParent)");
+      endStmt(writer);
+    }
+    writeWireFields(writer, message, false);
+    writer.write("return size");
+    endStmt(writer);
+    endBlock(writer); // encodedSizeImpl
+  }
+
+  private void writeMessageToBuffer(final Compiler.Context context, final IndentWriter writer,
+      final MessageDefinition message) throws IOException {
+    final byte[] className = UTF8.encode(message.getIdentifier());
+    if (!message.isAbstract()) {
+      // Public toBuffer function
+      writer.write("FudgeStatus " + getIdentifier(message) + "_toBuffer (struct _" + getIdentifier(message)
+          + " *ptr, fudge_byte *buffer, size_t bufferSize, size_t *written)");
+      beginBlock(writer); // toBuffer
+      writer.write("size_t size");
+      endStmt(writer);
+      writer.write("if (!ptr || !buffer || !written) return FUDGE_NULL_POINTER");
+      endStmt(writer);
+      writer.write("*written = size = 8 + " + getIdentifier(message) + "_encodedSizeImpl (ptr)");
+      endStmt(writer);
+      writer.write("if (size > bufferSize) return FUDGE_OUT_OF_BOUNDS");
+      endStmt(writer);
+      comment(writer, "Envelope header; no processing directives, schema version or taxonomy");
+      writer.write("buffer[0] = 0");
+      endStmt(writer);
+      writer.write("buffer[1] = 0");
+      endStmt(writer);
+      writer.write("FudgeWire_i32 (FudgeWire_i16 (buffer + 2, 0), (fudge_i32)size)");
+      endStmt(writer);
+      writer.write(getIdentifier(message) + "_toBufferImpl (ptr, buffer + 8)");
+      endStmt(writer);
+      writer.write("return FUDGE_OK");
+      endStmt(writer);
+      endBlock(writer); // toBuffer
+    }
+    // Private toBuffer function
+    writer.write("fudge_byte *" + getIdentifier(message) + "_toBufferImpl (struct _" + getIdentifier(message)
+        + " *ptr, fudge_byte *buffer)");
+    beginBlock(writer); // toBufferImpl
+    if (!isDirectMessage(message)) {
+      writeMessageViaFudgeMsg(writer, message, true);
+      endBlock(writer); // toBufferImpl
+      return;
+    }
+    writeWireLocals(writer, message, true);
+    if (isClassIds()) {
+      writer.write("buffer = FudgeWire_i32 (FudgeWire_fixed (buffer, 0x10, " + FudgeWireType.INT_TYPE_ID + ", "
+          + CodeGeneratorUtil.TYPE_ID_ORDINAL + ", NULL, 0), " + CodeGeneratorUtil.getTypeId(context, message) + ")");
+    } else {
+      writer.write("buffer = FudgeWire_bytes (FudgeWire_variable (buffer, 0x10, " + FudgeWireType.STRING_TYPE_ID
+          + ", 0, NULL, 0, " + className.length + "), \"" + utf8Literal(className) + "\", " + className.length + ")");
+    }
+    endStmt(writer);
+    if (message.getExtends() != null) {
+      writer.write("buffer = " + getIdentifier(message.getExtends()) + "_toBufferImpl (&ptr->fudgeParent, buffer)");
+      endStmt(writer);
+    }
+    writeWireFields(writer, message, true);
+    writer.write("return buffer");
+    endStmt(writer);
+    endBlock(writer); // toBufferImpl
+  }
+
   @Override
   public void writeClassImplementationConstructor(final Compiler.Context context, final MessageDefinition message,
       final IndentWriter writer) throws IOException {
+    if (isClassIds()) {
+      CodeGeneratorUtil.checkTypeId(context, message);
+    }
     writeMessageFree(writer, message);
     writeMessageFromFudgeMsg(writer, message);
-    writeMessageIsClass(writer, message);
+    writeMessageIsClass(context, writer, message);
     writeMessageToFudgeMsg(writer, message);
-    writeMessageAddClass(writer, message);
+    writeMessageAddClass(context, writer, message);
+    writeMessageEncodedSize(writer, message);
+    writeMessageToBuffer(context, writer, message);
   }
 
   @Override
@@ -1568,19 +2520,8 @@ import org.fudgemsg.wire.types.FudgeWireType;
         value = value.assignmentTo(context, FieldType.STRING_TYPE);
       }
       final byte[] utf8 = UTF8.encode(((LiteralValue.StringValue) value).get());
-      writer.write("static FudgeStringStatic _" + getIdentifier(enumDefinition) + "_" + entry.getKey() + " = { 0, \"");
-      for (int i = 0; i < utf8.length; i++) {
-        if (utf8[i] < 0) {
-          writer.write("\\" + Integer.toOctalString(256 + utf8[i]));
-        } else if (utf8[i] < 8) {
-          writer.write("\\00" + Integer.toOctalString(256 + utf8[i]));
-        } else if (utf8[i] < 32) {
-          writer.write("\\0" + Integer.toOctalString(256 + utf8[i]));
-        } else {
-          writer.write((char) utf8[i]);
-        }
-      }
-      writer.write("\", " + utf8.length + " }");
+      writer.write("static FudgeStringStatic _" + getIdentifier(enumDefinition) + "_" + entry.getKey() + " = { 0, \""
+          + utf8Literal(utf8) + "\", " + utf8.length + " }");
       endStmt(writer);
     }
     writer.write("FudgeString " + getIdentifier(enumDefinition) + "_toFudgeEncoding (" + getIdentifier(enumDefinition)
@@ -1612,6 +2553,22 @@ import org.fudgemsg.wire.types.FudgeWireType;
     endBlock(writer); // fromFudgeEncoding
   }
 
+  private String utf8Literal(final byte[] utf8) {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < utf8.length; i++) {
+      if (utf8[i] < 0) {
+        sb.append("\\" + Integer.toOctalString(256 + utf8[i]));
+      } else if (utf8[i] < 8) {
+        sb.append("\\00" + Integer.toOctalString(256 + utf8[i]));
+      } else if (utf8[i] < 32) {
+        sb.append("\\0" + Integer.toOctalString(256 + utf8[i]));
+      } else {
+        sb.append((char) utf8[i]);
+      }
+    }
+    return sb.toString();
+  }
+
   @Override
   public void writeTaxonomyImplementationDeclaration(final Compiler.Context context,
       final TaxonomyDefinition taxonomyDefinition, final IndentWriter writer) throws IOException {
@@ -16,11 +16,15 @@
 
 package org.fudgemsg.proto.c;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 
 import org.fudgemsg.proto.Compiler;
 import org.fudgemsg.proto.IndentWriter;
+import org.fudgemsg.proto.MessageDefinition;
+import org.fudgemsg.proto.TypeIdRegistry;
 import org.fudgemsg.proto.proto.ClassCodeGenerator;
 
 /**
@@ -32,13 +36,21 @@ public class CCodeGenerator extends ClassCodeGenerator {
 
   public static final String LANG_ID = "C";
 
+  private final CClassCode _classCode;
+
   private String _include = null;
   private String _cType = "char";
   private String _cSuffix = "ASCII";
   private String _cLength = "strlen";
+  private boolean _wireRuntimeUsed = false;
 
   public CCodeGenerator() {
-    super(CClassCode.INSTANCE);
+    this(new CClassCode());
+  }
+
+  private CCodeGenerator(final CClassCode classCode) {
+    super(classCode);
+    _classCode = classCode;
   }
 
   protected void setInclude(final String include) {
@@ -150,6 +162,47 @@ public class CCodeGenerator extends ClassCodeGenerator {
     writer.write("#endif /* ifndef FudgeString_copyTo */");
     writer.newLine();
     writeDefineIfNDef(writer, "FUDGE_STRING_LENGTH", " " + getCLength());
+    // ASCII and UTF8 strings can be copied straight to the wire
+    writeDefineIfNDef(writer, "FUDGE_STRING_DIRECT", (getCSuffix().equals("ASCII") || getCSuffix().equals("UTF8")) ? " 1"
+        : " 0");
+  }
+
+  @Override
+  protected void writeClassImplementation(final Compiler.Context context, final MessageDefinition message,
+      final IndentWriter writer) throws IOException {
+    super.writeClassImplementation(context, message, writer);
+    _wireRuntimeUsed = true;
+  }
+
+  @Override
+  public void generationComplete(final Compiler.Context context, final File targetPath) {
+    super.generationComplete(context, targetPath);
+    if (_wireRuntimeUsed) {
+      _wireRuntimeUsed = false;
+      final File file = new File(targetPath, CClassCode.WIRE_RUNTIME_HEADER);
+      try {
+        if (context.getVerbosity() >= 2)
+          context.verboseMessage("Writing " + file);
+        final IndentWriter writer = createIndentWriter(new BufferedWriter(new FileWriter(file)));
+        try {
+          comment(writer, "Automatically created - do not modify");
+          _classCode.writeWireRuntime(writer);
+        } finally {
+          writer.close();
+        }
+      } catch (IOException e) {
+        context.error(null, e.getMessage());
+      }
+    }
+  }
+
+  @Override
+  public void setOption(Compiler compiler, String option) {
+    if (option.equals("classIds")) {
+      _classCode.setClassIds(true);
+    } else {
+      super.setOption(compiler, option);
+    }
   }
 
   @Override
@@ -162,6 +215,8 @@ public class CCodeGenerator extends ClassCodeGenerator {
       setCType(value);
     } else if (option.equals("include")) {
       setInclude(value);
+    } else if (option.equals("classIdRegistry")) {
+      compiler.setTypeIdRegistry(new TypeIdRegistry(new File(value)));
     } else {
       super.setOption(compiler, option, value);
     }
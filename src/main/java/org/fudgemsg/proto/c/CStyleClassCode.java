@@ -105,6 +105,13 @@ public abstract class CStyleClassCode extends DocumentedClassCode {
     writer.newLine ();
   }
   
+  /**
+   * Includes the header declaring a definition.
+   */
+  protected void includeHeader (final Definition definition, final IndentWriter writer) throws IOException {
+    importMessageDefinition (null, definition, writer);
+  }
+  
   private void importTypeDefinition (final FieldType type, final Set<Definition> imports, final IndentWriter writer) throws IOException {
     if (type instanceof FieldType.MessageType) {
       importMessageDefinition (imports, ((FieldType.MessageType)type).getMessageDefinition (), writer);
@@ -138,14 +145,19 @@ public abstract class CStyleClassCode extends DocumentedClassCode {
   @Override
   public void beginClassImplementationDeclaration (final Compiler.Context context, final MessageDefinition message, final IndentWriter writer) throws IOException {
     super.beginClassImplementationDeclaration (context, message, writer);
-    importMessageDefinition (null, message, writer);
+    // the implementation of the first inner enum, written before this, will have included the header
+    if (message.getEnumDefinitions ().isEmpty ()) importMessageDefinition (null, message, writer);
   }
 
   @Override
   public void writeEnumImplementationDeclaration (final Compiler.Context context, final EnumDefinition enumDefinition, final IndentWriter writer) throws IOException {
     super.writeEnumImplementationDeclaration (context, enumDefinition, writer);
     final MessageDefinition outerMessage = enumDefinition.getOuterMessage ();
-    importMessageDefinition (null, (outerMessage != null) ? outerMessage : enumDefinition, writer);
+    if (outerMessage == null) {
+      importMessageDefinition (null, enumDefinition, writer);
+    } else if (outerMessage.getEnumDefinitions ().get (0) == enumDefinition) {
+      importMessageDefinition (null, outerMessage, writer);
+    }
   }
   
 }
\ No newline at end of file
@@ -16,101 +16,951 @@
 
 package org.fudgemsg.proto.cpp;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.fudgemsg.proto.CodeGeneratorUtil;
 import org.fudgemsg.proto.Compiler;
+import org.fudgemsg.proto.Definition;
 import org.fudgemsg.proto.EnumDefinition;
 import org.fudgemsg.proto.FieldDefinition;
+import org.fudgemsg.proto.FieldType;
 import org.fudgemsg.proto.IndentWriter;
+import org.fudgemsg.proto.LiteralValue;
 import org.fudgemsg.proto.MessageDefinition;
 import org.fudgemsg.proto.TaxonomyDefinition;
 import org.fudgemsg.proto.c.CBlockCode;
-import org.fudgemsg.proto.c.CLiteralCode;
 import org.fudgemsg.proto.c.CStyleClassCode;
+import org.fudgemsg.wire.types.FudgeWireType;
 
 /**
- * Code generator for the C++ Fudge implementation
- * 
+ * Code generator for the C++ Fudge implementation. Messages become value types with move semantics that encode
+ * directly into a caller supplied byte buffer and decode in a single pass over the encoded fields. The encoding
+ * primitives are written inline into each header (see {@link CPPWireRuntime}) so only C++17 is required.
+ * <p>
+ * Decoded strings are copied out of the buffer once; a message is a value that outlives the buffer it was read from,
+ * so it can't hold views into it.
+ *
  * @author Andrew
  */
 /* package */ class CPPClassCode extends CStyleClassCode {
-  
+
   /* package */ static final CPPClassCode INSTANCE = new CPPClassCode ();
-  
+
+  private static final String BUFFER_TYPE = "fudge_wire::Buffer";
+
   private CPPClassCode () {
-    super (blockCodeDelegate (new CBlockCode (literalCodeDelegate (CLiteralCode.INSTANCE))), ".H", ".CPP");
+    super (blockCodeDelegate (new CBlockCode (literalCodeDelegate (CPPLiteralCode.INSTANCE))), ".H", ".CPP");
+  }
+
+  private static FieldType underlyingType (FieldType type) {
+    while (type instanceof FieldType.UserType) {
+      type = ((FieldType.UserType)type).getTypeDefinition ().getUnderlyingType ();
+    }
+    return type;
+  }
+
+  private static boolean isAnonymousMessage (final FieldType type) {
+    return (type instanceof FieldType.AnonMessageType) || ((type instanceof FieldType.MessageType) && (((FieldType.MessageType)type).getMessageDefinition () == MessageDefinition.ANONYMOUS));
+  }
+
+  private static boolean isMessage (final FieldType type) {
+    return (type instanceof FieldType.MessageType) && !isAnonymousMessage (type);
+  }
+
+  private static boolean isIntegerEnum (final FieldType type) {
+    return (type instanceof FieldType.EnumType) && (((FieldType.EnumType)type).getEnumDefinition ().getType () == EnumDefinition.Type.INTEGER_ENCODED);
+  }
+
+  /**
+   * Returns the C++ element type of a primitive that has a native Fudge array encoding, or null if arrays of the
+   * type must be encoded as a sub-message.
+   */
+  private static String primitiveArrayElement (FieldType type) {
+    type = underlyingType (type);
+    if ((type instanceof FieldType.ArrayType) || (type instanceof FieldType.MessageType) || (type instanceof FieldType.EnumType)) return null;
+    switch (type.getFudgeFieldType ()) {
+      case FudgeWireType.BYTE_TYPE_ID : return "int8_t";
+      case FudgeWireType.SHORT_TYPE_ID : return "int16_t";
+      case FudgeWireType.INT_TYPE_ID : return "int32_t";
+      case FudgeWireType.LONG_TYPE_ID : return "int64_t";
+      case FudgeWireType.FLOAT_TYPE_ID : return "float";
+      case FudgeWireType.DOUBLE_TYPE_ID : return "double";
+      default : return null;
+    }
+  }
+
+  private static String arrayTypeConstant (final String element) {
+    if (element.equals ("int16_t")) return "fudge_wire::TYPE_SHORT_ARRAY";
+    if (element.equals ("int32_t")) return "fudge_wire::TYPE_INT_ARRAY";
+    if (element.equals ("int64_t")) return "fudge_wire::TYPE_LONG_ARRAY";
+    if (element.equals ("float")) return "fudge_wire::TYPE_FLOAT_ARRAY";
+    return "fudge_wire::TYPE_DOUBLE_ARRAY";
+  }
+
+  /**
+   * Returns the C++ type holding a single value of the field type.
+   */
+  private String valueType (FieldType type) {
+    type = underlyingType (type);
+    if (type instanceof FieldType.ArrayType) {
+      return "std::vector<" + valueType (((FieldType.ArrayType)type).getBaseType ()) + ">";
+    } else if (isAnonymousMessage (type)) {
+      return "fudge_wire::Message";
+    } else if (type instanceof FieldType.MessageType) {
+      return "std::shared_ptr<const " + CPPLiteralCode.qualifiedName (((FieldType.MessageType)type).getMessageDefinition ()) + ">";
+    } else if (type instanceof FieldType.EnumType) {
+      return CPPLiteralCode.qualifiedName (((FieldType.EnumType)type).getEnumDefinition ());
+    }
+    switch (type.getFudgeFieldType ()) {
+      case FudgeWireType.INDICATOR_TYPE_ID : return "fudge_wire::Indicator";
+      case FudgeWireType.BOOLEAN_TYPE_ID : return "bool";
+      case FudgeWireType.BYTE_TYPE_ID : return "int8_t";
+      case FudgeWireType.SHORT_TYPE_ID : return "int16_t";
+      case FudgeWireType.INT_TYPE_ID : return "int32_t";
+      case FudgeWireType.LONG_TYPE_ID : return "int64_t";
+      case FudgeWireType.FLOAT_TYPE_ID : return "float";
+      case FudgeWireType.DOUBLE_TYPE_ID : return "double";
+      case FudgeWireType.STRING_TYPE_ID : return "std::string";
+      case FudgeWireType.DATE_TYPE_ID : return "fudge_wire::Date";
+      case FudgeWireType.TIME_TYPE_ID : return "fudge_wire::Time";
+      case FudgeWireType.DATETIME_TYPE_ID : return "fudge_wire::DateTime";
+      default : throw new IllegalStateException ("type '" + type + "' is not an expected type (fudge field type " + type.getFudgeFieldType () + ")");
+    }
+  }
+
+  private static boolean isIndicator (final FieldType type) {
+    final FieldType underlying = underlyingType (type);
+    return !(underlying instanceof FieldType.ArrayType) && !(underlying instanceof FieldType.MessageType) && !(underlying instanceof FieldType.EnumType) && (underlying.getFudgeFieldType () == FudgeWireType.INDICATOR_TYPE_ID);
+  }
+
+  private static boolean isString (final FieldType type) {
+    final FieldType underlying = underlyingType (type);
+    return !(underlying instanceof FieldType.ArrayType) && !(underlying instanceof FieldType.MessageType) && !(underlying instanceof FieldType.EnumType) && (underlying.getFudgeFieldType () == FudgeWireType.STRING_TYPE_ID);
+  }
+
+  /**
+   * Values that are expensive to copy are returned from accessors by reference.
+   */
+  private static boolean isReturnedByReference (final FieldType type) {
+    final FieldType underlying = underlyingType (type);
+    return (underlying instanceof FieldType.ArrayType) || (underlying instanceof FieldType.MessageType);
+  }
+
+  /**
+   * Fields that are not required and have no default are held in a std::optional so that presence is tracked
+   * without a heap allocation. Sub-messages are already nullable.
+   */
+  private static boolean isOptionalStorage (final FieldDefinition field) {
+    return !field.isRepeated () && !field.isRequired () && (field.getDefaultValue () == null) && !isMessage (underlyingType (field.getType ()));
+  }
+
+  private String storageType (final FieldDefinition field) {
+    final String type = valueType (field.getType ());
+    if (field.isRepeated ()) {
+      return "std::vector<" + type + ">";
+    } else if (isOptionalStorage (field)) {
+      return "std::optional<" + type + ">";
+    } else {
+      return type;
+    }
+  }
+
+  private String fieldKey (final FieldDefinition field) {
+    if (field.getOrdinal () != null) {
+      return field.getOrdinal () + ", {}";
+    } else {
+      return "-1, \"" + field.getName () + "\"";
+    }
+  }
+
+  private String enumFunction (final EnumDefinition enumDefinition, final String suffix) {
+    return CPPLiteralCode.qualifiedName (enumDefinition) + "_" + suffix;
+  }
+
+  private void beginNamespace (final Definition definition, final IndentWriter writer) throws IOException {
+    final String namespace = CPPLiteralCode.namespaceName (definition);
+    if (namespace != null) {
+      writer.write ("namespace " + namespace + " {");
+      writer.newLine ();
+    }
+  }
+
+  private void endNamespace (final Definition definition, final IndentWriter writer) throws IOException {
+    final String namespace = CPPLiteralCode.namespaceName (definition);
+    if (namespace != null) {
+      writer.write ("} // namespace " + namespace);
+      writer.newLine ();
+    }
+  }
+
+  @Override
+  public void writeHeaderFileHeader (final Compiler.Context context, final File targetFile, final IndentWriter writer) throws IOException {
+    super.writeHeaderFileHeader (context, targetFile, writer);
+    CPPWireRuntime.write (writer);
+  }
+
+  private void referencedDefinitions (FieldType type, final Set<Definition> definitions) {
+    type = underlyingType (type);
+    if (type instanceof FieldType.ArrayType) {
+      referencedDefinitions (((FieldType.ArrayType)type).getBaseType (), definitions);
+    } else if (isMessage (type)) {
+      definitions.add (((FieldType.MessageType)type).getMessageDefinition ());
+    } else if (type instanceof FieldType.EnumType) {
+      definitions.add (((FieldType.EnumType)type).getEnumDefinition ());
+    }
+  }
+
+  /**
+   * Forward declarations let messages that refer to each other be declared whatever order the headers are
+   * included in. Enums have a fixed underlying type so can be declared opaquely.
+   */
+  private void writeForwardDeclarations (final MessageDefinition message, final IndentWriter writer) throws IOException {
+    final Set<Definition> definitions = new LinkedHashSet<Definition> ();
+    for (FieldDefinition field : message.getFieldDefinitions ()) {
+      referencedDefinitions (field.getType (), definitions);
+    }
+    definitions.remove (message);
+    for (Definition definition : definitions) {
+      final String namespace = CPPLiteralCode.namespaceName (definition);
+      final String declaration = ((definition instanceof EnumDefinition) ? "enum class " + CPPLiteralCode.localName (definition) + " : int32_t" : "class " + CPPLiteralCode.localName (definition)) + ";";
+      if (namespace != null) {
+        writer.write ("namespace " + namespace + " { " + declaration + " }");
+      } else {
+        writer.write (declaration);
+      }
+      writer.newLine ();
+    }
   }
-  
+
   @Override
   public void beginClassHeaderDeclaration (final Compiler.Context context, final MessageDefinition message, final IndentWriter writer) throws IOException {
     super.beginClassHeaderDeclaration (context, message, writer);
-    comment (writer, "TODO begin class header declaration");
+    writeForwardDeclarations (message, writer);
+    beginNamespace (message, writer);
+    writer.write ("class " + CPPLiteralCode.localName (message));
+    if (message.getExtends () != null) {
+      writer.write (" : public " + CPPLiteralCode.qualifiedName (message.getExtends ()));
+    }
+    beginBlock (writer); // class
+    writer.write ("protected:");
+    writer.newLine ();
   }
-  
+
   @Override
   public void endClassHeaderDeclaration (final Compiler.Context context, final MessageDefinition message, final IndentWriter writer) throws IOException {
-    comment (writer, "TODO end class header declaration");
+    final String className = CPPLiteralCode.localName (message);
+    if (message.getExtends () == null) {
+      writer.write ("void appendTo (" + BUFFER_TYPE + " &buffer) const");
+      endStmt (writer);
+      writer.write (BUFFER_TYPE + " toBuffer () const");
+      endStmt (writer);
+    }
+    writer.write ("virtual void appendFieldsTo (" + BUFFER_TYPE + " &buffer) const");
+    endStmt (writer);
+    writer.write ("static " + className + " fromBuffer (const uint8_t *data, size_t size)");
+    endStmt (writer);
+    writer.write ("static " + className + " fromFields (const uint8_t *data, size_t size)");
+    endStmt (writer);
+    writer.write ("static std::shared_ptr<const " + className + "> fromFieldsPolymorphic (const uint8_t *data, size_t size)");
+    endStmt (writer);
+    writer.write ("protected:");
+    writer.newLine ();
+    writer.write ("virtual bool readField (const fudge_wire::Field &field)");
+    endStmt (writer);
+    endBlock (writer); // class
+    endStmt (writer);
+    endNamespace (message, writer);
   }
-  
+
   @Override
   public void writeClassHeaderAttribute (final Compiler.Context context, final FieldDefinition field, final IndentWriter writer) throws IOException {
-    comment (writer, "TODO class header attribute");
+    if (field.getOverride () != null) return;
+    writer.write (storageType (field) + " " + privateFieldName (field));
+    if (!field.isRepeated () && !isOptionalStorage (field)) {
+      // value initialise so that required fields are never indeterminate
+      writer.write (" {}");
+    }
+    endStmt (writer);
+  }
+
+  private void inlineMethod (final IndentWriter writer, final String signature, final String body) throws IOException {
+    writer.write (signature + " { " + body + " }");
+    writer.newLine ();
   }
-  
+
   @Override
   public void writeClassHeaderAccessor (final Compiler.Context context, final FieldDefinition field, final IndentWriter writer) throws IOException {
-    comment (writer, "TODO class header accessor");
+    if (field.getOverride () != null) return;
+    final String name = camelCaseFieldName (field);
+    final String attribute = privateFieldName (field);
+    final String type = valueType (field.getType ());
+    final boolean string = isString (field.getType ());
+    if (field.isRepeated ()) {
+      inlineMethod (writer, "const std::vector<" + type + "> &get" + name + " () const", "return " + attribute + ";");
+      inlineMethod (writer, "void set" + name + " (std::vector<" + type + "> value)", attribute + " = std::move (value);");
+      inlineMethod (writer, "void add" + name + " (" + type + " value)", attribute + ".push_back (std::move (value));");
+      inlineMethod (writer, "void clear" + name + " ()", attribute + ".clear ();");
+      return;
+    }
+    final boolean optional = isOptionalStorage (field);
+    final String value = optional ? attribute + ".value ()" : attribute;
+    if (optional) {
+      inlineMethod (writer, "bool has" + name + " () const", "return " + attribute + ".has_value ();");
+    } else if (!field.isRequired () && isMessage (underlyingType (field.getType ()))) {
+      inlineMethod (writer, "bool has" + name + " () const", "return " + attribute + " != nullptr;");
+    }
+    if (string) {
+      inlineMethod (writer, "std::string_view get" + name + " () const", "return " + value + ";");
+      if (optional) {
+        inlineMethod (writer, "void set" + name + " (std::string_view value)", "if (" + attribute + ") " + attribute + "->assign (value.data (), value.size ()); else " + attribute + ".emplace (value);");
+      } else {
+        inlineMethod (writer, "void set" + name + " (std::string_view value)", attribute + ".assign (value.data (), value.size ());");
+      }
+      inlineMethod (writer, "void set" + name + " (const char *value)", "set" + name + " (std::string_view (value));");
+      inlineMethod (writer, "void set" + name + " (std::string &&value)", attribute + " = std::move (value);");
+    } else {
+      if (isReturnedByReference (field.getType ())) {
+        inlineMethod (writer, "const " + type + " &get" + name + " () const", "return " + value + ";");
+      } else {
+        inlineMethod (writer, type + " get" + name + " () const", "return " + value + ";");
+      }
+      inlineMethod (writer, "void set" + name + " (" + type + " value)", attribute + (isReturnedByReference (field.getType ()) ? " = std::move (value);" : " = value;"));
+    }
+    if (!field.isRequired () && (optional || isMessage (underlyingType (field.getType ())))) {
+      inlineMethod (writer, "void clear" + name + " ()", attribute + ".reset ();");
+    }
+  }
+
+  /**
+   * Returns the parameters of the required field constructor; required fields without default values, including
+   * those of any super class unless a default has been supplied by an override.
+   */
+  private List<FieldDefinition> constructorParameters (final MessageDefinition message) {
+    final List<FieldDefinition> parameters = new ArrayList<FieldDefinition> ();
+    if (message.getExtends () != null) {
+      for (FieldDefinition field : constructorParameters (message.getExtends ())) {
+        if (defaultOverride (message, field) == null) {
+          parameters.add (field);
+        }
+      }
+    }
+    for (FieldDefinition field : message.getFieldDefinitions ()) {
+      if ((field.getOverride () == null) && field.isRequired () && (field.getDefaultValue () == null)) {
+        parameters.add (field);
+      }
+    }
+    return parameters;
+  }
+
+  private FieldDefinition defaultOverride (final MessageDefinition message, final FieldDefinition field) {
+    for (FieldDefinition override : message.getFieldDefinitions ()) {
+      if ((override.getOverride () != null) && (override.getDefaultValue () != null) && override.getName ().equals (field.getName ())) {
+        return override;
+      }
+    }
+    return null;
   }
-  
+
+  private String parameterType (final FieldDefinition field) {
+    final String type = valueType (field.getType ());
+    return field.isRepeated () ? "std::vector<" + type + ">" : type;
+  }
+
+  private String parameterList (final List<FieldDefinition> parameters) {
+    final StringBuilder sb = new StringBuilder ();
+    for (FieldDefinition field : parameters) {
+      if (sb.length () > 0) sb.append (", ");
+      sb.append (parameterType (field)).append (' ').append (localFieldName (field));
+    }
+    return sb.toString ();
+  }
+
   @Override
   public void writeClassHeaderConstructor (final Compiler.Context context, final MessageDefinition message, final IndentWriter writer) throws IOException {
-    comment (writer, "TODO class header constructor");
+    final String className = CPPLiteralCode.localName (message);
+    writer.write ("public:");
+    writer.newLine ();
+    writer.write ("static constexpr std::string_view CLASS_NAME = \"" + message.getIdentifier () + "\"");
+    endStmt (writer);
+    writer.write (className + " ()");
+    endStmt (writer);
+    final List<FieldDefinition> parameters = constructorParameters (message);
+    if (!parameters.isEmpty ()) {
+      writer.write (((parameters.size () == 1) ? "explicit " : "") + className + " (" + parameterList (parameters) + ")");
+      endStmt (writer);
+    }
+    writer.write (className + " (const " + className + " &) = default");
+    endStmt (writer);
+    writer.write (className + " (" + className + " &&) = default");
+    endStmt (writer);
+    writer.write (className + " &operator= (const " + className + " &) = default");
+    endStmt (writer);
+    writer.write (className + " &operator= (" + className + " &&) = default");
+    endStmt (writer);
+    writer.write ("virtual ~" + className + " () = default");
+    endStmt (writer);
   }
-  
+
+  private String enumValueIdentifier (final EnumDefinition enumDefinition, final String value) {
+    return CPPLiteralCode.localName (enumDefinition) + "::" + value;
+  }
+
   @Override
   public void writeEnumHeaderDeclaration (final Compiler.Context context, final EnumDefinition enumDefinition, final IndentWriter writer) throws IOException {
-    comment (writer, "TODO enum header declaration");
+    super.writeEnumHeaderDeclaration (context, enumDefinition, writer);
+    final String enumName = CPPLiteralCode.localName (enumDefinition);
+    beginNamespace (enumDefinition, writer);
+    writer.write ("enum class " + enumName + " : int32_t");
+    beginBlock (writer);
+    boolean first = true;
+    for (Map.Entry<String,LiteralValue> entry : enumDefinition.getElements ()) {
+      if (first) {
+        first = false;
+      } else {
+        writer.write (",");
+        writer.newLine ();
+      }
+      writer.write (entry.getKey ());
+      if (enumDefinition.getType () == EnumDefinition.Type.INTEGER_ENCODED) {
+        writer.write (" = " + ((LiteralValue.IntegerValue)entry.getValue ()).get ());
+      }
+    }
+    endBlock (writer);
+    endStmt (writer);
+    if (enumDefinition.getType () != EnumDefinition.Type.INTEGER_ENCODED) {
+      writer.write ("std::string_view " + enumName + "_toFudgeEncoding (" + enumName + " value)");
+      endStmt (writer);
+      writer.write (enumName + " " + enumName + "_fromFudgeEncoding (std::string_view value)");
+      endStmt (writer);
+    }
+    endNamespace (enumDefinition, writer);
   }
-  
+
   @Override
   public void writeTaxonomyHeaderDeclaration (final Compiler.Context context, final TaxonomyDefinition taxonomyDefinition, final IndentWriter writer) throws IOException {
-    comment (writer, "TODO taxonomy header declaration");
+    super.writeTaxonomyHeaderDeclaration (context, taxonomyDefinition, writer);
+    beginNamespace (taxonomyDefinition, writer);
+    writer.write ("class " + CPPLiteralCode.localName (taxonomyDefinition));
+    beginBlock (writer); // class
+    writer.write ("public:");
+    writer.newLine ();
+    for (Map.Entry<String,Integer> element : taxonomyDefinition.getElements ()) {
+      writer.write ("static constexpr std::string_view STR_" + element.getKey () + " = \"" + element.getKey () + "\"");
+      endStmt (writer);
+      writer.write ("static constexpr int16_t VAL_" + element.getKey () + " = " + element.getValue ());
+      endStmt (writer);
+    }
+    writer.write ("static std::optional<std::string_view> getFieldName (int16_t ordinal)");
+    endStmt (writer);
+    writer.write ("static std::optional<int16_t> getFieldOrdinal (std::string_view name)");
+    endStmt (writer);
+    endBlock (writer); // class
+    endStmt (writer);
+    endNamespace (taxonomyDefinition, writer);
   }
 
   @Override
   public void beginClassImplementationDeclaration (final Compiler.Context context, final MessageDefinition message, final IndentWriter writer) throws IOException {
     super.beginClassImplementationDeclaration (context, message, writer);
-    comment (writer, "TODO begin class implementation declaration");
+    for (MessageDefinition subclass : polymorphicSubclasses (context, message)) {
+      includeHeader (subclass, writer);
+    }
+    beginNamespace (message, writer);
   }
-  
+
   @Override
   public void endClassImplementationDeclaration (final Compiler.Context context, final MessageDefinition message, final IndentWriter writer) throws IOException {
-    comment (writer, "TODO end class implementation declaration");
+    endNamespace (message, writer);
   }
-  
+
   @Override
   public void writeClassImplementationAttribute (final Compiler.Context context, final FieldDefinition field, final IndentWriter writer) throws IOException {
-    comment (writer, "TODO class implementation attribute");
+    // Nothing required
   }
-  
+
   @Override
   public void writeClassImplementationAccessor (final Compiler.Context context, final FieldDefinition field, final IndentWriter writer) throws IOException {
-    comment (writer, "TODO class implementation accessor");
+    // Accessors are defined inline in the header
+  }
+
+  private String defaultLiteral (final Compiler.Context context, final FieldDefinition field) {
+    return getLiteral (field.getDefaultValue ().assignmentTo (context, field.getType ()));
+  }
+
+  private void writeConstructor (final Compiler.Context context, final MessageDefinition message, final List<FieldDefinition> parameters, final IndentWriter writer) throws IOException {
+    final String className = CPPLiteralCode.localName (message);
+    final List<String> initialisers = new ArrayList<String> ();
+    if (!parameters.isEmpty () && (message.getExtends () != null)) {
+      final List<FieldDefinition> superParameters = constructorParameters (message.getExtends ());
+      if (!superParameters.isEmpty ()) {
+        final StringBuilder sb = new StringBuilder (CPPLiteralCode.qualifiedName (message.getExtends ())).append (" (");
+        boolean first = true;
+        for (FieldDefinition field : superParameters) {
+          if (first) {
+            first = false;
+          } else {
+            sb.append (", ");
+          }
+          final FieldDefinition override = defaultOverride (message, field);
+          if (override != null) {
+            sb.append (defaultLiteral (context, override));
+          } else {
+            sb.append ("std::move (").append (localFieldName (field)).append (')');
+          }
+        }
+        initialisers.add (sb.append (')').toString ());
+      }
+    }
+    for (FieldDefinition field : message.getFieldDefinitions ()) {
+      if (field.getOverride () != null) continue;
+      if (parameters.contains (field)) {
+        initialisers.add (privateFieldName (field) + " (std::move (" + localFieldName (field) + "))");
+      } else if (field.getDefaultValue () != null) {
+        initialisers.add (privateFieldName (field) + " (" + defaultLiteral (context, field) + ")");
+      }
+    }
+    writer.write (className + "::" + className + " (" + parameterList (parameters) + ")");
+    for (int i = 0; i < initialisers.size (); i++) {
+      writer.write (((i == 0) ? " : " : ", ") + initialisers.get (i));
+    }
+    beginBlock (writer);
+    for (FieldDefinition field : message.getFieldDefinitions ()) {
+      if ((field.getOverride () != null) && (field.getDefaultValue () != null)) {
+        writer.write (privateFieldName (field) + " = " + defaultLiteral (context, field));
+        endStmt (writer);
+      }
+    }
+    endBlock (writer);
+  }
+
+  /**
+   * Writes the statements to encode a value of the given type. Arrays without a native Fudge encoding are
+   * written as a sub-message of unnamed elements.
+   */
+  private void writeEncodeValue (final IndentWriter writer, FieldType type, final String key, final String value, final int depth) throws IOException {
+    type = underlyingType (type);
+    if (type instanceof FieldType.ArrayType) {
+      final FieldType baseType = ((FieldType.ArrayType)type).getBaseType ();
+      if (primitiveArrayElement (baseType) != null) {
+        writer.write ("fudge_wire::append (buffer, " + key + ", " + value + ")");
+        endStmt (writer);
+      } else if (isIntegerEnum (underlyingType (baseType))) {
+        writer.write ("fudge_wire::appendEnumArray (buffer, " + key + ", " + value + ")");
+        endStmt (writer);
+      } else {
+        final String mark = "m" + depth;
+        final String element = "e" + (depth + 1);
+        writer.write ("{");
+        writer.newLineIndent ();
+        writer.write ("const size_t " + mark + " = fudge_wire::beginSubMessage (buffer, " + key + ")");
+        endStmt (writer);
+        writer.write ("for (" + (isIndicator (baseType) ? "[[maybe_unused]] " : "") + "const auto &" + element + " : " + value + ")");
+        beginBlock (writer);
+        writeEncodeValue (writer, baseType, "-1, {}", element, depth + 1);
+        endBlock (writer);
+        writer.write ("fudge_wire::endSubMessage (buffer, " + mark + ")");
+        endStmt (writer);
+        endBlock (writer);
+      }
+    } else if (isMessage (type)) {
+      writer.write ("fudge_wire::appendMessage (buffer, " + key + ", " + value + ")");
+      endStmt (writer);
+    } else if (type instanceof FieldType.EnumType) {
+      final EnumDefinition enumDefinition = ((FieldType.EnumType)type).getEnumDefinition ();
+      if (enumDefinition.getType () == EnumDefinition.Type.INTEGER_ENCODED) {
+        writer.write ("fudge_wire::append (buffer, " + key + ", static_cast<int32_t> (" + value + "))");
+      } else {
+        writer.write ("fudge_wire::appendString (buffer, " + key + ", " + enumFunction (enumDefinition, "toFudgeEncoding") + " (" + value + "))");
+      }
+      endStmt (writer);
+    } else if (isAnonymousMessage (type)) {
+      writer.write ("fudge_wire::append (buffer, " + key + ", " + value + ")");
+      endStmt (writer);
+    } else {
+      switch (type.getFudgeFieldType ()) {
+        case FudgeWireType.INDICATOR_TYPE_ID :
+          writer.write ("fudge_wire::appendIndicator (buffer, " + key + ")");
+          break;
+        case FudgeWireType.BOOLEAN_TYPE_ID :
+          writer.write ("fudge_wire::append (buffer, " + key + ", static_cast<bool> (" + value + "))");
+          break;
+        case FudgeWireType.STRING_TYPE_ID :
+          writer.write ("fudge_wire::appendString (buffer, " + key + ", " + value + ")");
+          break;
+        default :
+          writer.write ("fudge_wire::append (buffer, " + key + ", " + value + ")");
+          break;
+      }
+      endStmt (writer);
+    }
+  }
+
+  private void writeEncodeField (final IndentWriter writer, final FieldDefinition field) throws IOException {
+    final String attribute = privateFieldName (field);
+    final String key = fieldKey (field);
+    if (field.isRepeated ()) {
+      writer.write ("for (" + (isIndicator (field.getType ()) ? "[[maybe_unused]] " : "") + "const auto &e0 : " + attribute + ")");
+      beginBlock (writer);
+      writeEncodeValue (writer, field.getType (), key, "e0", 0);
+      endBlock (writer);
+    } else if (isOptionalStorage (field)) {
+      writer.write ("if (" + attribute + ")");
+      beginBlock (writer);
+      writeEncodeValue (writer, field.getType (), key, "*" + attribute, 0);
+      endBlock (writer);
+    } else if (isMessage (underlyingType (field.getType ()))) {
+      writer.write ("if (" + attribute + ")");
+      beginBlock (writer);
+      writeEncodeValue (writer, field.getType (), key, attribute, 0);
+      endBlock (writer);
+    } else {
+      writeEncodeValue (writer, field.getType (), key, attribute, 0);
+    }
+  }
+
+  /**
+   * Writes the statements to decode a field into the target. The source is a fudge_wire::Field.
+   */
+  private void writeDecodeValue (final IndentWriter writer, FieldType type, final String source, final String target, final int depth) throws IOException {
+    type = underlyingType (type);
+    if (type instanceof FieldType.ArrayType) {
+      final FieldType.ArrayType arrayType = (FieldType.ArrayType)type;
+      final FieldType baseType = arrayType.getBaseType ();
+      final String element = primitiveArrayElement (baseType);
+      final String values = "v" + depth;
+      final String expr;
+      if (element != null) {
+        expr = element.equals ("int8_t") ? "fudge_wire::toByteArray (" + source + ")" : "fudge_wire::toArray<" + element + "> (" + source + ", " + arrayTypeConstant (element) + ")";
+      } else if (isIntegerEnum (underlyingType (baseType))) {
+        expr = "fudge_wire::toEnumArray<" + valueType (baseType) + "> (" + source + ")";
+      } else {
+        expr = null;
+      }
+      if (expr != null) {
+        if (!arrayType.isFixedLength ()) {
+          writer.write (target + " = " + expr);
+          endStmt (writer);
+          return;
+        }
+        writer.write (valueType (type) + " " + values + " = " + expr);
+        endStmt (writer);
+      } else {
+        final String reader = "r" + depth;
+        final String field = "f" + depth;
+        final String value = "e" + (depth + 1);
+        writer.write ("fudge_wire::Reader " + reader + " = fudge_wire::toReader (" + source + ")");
+        endStmt (writer);
+        writer.write ("fudge_wire::Field " + field);
+        endStmt (writer);
+        writer.write (valueType (type) + " " + values);
+        endStmt (writer);
+        writer.write ("while (" + reader + ".next (" + field + "))");
+        beginBlock (writer);
+        writer.write (valueType (baseType) + " " + value);
+        endStmt (writer);
+        writeDecodeValue (writer, baseType, field, value, depth + 1);
+        writer.write (values + ".push_back (std::move (" + value + "))");
+        endStmt (writer);
+        endBlock (writer);
+      }
+      if (arrayType.isFixedLength ()) {
+        writer.write ("fudge_wire::checkLength (" + values + ".size (), " + arrayType.getFixedLength () + ")");
+        endStmt (writer);
+      }
+      writer.write (target + " = std::move (" + values + ")");
+    } else if (isMessage (type)) {
+      writer.write (target + " = fudge_wire::toMessage<" + CPPLiteralCode.qualifiedName (((FieldType.MessageType)type).getMessageDefinition ()) + "> (" + source + ")");
+    } else if (isAnonymousMessage (type)) {
+      writer.write (target + " = fudge_wire::toAnonymousMessage (" + source + ")");
+    } else if (type instanceof FieldType.EnumType) {
+      final EnumDefinition enumDefinition = ((FieldType.EnumType)type).getEnumDefinition ();
+      if (enumDefinition.getType () == EnumDefinition.Type.INTEGER_ENCODED) {
+        writer.write (target + " = static_cast<" + valueType (type) + "> (fudge_wire::toInteger<int32_t> (" + source + "))");
+      } else {
+        writer.write (target + " = " + enumFunction (enumDefinition, "fromFudgeEncoding") + " (fudge_wire::toStringView (" + source + "))");
+      }
+    } else {
+      switch (type.getFudgeFieldType ()) {
+        case FudgeWireType.INDICATOR_TYPE_ID :
+          writer.write (target + " = fudge_wire::Indicator ()");
+          break;
+        case FudgeWireType.BOOLEAN_TYPE_ID :
+          writer.write (target + " = fudge_wire::toBool (" + source + ")");
+          break;
+        case FudgeWireType.BYTE_TYPE_ID :
+        case FudgeWireType.SHORT_TYPE_ID :
+        case FudgeWireType.INT_TYPE_ID :
+        case FudgeWireType.LONG_TYPE_ID :
+          writer.write (target + " = fudge_wire::toInteger<" + valueType (type) + "> (" + source + ")");
+          break;
+        case FudgeWireType.FLOAT_TYPE_ID :
+          writer.write (target + " = static_cast<float> (fudge_wire::toDouble (" + source + "))");
+          break;
+        case FudgeWireType.DOUBLE_TYPE_ID :
+          writer.write (target + " = fudge_wire::toDouble (" + source + ")");
+          break;
+        case FudgeWireType.STRING_TYPE_ID :
+          writer.write (target + " = fudge_wire::toString (" + source + ")");
+          break;
+        case FudgeWireType.DATE_TYPE_ID :
+          writer.write (target + " = fudge_wire::toDate (" + source + ")");
+          break;
+        case FudgeWireType.TIME_TYPE_ID :
+          writer.write (target + " = fudge_wire::toTime (" + source + ")");
+          break;
+        case FudgeWireType.DATETIME_TYPE_ID :
+          writer.write (target + " = fudge_wire::toDateTime (" + source + ")");
+          break;
+        default :
+          throw new IllegalStateException ("type '" + type + "' is not an expected type (fudge field type " + type.getFudgeFieldType () + ")");
+      }
+    }
+    endStmt (writer);
   }
-  
+
+  private void writeDecodeField (final IndentWriter writer, final FieldDefinition field) throws IOException {
+    if (field.isRepeated ()) {
+      writer.write (valueType (field.getType ()) + " e0");
+      endStmt (writer);
+      writeDecodeValue (writer, field.getType (), "field", "e0", 0);
+      writer.write (privateFieldName (field) + ".push_back (std::move (e0))");
+      endStmt (writer);
+    } else {
+      writeDecodeValue (writer, field.getType (), "field", privateFieldName (field), 0);
+    }
+    writer.write ("return true");
+    endStmt (writer);
+  }
+
+  /**
+   * Returns the subclasses that a sub-message declared as the given type can be decoded as.
+   */
+  private List<MessageDefinition> polymorphicSubclasses (final Compiler.Context context, final MessageDefinition message) {
+    final List<MessageDefinition> subclasses = new ArrayList<MessageDefinition> ();
+    for (MessageDefinition subclass : CodeGeneratorUtil.getSubclasses (context, message)) {
+      if (!subclass.isExternal () && !subclass.isAbstract ()) {
+        subclasses.add (subclass);
+      }
+    }
+    return subclasses;
+  }
+
+  /**
+   * The class headers are written most specific first, so the first that names this class or a known subclass
+   * gives the type to decode as. Names of classes that aren't known are skipped over.
+   */
+  private void writeFromFieldsPolymorphic (final Compiler.Context context, final MessageDefinition message, final IndentWriter writer) throws IOException {
+    final String className = CPPLiteralCode.localName (message);
+    writer.write ("std::shared_ptr<const " + className + "> " + className + "::fromFieldsPolymorphic (const uint8_t *data, size_t size)");
+    beginBlock (writer);
+    final List<MessageDefinition> subclasses = polymorphicSubclasses (context, message);
+    if (!subclasses.isEmpty ()) {
+      writer.write ("fudge_wire::Reader reader (data, size)");
+      endStmt (writer);
+      writer.write ("std::string_view className");
+      endStmt (writer);
+      writer.write ("while (!(className = fudge_wire::nextClassName (reader)).empty ())");
+      beginBlock (writer); // while
+      writer.write ("if (className == CLASS_NAME) break");
+      endStmt (writer);
+      for (MessageDefinition subclass : subclasses) {
+        final String subclassName = CPPLiteralCode.qualifiedName (subclass);
+        writer.write ("if (className == " + subclassName + "::CLASS_NAME) return std::make_shared<const " + subclassName + "> (" + subclassName + "::fromFields (data, size))");
+        endStmt (writer);
+      }
+      endBlock (writer); // while
+    }
+    writer.write ("return std::make_shared<const " + className + "> (fromFields (data, size))");
+    endStmt (writer);
+    endBlock (writer);
+  }
+
+  /**
+   * Fields are dispatched on ordinal or name as they are read, so the encoded message is only walked once.
+   */
+  private void writeReadField (final MessageDefinition message, final IndentWriter writer) throws IOException {
+    final String className = CPPLiteralCode.localName (message);
+    writer.write ("bool " + className + "::readField (const fudge_wire::Field &field)");
+    beginBlock (writer);
+    boolean ordinals = false;
+    for (FieldDefinition field : message.getFieldDefinitions ()) {
+      if ((field.getOverride () == null) && (field.getOrdinal () != null)) {
+        if (!ordinals) {
+          ordinals = true;
+          writer.write ("if (field.hasOrdinal)");
+          beginBlock (writer);
+          writer.write ("switch (field.ordinal)");
+          beginBlock (writer);
+        }
+        writer.write ("case " + field.getOrdinal () + " :");
+        beginBlock (writer);
+        writeDecodeField (writer, field);
+        endBlock (writer);
+      }
+    }
+    if (ordinals) {
+      endBlock (writer); // switch
+      endBlock (writer); // if
+    }
+    for (FieldDefinition field : message.getFieldDefinitions ()) {
+      if ((field.getOverride () == null) && (field.getOrdinal () == null)) {
+        writer.write ("if (field.name == \"" + field.getName () + "\")");
+        beginBlock (writer);
+        writeDecodeField (writer, field);
+        endBlock (writer);
+      }
+    }
+    if (message.getExtends () != null) {
+      writer.write ("return " + CPPLiteralCode.qualifiedName (message.getExtends ()) + "::readField (field)");
+    } else {
+      writer.write ("return false");
+    }
+    endStmt (writer);
+    endBlock (writer);
+  }
+
   @Override
   public void writeClassImplementationConstructor (final Compiler.Context context, final MessageDefinition message, final IndentWriter writer) throws IOException {
-    comment (writer, "TODO class implementation constructor");
+    final String className = CPPLiteralCode.localName (message);
+    writeConstructor (context, message, new ArrayList<FieldDefinition> (), writer);
+    final List<FieldDefinition> parameters = constructorParameters (message);
+    if (!parameters.isEmpty ()) {
+      writeConstructor (context, message, parameters, writer);
+    }
+    if (message.getExtends () == null) {
+      writer.write ("void " + className + "::appendTo (" + BUFFER_TYPE + " &buffer) const");
+      beginBlock (writer);
+      writer.write ("const size_t start = fudge_wire::beginEnvelope (buffer)");
+      endStmt (writer);
+      writer.write ("appendFieldsTo (buffer)");
+      endStmt (writer);
+      writer.write ("fudge_wire::endEnvelope (buffer, start)");
+      endStmt (writer);
+      endBlock (writer);
+      writer.write (BUFFER_TYPE + " " + className + "::toBuffer () const");
+      beginBlock (writer);
+      writer.write (BUFFER_TYPE + " buffer");
+      endStmt (writer);
+      writer.write ("appendTo (buffer)");
+      endStmt (writer);
+      writer.write ("return buffer");
+      endStmt (writer);
+      endBlock (writer);
+    }
+    writer.write ("void " + className + "::appendFieldsTo (" + BUFFER_TYPE + " &buffer) const");
+    beginBlock (writer);
+    writer.write ("fudge_wire::appendString (buffer, 0, {}, CLASS_NAME)");
+    endStmt (writer);
+    if (message.getExtends () != null) {
+      writer.write (CPPLiteralCode.qualifiedName (message.getExtends ()) + "::appendFieldsTo (buffer)");
+      endStmt (writer);
+    }
+    for (FieldDefinition field : message.getFieldDefinitions ()) {
+      if (field.getOverride () == null) {
+        writeEncodeField (writer, field);
+      }
+    }
+    endBlock (writer);
+    writer.write (className + " " + className + "::fromBuffer (const uint8_t *data, size_t size)");
+    beginBlock (writer);
+    writer.write ("const fudge_wire::Envelope envelope = fudge_wire::openEnvelope (data, size)");
+    endStmt (writer);
+    writer.write ("return fromFields (envelope.data, envelope.size)");
+    endStmt (writer);
+    endBlock (writer);
+    writer.write (className + " " + className + "::fromFields (const uint8_t *data, size_t size)");
+    beginBlock (writer);
+    writer.write (className + " result");
+    endStmt (writer);
+    writer.write ("fudge_wire::Reader reader (data, size)");
+    endStmt (writer);
+    writer.write ("fudge_wire::Field field");
+    endStmt (writer);
+    writer.write ("while (reader.next (field)) result.readField (field)");
+    endStmt (writer);
+    writer.write ("return result");
+    endStmt (writer);
+    endBlock (writer);
+    writeFromFieldsPolymorphic (context, message, writer);
+    writeReadField (message, writer);
   }
-  
+
   @Override
   public void writeEnumImplementationDeclaration (final Compiler.Context context, final EnumDefinition enumDefinition, final IndentWriter writer) throws IOException {
-    comment (writer, "TODO enum implementation declaration");
+    super.writeEnumImplementationDeclaration (context, enumDefinition, writer);
+    if (enumDefinition.getType () == EnumDefinition.Type.INTEGER_ENCODED) return; // static_cast is used
+    final String enumName = CPPLiteralCode.localName (enumDefinition);
+    final List<String> keys = new ArrayList<String> ();
+    final List<String> literals = new ArrayList<String> ();
+    for (Map.Entry<String,LiteralValue> entry : enumDefinition.getElements ()) {
+      LiteralValue value = entry.getValue ();
+      if (value instanceof LiteralValue.NullValue) {
+        value = ((LiteralValue.NullValue)value).inferString (entry.getKey ());
+      } else {
+        value = value.assignmentTo (context, FieldType.STRING_TYPE);
+      }
+      keys.add (entry.getKey ());
+      literals.add (getLiteral (value));
+    }
+    beginNamespace (enumDefinition, writer);
+    writer.write ("std::string_view " + enumName + "_toFudgeEncoding (" + enumName + " value)");
+    beginBlock (writer); // toFudgeEncoding
+    writer.write ("switch (value)");
+    beginBlock (writer); // switch
+    for (int i = 0; i < keys.size (); i++) {
+      writer.write ("case " + enumValueIdentifier (enumDefinition, keys.get (i)) + " : return " + literals.get (i));
+      endStmt (writer);
+    }
+    endBlock (writer); // switch
+    writer.write ("throw std::invalid_argument (\"invalid " + enumName + " value\")");
+    endStmt (writer);
+    endBlock (writer); // toFudgeEncoding
+    writer.write (enumName + " " + enumName + "_fromFudgeEncoding (std::string_view value)");
+    beginBlock (writer); // fromFudgeEncoding
+    for (int i = 0; i < keys.size (); i++) {
+      writer.write ("if (value == " + literals.get (i) + ") return " + enumValueIdentifier (enumDefinition, keys.get (i)));
+      endStmt (writer);
+    }
+    writer.write ("throw std::invalid_argument (\"invalid " + enumName + " encoding\")");
+    endStmt (writer);
+    endBlock (writer); // fromFudgeEncoding
+    endNamespace (enumDefinition, writer);
   }
 
   @Override
   public void writeTaxonomyImplementationDeclaration (final Compiler.Context context, final TaxonomyDefinition taxonomyDefinition, final IndentWriter writer) throws IOException {
-    comment (writer, "TODO taxonomy implementation declaration");
+    super.writeTaxonomyImplementationDeclaration (context, taxonomyDefinition, writer);
+    includeHeader (taxonomyDefinition, writer);
+    final String className = CPPLiteralCode.localName (taxonomyDefinition);
+    beginNamespace (taxonomyDefinition, writer);
+    writer.write ("std::optional<std::string_view> " + className + "::getFieldName (int16_t ordinal)");
+    beginBlock (writer); // getFieldName
+    writer.write ("switch (ordinal)");
+    beginBlock (writer); // switch
+    for (Map.Entry<String,Integer> element : taxonomyDefinition.getElements ()) {
+      writer.write ("case VAL_" + element.getKey () + " : return STR_" + element.getKey ());
+      endStmt (writer);
+    }
+    writer.write ("default : return std::nullopt");
+    endStmt (writer);
+    endBlock (writer); // switch
+    endBlock (writer); // getFieldName
+    writer.write ("std::optional<int16_t> " + className + "::getFieldOrdinal (std::string_view name)");
+    beginBlock (writer); // getFieldOrdinal
+    for (Map.Entry<String,Integer> element : taxonomyDefinition.getElements ()) {
+      writer.write ("if (name == STR_" + element.getKey () + ") return VAL_" + element.getKey ());
+      endStmt (writer);
+    }
+    writer.write ("return std::nullopt");
+    endStmt (writer);
+    endBlock (writer); // getFieldOrdinal
+    endNamespace (taxonomyDefinition, writer);
   }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2009 by OpenGamma Inc and other contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fudgemsg.proto.cpp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.fudgemsg.proto.Definition;
+import org.fudgemsg.proto.FieldDefinition;
+import org.fudgemsg.proto.LiteralValue;
+import org.fudgemsg.proto.MessageDefinition;
+import org.fudgemsg.proto.c.CStyleLiteralCode;
+
+/**
+ * Literal and identifier handling for the C++ language.
+ *
+ * @author Andrew
+ */
+/* package */ class CPPLiteralCode extends CStyleLiteralCode {
+
+  /* package */ static final CPPLiteralCode INSTANCE = new CPPLiteralCode ();
+
+  private CPPLiteralCode () {
+    setTrueLiteral ("true");
+    setFalseLiteral ("false");
+  }
+
+  @Override
+  protected Collection<String> getReservedWords () {
+    Collection<String> collection = super.getReservedWords ();
+    for (String reservedWord : new String[] {"alignas", "alignof", "and", "and_eq", "asm", "auto", "bitand", "bitor",
+        "bool", "break", "case", "catch", "char", "char16_t", "char32_t", "class", "compl", "const", "constexpr",
+        "const_cast", "continue", "decltype", "default", "delete", "do", "double", "dynamic_cast", "else", "enum",
+        "explicit", "export", "extern", "false", "float", "for", "friend", "goto", "if", "inline", "int", "long",
+        "mutable", "namespace", "new", "noexcept", "not", "not_eq", "nullptr", "operator", "or", "or_eq", "private",
+        "protected", "public", "register", "reinterpret_cast", "return", "short", "signed", "sizeof", "static",
+        "static_assert", "static_cast", "struct", "switch", "template", "this", "thread_local", "throw", "true",
+        "try", "typedef", "typeid", "typename", "union", "unsigned", "using", "virtual", "void", "volatile",
+        "wchar_t", "while", "xor", "xor_eq"}) {
+      collection.add (reservedWord);
+    }
+    return collection;
+  }
+
+  /**
+   * Returns the top level definition that an inner enum or message is declared within.
+   */
+  private static Definition outermostDefinition (Definition definition) {
+    while (definition.getOuterDefinition () != null) {
+      definition = definition.getOuterDefinition ();
+    }
+    return definition;
+  }
+
+  /**
+   * Returns the dotted namespace a definition is generated in, or null for the global namespace. Inner definitions
+   * are flattened into the namespace of their outermost definition.
+   */
+  /* package */ static String namespaceOf (final Definition definition) {
+    return outermostDefinition (definition).getNamespace ();
+  }
+
+  /**
+   * Returns the name of a definition within its namespace, with any outer definition names joined by underscores.
+   */
+  /* package */ static String localName (final Definition definition) {
+    final String namespace = namespaceOf (definition);
+    final String identifier = definition.getIdentifier ();
+    return ((namespace != null) ? identifier.substring (namespace.length () + 1) : identifier).replace ('.', '_');
+  }
+
+  /**
+   * Returns the C++ form of the namespace a definition is generated in, or null for the global namespace.
+   */
+  /* package */ static String namespaceName (final Definition definition) {
+    final String namespace = namespaceOf (definition);
+    if (namespace == null) return null;
+    final Collection<String> reservedWords = INSTANCE.getReservedWords ();
+    final StringBuilder sb = new StringBuilder ();
+    for (String component : namespace.split ("\\.")) {
+      if (sb.length () > 0) sb.append ("::");
+      sb.append (reservedWords.contains (component) ? INSTANCE.escapedReservedWord (component) : component);
+    }
+    return sb.toString ();
+  }
+
+  /**
+   * Returns the fully qualified C++ name of a definition.
+   */
+  /* package */ static String qualifiedName (final Definition definition) {
+    final String namespace = namespaceName (definition);
+    final StringBuilder sb = new StringBuilder ("::");
+    if (namespace != null) {
+      sb.append (namespace).append ("::");
+    }
+    return sb.append (localName (definition)).toString ();
+  }
+
+  @Override
+  protected String getLiteral (final LiteralValue.EnumValue value) {
+    return qualifiedName (value.getEnumDefinition ()) + "::" + value.get ();
+  }
+
+  private int countFields (MessageDefinition message, final boolean requiredOnly) {
+    int count = 0;
+    do {
+      for (FieldDefinition field : message.getFieldDefinitions ()) {
+        if (!requiredOnly || field.isRequired ()) count++;
+      }
+      message = message.getExtends ();
+    } while (message != null);
+    return count;
+  }
+
+  private void messageFields (final MessageDefinition message, final boolean requiredOnly, final List<FieldDefinition> fields) {
+    if (message.getExtends () != null) {
+      messageFields (message.getExtends (), requiredOnly, fields);
+    }
+    for (FieldDefinition field : message.getFieldDefinitions ()) {
+      if (!requiredOnly || field.isRequired ()) fields.add (field);
+    }
+  }
+
+  /**
+   * Message literals are constructed through the generated setters in the same field order that
+   * {@link LiteralValue.MessageValue} assigned the parameters in.
+   */
+  @Override
+  protected String getLiteral (final LiteralValue.MessageValue value) {
+    final MessageDefinition message = value.getMessageDefinition ();
+    final String className = qualifiedName (message);
+    final List<LiteralValue> parameters = value.getParameters ();
+    final StringBuilder sb = new StringBuilder ();
+    if (message.isExternal ()) {
+      // Can't see the fields of an external message, so hope it has a suitable constructor
+      sb.append ("std::make_shared<const ").append (className).append ("> (");
+      for (int i = 0; i < parameters.size (); i++) {
+        if (i > 0) sb.append (", ");
+        sb.append (getLiteral (parameters.get (i)));
+      }
+      return sb.append (')').toString ();
+    }
+    final List<FieldDefinition> fields = new ArrayList<FieldDefinition> ();
+    messageFields (message, parameters.size () != countFields (message, false), fields);
+    sb.append ("[] { auto value = std::make_shared<").append (className).append ("> (); ");
+    for (int i = 0; i < parameters.size (); i++) {
+      sb.append ("value->set").append (camelCaseFieldName (fields.get (i))).append (" (");
+      sb.append (getLiteral (parameters.get (i))).append ("); ");
+    }
+    sb.append ("return std::shared_ptr<const ").append (className).append ("> (std::move (value)); } ()");
+    return sb.toString ();
+  }
+
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright 2009 by OpenGamma Inc and other contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fudgemsg.proto.cpp;
+
+import java.io.IOException;
+
+import org.fudgemsg.proto.IndentWriter;
+
+/**
+ * The inline encoding and decoding primitives that the generated C++ classes are written against. These are
+ * emitted into every header behind a common include guard so that generated code has no dependency beyond the
+ * C++17 standard library.
+ *
+ * @author Andrew
+ */
+/* package */ final class CPPWireRuntime {
+
+  private static final String[] SOURCE = new String[] {
+    "#ifndef __FUDGE_PROTO_WIRE",
+    "#define __FUDGE_PROTO_WIRE",
+    "#include <cstddef>",
+    "#include <cstdint>",
+    "#include <cstring>",
+    "#include <limits>",
+    "#include <memory>",
+    "#include <optional>",
+    "#include <stdexcept>",
+    "#include <string>",
+    "#include <string_view>",
+    "#include <utility>",
+    "#include <vector>",
+    "namespace fudge_wire {",
+    "typedef std::vector<uint8_t> Buffer;",
+    "enum : uint8_t {",
+    "  TYPE_INDICATOR = 0, TYPE_BOOLEAN = 1, TYPE_BYTE = 2, TYPE_SHORT = 3, TYPE_INT = 4, TYPE_LONG = 5,",
+    "  TYPE_BYTE_ARRAY = 6, TYPE_SHORT_ARRAY = 7, TYPE_INT_ARRAY = 8, TYPE_LONG_ARRAY = 9, TYPE_FLOAT = 10,",
+    "  TYPE_DOUBLE = 11, TYPE_FLOAT_ARRAY = 12, TYPE_DOUBLE_ARRAY = 13, TYPE_STRING = 14, TYPE_SUB_MESSAGE = 15,",
+    "  TYPE_BYTE_ARRAY_4 = 17, TYPE_BYTE_ARRAY_512 = 25, TYPE_DATE = 26, TYPE_TIME = 27, TYPE_DATETIME = 28",
+    "};",
+    "struct Indicator {",
+    "  bool operator== (const Indicator &) const { return true; }",
+    "};",
+    "struct Date {",
+    "  uint8_t bytes[4];",
+    "  bool operator== (const Date &other) const { return !std::memcmp (bytes, other.bytes, sizeof (bytes)); }",
+    "};",
+    "struct Time {",
+    "  uint8_t bytes[8];",
+    "  bool operator== (const Time &other) const { return !std::memcmp (bytes, other.bytes, sizeof (bytes)); }",
+    "};",
+    "struct DateTime {",
+    "  uint8_t bytes[12];",
+    "  bool operator== (const DateTime &other) const { return !std::memcmp (bytes, other.bytes, sizeof (bytes)); }",
+    "};",
+    "// The encoded fields of an anonymous sub-message",
+    "struct Message {",
+    "  std::vector<uint8_t> fields;",
+    "  Message () {}",
+    "  Message (const uint8_t *data, size_t size) : fields (data, data + size) {}",
+    "  bool operator== (const Message &other) const { return fields == other.fields; }",
+    "};",
+    "// A field decoded in place; name and data point into the source buffer",
+    "struct Field {",
+    "  uint8_t type;",
+    "  bool hasOrdinal;",
+    "  int16_t ordinal;",
+    "  std::string_view name;",
+    "  const uint8_t *data;",
+    "  size_t size;",
+    "};",
+    "[[noreturn]] inline void fail (const char *message) { throw std::runtime_error (message); }",
+    "inline void putU16 (Buffer &buffer, uint16_t value) {",
+    "  const uint8_t bytes[2] = { (uint8_t)(value >> 8), (uint8_t)value };",
+    "  buffer.insert (buffer.end (), bytes, bytes + 2);",
+    "}",
+    "inline void putU32 (Buffer &buffer, uint32_t value) {",
+    "  const uint8_t bytes[4] = { (uint8_t)(value >> 24), (uint8_t)(value >> 16), (uint8_t)(value >> 8), (uint8_t)value };",
+    "  buffer.insert (buffer.end (), bytes, bytes + 4);",
+    "}",
+    "inline void putU64 (Buffer &buffer, uint64_t value) {",
+    "  putU32 (buffer, (uint32_t)(value >> 32));",
+    "  putU32 (buffer, (uint32_t)value);",
+    "}",
+    "inline void patchU32 (Buffer &buffer, size_t offset, uint32_t value) {",
+    "  buffer[offset] = (uint8_t)(value >> 24);",
+    "  buffer[offset + 1] = (uint8_t)(value >> 16);",
+    "  buffer[offset + 2] = (uint8_t)(value >> 8);",
+    "  buffer[offset + 3] = (uint8_t)value;",
+    "}",
+    "inline void putValue (Buffer &buffer, bool value) { buffer.push_back (value ? 1 : 0); }",
+    "inline void putValue (Buffer &buffer, int8_t value) { buffer.push_back ((uint8_t)value); }",
+    "inline void putValue (Buffer &buffer, int16_t value) { putU16 (buffer, (uint16_t)value); }",
+    "inline void putValue (Buffer &buffer, int32_t value) { putU32 (buffer, (uint32_t)value); }",
+    "inline void putValue (Buffer &buffer, int64_t value) { putU64 (buffer, (uint64_t)value); }",
+    "inline void putValue (Buffer &buffer, float value) {",
+    "  uint32_t bits;",
+    "  std::memcpy (&bits, &value, 4);",
+    "  putU32 (buffer, bits);",
+    "}",
+    "inline void putValue (Buffer &buffer, double value) {",
+    "  uint64_t bits;",
+    "  std::memcpy (&bits, &value, 8);",
+    "  putU64 (buffer, bits);",
+    "}",
+    "inline int fixedSize (uint8_t type) {",
+    "  switch (type) {",
+    "  case TYPE_INDICATOR : return 0;",
+    "  case TYPE_BOOLEAN : case TYPE_BYTE : return 1;",
+    "  case TYPE_SHORT : return 2;",
+    "  case TYPE_INT : case TYPE_FLOAT : case TYPE_DATE : case TYPE_BYTE_ARRAY_4 : return 4;",
+    "  case TYPE_LONG : case TYPE_DOUBLE : case TYPE_TIME : case 18 : return 8;",
+    "  case TYPE_DATETIME : return 12;",
+    "  case 19 : return 16;",
+    "  case 20 : return 20;",
+    "  case 21 : return 32;",
+    "  case 22 : return 64;",
+    "  case 23 : return 128;",
+    "  case 24 : return 256;",
+    "  case TYPE_BYTE_ARRAY_512 : return 512;",
+    "  default : return -1;",
+    "  }",
+    "}",
+    "inline uint8_t byteArrayType (size_t size) {",
+    "  for (uint8_t type = TYPE_BYTE_ARRAY_4; type <= TYPE_BYTE_ARRAY_512; type++) {",
+    "    if ((size_t)fixedSize (type) == size) return type;",
+    "  }",
+    "  return TYPE_BYTE_ARRAY;",
+    "}",
+    "inline void appendKey (Buffer &buffer, uint8_t prefix, uint8_t type, int ordinal, std::string_view name) {",
+    "  if (ordinal >= 0) prefix |= 0x10;",
+    "  if (!name.empty ()) prefix |= 0x08;",
+    "  buffer.push_back (prefix);",
+    "  buffer.push_back (type);",
+    "  if (ordinal >= 0) putU16 (buffer, (uint16_t)ordinal);",
+    "  if (!name.empty ()) {",
+    "    if (name.size () > 255) fail (\"Fudge field name too long\");",
+    "    buffer.push_back ((uint8_t)name.size ());",
+    "    buffer.insert (buffer.end (), name.begin (), name.end ());",
+    "  }",
+    "}",
+    "inline void appendVariableKey (Buffer &buffer, uint8_t type, int ordinal, std::string_view name, size_t size) {",
+    "  if (size <= 255) {",
+    "    appendKey (buffer, 0x20, type, ordinal, name);",
+    "    buffer.push_back ((uint8_t)size);",
+    "  } else if (size <= 32767) {",
+    "    appendKey (buffer, 0x40, type, ordinal, name);",
+    "    putU16 (buffer, (uint16_t)size);",
+    "  } else {",
+    "    appendKey (buffer, 0x60, type, ordinal, name);",
+    "    putU32 (buffer, (uint32_t)size);",
+    "  }",
+    "}",
+    "inline void appendIndicator (Buffer &buffer, int ordinal, std::string_view name) {",
+    "  appendKey (buffer, 0x80, TYPE_INDICATOR, ordinal, name);",
+    "}",
+    "template<typename T> inline void appendFixed (Buffer &buffer, uint8_t type, int ordinal, std::string_view name, T value) {",
+    "  appendKey (buffer, 0x80, type, ordinal, name);",
+    "  putValue (buffer, value);",
+    "}",
+    "inline void append (Buffer &buffer, int ordinal, std::string_view name, bool value) { appendFixed (buffer, TYPE_BOOLEAN, ordinal, name, value); }",
+    "inline void append (Buffer &buffer, int ordinal, std::string_view name, int8_t value) { appendFixed (buffer, TYPE_BYTE, ordinal, name, value); }",
+    "inline void append (Buffer &buffer, int ordinal, std::string_view name, int16_t value) { appendFixed (buffer, TYPE_SHORT, ordinal, name, value); }",
+    "inline void append (Buffer &buffer, int ordinal, std::string_view name, int32_t value) { appendFixed (buffer, TYPE_INT, ordinal, name, value); }",
+    "inline void append (Buffer &buffer, int ordinal, std::string_view name, int64_t value) { appendFixed (buffer, TYPE_LONG, ordinal, name, value); }",
+    "inline void append (Buffer &buffer, int ordinal, std::string_view name, float value) { appendFixed (buffer, TYPE_FLOAT, ordinal, name, value); }",
+    "inline void append (Buffer &buffer, int ordinal, std::string_view name, double value) { appendFixed (buffer, TYPE_DOUBLE, ordinal, name, value); }",
+    "inline void append (Buffer &buffer, int ordinal, std::string_view name, const Date &value) {",
+    "  appendKey (buffer, 0x80, TYPE_DATE, ordinal, name);",
+    "  buffer.insert (buffer.end (), value.bytes, value.bytes + sizeof (value.bytes));",
+    "}",
+    "inline void append (Buffer &buffer, int ordinal, std::string_view name, const Time &value) {",
+    "  appendKey (buffer, 0x80, TYPE_TIME, ordinal, name);",
+    "  buffer.insert (buffer.end (), value.bytes, value.bytes + sizeof (value.bytes));",
+    "}",
+    "inline void append (Buffer &buffer, int ordinal, std::string_view name, const DateTime &value) {",
+    "  appendKey (buffer, 0x80, TYPE_DATETIME, ordinal, name);",
+    "  buffer.insert (buffer.end (), value.bytes, value.bytes + sizeof (value.bytes));",
+    "}",
+    "inline void appendString (Buffer &buffer, int ordinal, std::string_view name, std::string_view value) {",
+    "  appendVariableKey (buffer, TYPE_STRING, ordinal, name, value.size ());",
+    "  buffer.insert (buffer.end (), value.begin (), value.end ());",
+    "}",
+    "inline void append (Buffer &buffer, int ordinal, std::string_view name, const Message &value) {",
+    "  appendVariableKey (buffer, TYPE_SUB_MESSAGE, ordinal, name, value.fields.size ());",
+    "  buffer.insert (buffer.end (), value.fields.begin (), value.fields.end ());",
+    "}",
+    "inline void append (Buffer &buffer, int ordinal, std::string_view name, const std::vector<int8_t> &value) {",
+    "  const uint8_t type = byteArrayType (value.size ());",
+    "  if (type == TYPE_BYTE_ARRAY) {",
+    "    appendVariableKey (buffer, type, ordinal, name, value.size ());",
+    "  } else {",
+    "    appendKey (buffer, 0x80, type, ordinal, name);",
+    "  }",
+    "  buffer.insert (buffer.end (), value.begin (), value.end ());",
+    "}",
+    "template<typename T> inline void appendArray (Buffer &buffer, uint8_t type, int ordinal, std::string_view name, const std::vector<T> &value) {",
+    "  appendVariableKey (buffer, type, ordinal, name, value.size () * sizeof (T));",
+    "  buffer.reserve (buffer.size () + value.size () * sizeof (T));",
+    "  for (T element : value) putValue (buffer, element);",
+    "}",
+    "inline void append (Buffer &buffer, int ordinal, std::string_view name, const std::vector<int16_t> &value) { appendArray (buffer, TYPE_SHORT_ARRAY, ordinal, name, value); }",
+    "inline void append (Buffer &buffer, int ordinal, std::string_view name, const std::vector<int32_t> &value) { appendArray (buffer, TYPE_INT_ARRAY, ordinal, name, value); }",
+    "inline void append (Buffer &buffer, int ordinal, std::string_view name, const std::vector<int64_t> &value) { appendArray (buffer, TYPE_LONG_ARRAY, ordinal, name, value); }",
+    "inline void append (Buffer &buffer, int ordinal, std::string_view name, const std::vector<float> &value) { appendArray (buffer, TYPE_FLOAT_ARRAY, ordinal, name, value); }",
+    "inline void append (Buffer &buffer, int ordinal, std::string_view name, const std::vector<double> &value) { appendArray (buffer, TYPE_DOUBLE_ARRAY, ordinal, name, value); }",
+    "template<typename E> inline void appendEnumArray (Buffer &buffer, int ordinal, std::string_view name, const std::vector<E> &value) {",
+    "  appendVariableKey (buffer, TYPE_INT_ARRAY, ordinal, name, value.size () * 4);",
+    "  for (E element : value) putValue (buffer, static_cast<int32_t> (element));",
+    "}",
+    "// Sub-messages always use a four byte size which is patched once the content is written",
+    "inline size_t beginSubMessage (Buffer &buffer, int ordinal, std::string_view name) {",
+    "  appendKey (buffer, 0x60, TYPE_SUB_MESSAGE, ordinal, name);",
+    "  const size_t mark = buffer.size ();",
+    "  buffer.resize (mark + 4);",
+    "  return mark;",
+    "}",
+    "inline void endSubMessage (Buffer &buffer, size_t mark) {",
+    "  patchU32 (buffer, mark, (uint32_t)(buffer.size () - mark - 4));",
+    "}",
+    "template<typename M> inline void appendMessage (Buffer &buffer, int ordinal, std::string_view name, const std::shared_ptr<const M> &value) {",
+    "  if (!value) {",
+    "    appendIndicator (buffer, ordinal, name);",
+    "    return;",
+    "  }",
+    "  const size_t mark = beginSubMessage (buffer, ordinal, name);",
+    "  value->appendFieldsTo (buffer);",
+    "  endSubMessage (buffer, mark);",
+    "}",
+    "inline size_t beginEnvelope (Buffer &buffer) {",
+    "  const size_t start = buffer.size ();",
+    "  buffer.resize (start + 8);",
+    "  return start;",
+    "}",
+    "inline void endEnvelope (Buffer &buffer, size_t start, uint16_t taxonomy = 0) {",
+    "  buffer[start + 2] = (uint8_t)(taxonomy >> 8);",
+    "  buffer[start + 3] = (uint8_t)taxonomy;",
+    "  patchU32 (buffer, start + 4, (uint32_t)(buffer.size () - start));",
+    "}",
+    "inline uint16_t getU16 (const uint8_t *data) { return (uint16_t)((data[0] << 8) | data[1]); }",
+    "inline uint32_t getU32 (const uint8_t *data) { return ((uint32_t)data[0] << 24) | ((uint32_t)data[1] << 16) | ((uint32_t)data[2] << 8) | data[3]; }",
+    "inline uint64_t getU64 (const uint8_t *data) { return ((uint64_t)getU32 (data) << 32) | getU32 (data + 4); }",
+    "inline void getValue (const uint8_t *data, int8_t &value) { value = (int8_t)data[0]; }",
+    "inline void getValue (const uint8_t *data, int16_t &value) { value = (int16_t)getU16 (data); }",
+    "inline void getValue (const uint8_t *data, int32_t &value) { value = (int32_t)getU32 (data); }",
+    "inline void getValue (const uint8_t *data, int64_t &value) { value = (int64_t)getU64 (data); }",
+    "inline void getValue (const uint8_t *data, float &value) {",
+    "  const uint32_t bits = getU32 (data);",
+    "  std::memcpy (&value, &bits, 4);",
+    "}",
+    "inline void getValue (const uint8_t *data, double &value) {",
+    "  const uint64_t bits = getU64 (data);",
+    "  std::memcpy (&value, &bits, 8);",
+    "}",
+    "// Iterates over the fields of a message without copying them",
+    "class Reader {",
+    "public:",
+    "  Reader (const uint8_t *data, size_t size) : _data (data), _end (data + size) {}",
+    "  bool next (Field &field) {",
+    "    if (_data == _end) return false;",
+    "    need (2);",
+    "    const uint8_t prefix = _data[0];",
+    "    field.type = _data[1];",
+    "    _data += 2;",
+    "    field.hasOrdinal = (prefix & 0x10) != 0;",
+    "    field.ordinal = 0;",
+    "    if (field.hasOrdinal) {",
+    "      need (2);",
+    "      field.ordinal = (int16_t)getU16 (_data);",
+    "      _data += 2;",
+    "    }",
+    "    field.name = std::string_view ();",
+    "    if (prefix & 0x08) {",
+    "      need (1);",
+    "      const size_t length = *_data++;",
+    "      need (length);",
+    "      field.name = std::string_view ((const char *)_data, length);",
+    "      _data += length;",
+    "    }",
+    "    if (prefix & 0x80) {",
+    "      const int size = fixedSize (field.type);",
+    "      if (size < 0) fail (\"unknown fixed width Fudge type\");",
+    "      field.size = (size_t)size;",
+    "    } else {",
+    "      switch ((prefix >> 5) & 3) {",
+    "      case 0 : field.size = 0; break;",
+    "      case 1 : need (1); field.size = *_data; _data += 1; break;",
+    "      case 2 : need (2); field.size = getU16 (_data); _data += 2; break;",
+    "      default : need (4); field.size = getU32 (_data); _data += 4; break;",
+    "      }",
+    "    }",
+    "    need (field.size);",
+    "    field.data = _data;",
+    "    _data += field.size;",
+    "    return true;",
+    "  }",
+    "private:",
+    "  void need (size_t size) const { if ((size_t)(_end - _data) < size) fail (\"truncated Fudge message\"); }",
+    "  const uint8_t *_data;",
+    "  const uint8_t *_end;",
+    "};",
+    "struct Envelope {",
+    "  uint16_t taxonomy;",
+    "  const uint8_t *data;",
+    "  size_t size;",
+    "};",
+    "inline Envelope openEnvelope (const uint8_t *data, size_t size) {",
+    "  if (size < 8) fail (\"truncated Fudge envelope\");",
+    "  const size_t total = getU32 (data + 4);",
+    "  if ((total < 8) || (total > size)) fail (\"invalid Fudge envelope size\");",
+    "  Envelope envelope;",
+    "  envelope.taxonomy = getU16 (data + 2);",
+    "  envelope.data = data + 8;",
+    "  envelope.size = total - 8;",
+    "  return envelope;",
+    "}",
+    "inline void checkType (const Field &field, uint8_t type) {",
+    "  if (field.type != type) fail (\"unexpected Fudge field type\");",
+    "}",
+    "inline void checkLength (size_t length, size_t expected) {",
+    "  if (length != expected) fail (\"unexpected Fudge array length\");",
+    "}",
+    "inline int64_t toLong (const Field &field) {",
+    "  switch (field.type) {",
+    "  case TYPE_BOOLEAN : case TYPE_BYTE : return (int8_t)field.data[0];",
+    "  case TYPE_SHORT : return (int16_t)getU16 (field.data);",
+    "  case TYPE_INT : return (int32_t)getU32 (field.data);",
+    "  case TYPE_LONG : return (int64_t)getU64 (field.data);",
+    "  default : fail (\"Fudge field is not an integer\");",
+    "  }",
+    "}",
+    "template<typename T> inline T toInteger (const Field &field) {",
+    "  const int64_t value = toLong (field);",
+    "  if ((value < std::numeric_limits<T>::min ()) || (value > std::numeric_limits<T>::max ())) fail (\"Fudge integer out of range\");",
+    "  return (T)value;",
+    "}",
+    "inline bool toBool (const Field &field) { return toLong (field) != 0; }",
+    "inline double toDouble (const Field &field) {",
+    "  if (field.type == TYPE_FLOAT) {",
+    "    float value;",
+    "    getValue (field.data, value);",
+    "    return value;",
+    "  } else if (field.type == TYPE_DOUBLE) {",
+    "    double value;",
+    "    getValue (field.data, value);",
+    "    return value;",
+    "  }",
+    "  return (double)toLong (field);",
+    "}",
+    "inline std::string_view toStringView (const Field &field) {",
+    "  checkType (field, TYPE_STRING);",
+    "  return std::string_view ((const char *)field.data, field.size);",
+    "}",
+    "// Decoded messages own their strings so they stay valid once the source buffer is released; the one copy is",
+    "// made straight from the buffer, and short strings fit the small string buffer without allocating. Read the",
+    "// fields with Reader and toStringView to look at strings without copying them.",
+    "inline std::string toString (const Field &field) { return std::string (toStringView (field)); }",
+    "template<typename T> inline T toBytes (const Field &field, uint8_t type) {",
+    "  checkType (field, type);",
+    "  T value;",
+    "  std::memcpy (value.bytes, field.data, sizeof (value.bytes));",
+    "  return value;",
+    "}",
+    "inline Date toDate (const Field &field) { return toBytes<Date> (field, TYPE_DATE); }",
+    "inline Time toTime (const Field &field) { return toBytes<Time> (field, TYPE_TIME); }",
+    "inline DateTime toDateTime (const Field &field) { return toBytes<DateTime> (field, TYPE_DATETIME); }",
+    "inline Message toAnonymousMessage (const Field &field) {",
+    "  checkType (field, TYPE_SUB_MESSAGE);",
+    "  return Message (field.data, field.size);",
+    "}",
+    "template<typename M> inline std::shared_ptr<const M> toMessage (const Field &field) {",
+    "  if (field.type == TYPE_INDICATOR) return std::shared_ptr<const M> ();",
+    "  checkType (field, TYPE_SUB_MESSAGE);",
+    "  return M::fromFieldsPolymorphic (field.data, field.size);",
+    "}",
+    "// Returns the next class name header, a string at ordinal 0, or an empty view once there are no more",
+    "inline std::string_view nextClassName (Reader &reader) {",
+    "  Field field;",
+    "  while (reader.next (field)) {",
+    "    if (field.hasOrdinal && (field.ordinal == 0) && (field.type == TYPE_STRING)) return std::string_view ((const char *)field.data, field.size);",
+    "  }",
+    "  return std::string_view ();",
+    "}",
+    "inline Reader toReader (const Field &field) {",
+    "  checkType (field, TYPE_SUB_MESSAGE);",
+    "  return Reader (field.data, field.size);",
+    "}",
+    "inline std::vector<int8_t> toByteArray (const Field &field) {",
+    "  if ((field.type != TYPE_BYTE_ARRAY) && ((field.type < TYPE_BYTE_ARRAY_4) || (field.type > TYPE_BYTE_ARRAY_512))) fail (\"Fudge field is not a byte array\");",
+    "  return std::vector<int8_t> ((const int8_t *)field.data, (const int8_t *)field.data + field.size);",
+    "}",
+    "template<typename T> inline std::vector<T> toArray (const Field &field, uint8_t type) {",
+    "  checkType (field, type);",
+    "  if (field.size % sizeof (T)) fail (\"invalid Fudge array size\");",
+    "  std::vector<T> values (field.size / sizeof (T));",
+    "  for (size_t i = 0; i < values.size (); i++) getValue (field.data + i * sizeof (T), values[i]);",
+    "  return values;",
+    "}",
+    "template<typename E> inline std::vector<E> toEnumArray (const Field &field) {",
+    "  checkType (field, TYPE_INT_ARRAY);",
+    "  if (field.size % 4) fail (\"invalid Fudge array size\");",
+    "  std::vector<E> values (field.size / 4);",
+    "  for (size_t i = 0; i < values.size (); i++) values[i] = static_cast<E> ((int32_t)getU32 (field.data + i * 4));",
+    "  return values;",
+    "}",
+    "} // namespace fudge_wire",
+    "#endif /* ifndef __FUDGE_PROTO_WIRE */"
+  };
+
+  private CPPWireRuntime () {
+  }
+
+  /* package */ static void write (final IndentWriter writer) throws IOException {
+    for (String line : SOURCE) {
+      writer.write (line);
+      writer.newLine ();
+    }
+  }
+
+}
@@ -18,9 +18,12 @@ package org.fudgemsg.proto.csharp;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.fudgemsg.proto.CodeGeneratorUtil;
 import org.fudgemsg.proto.Compiler;
@@ -52,6 +55,11 @@ import org.fudgemsg.wire.types.FudgeWireType;
   private static final String CLASS_MAPFUDGETAXONOMY = NAMESPACE_TAXON + ".MapFudgeTaxonomy";
   private static final String CLASS_FUDGEMSG = NAMESPACE_FUDGE + ".FudgeMsg";
   private static final String CLASS_FUDGECONTEXT = NAMESPACE_FUDGE + ".FudgeContext";
+  private static final String CLASS_IFUDGEFIELD = NAMESPACE_FUDGE + ".IFudgeField";
+  private static final String CLASS_INDICATORTYPE = NAMESPACE_FUDGE + ".Types.IndicatorType";
+  private static final String CLASS_FUDGEDATETIME = NAMESPACE_FUDGE + ".Types.FudgeDateTime";
+  private static final String CLASS_LIST = "System.Collections.Generic.List";
+  private static final String CLASS_ILIST = "System.Collections.Generic.IList";
   
   private CSharpClassCode () {
     super (new DocumentedClassCode (blockCodeDelegate (new CBlockCode (literalCodeDelegate (CSharpLiteralCode.INSTANCE)))));
@@ -87,67 +95,66 @@ import org.fudgemsg.wire.types.FudgeWireType;
     }
   }
   
+  /**
+   * Writes statements that return false from an equality test if the two values differ. Arrays and lists are
+   * compared element by element with the typed comparison for the element so nothing is boxed.
+   */
+  private void writeEqualsCheck (final IndentWriter writer, final FieldType type, final boolean repeated, final String left, final String right, final int lvCount) throws IOException {
+    if (repeated || (type instanceof FieldType.ArrayType)) {
+      final String length = repeated ? "Count" : "Length";
+      final String lv = "fudge" + lvCount;
+      writer.write ("if (" + left + " != " + right + ")");
+      beginBlock (writer); // if
+      writer.write ("if ((" + left + " == null) || (" + right + " == null) || (" + left + "." + length + " != " + right + "." + length + ")) return false");
+      endStmt (writer);
+      writer.write ("for (int " + lv + " = 0; " + lv + " < " + left + "." + length + "; " + lv + "++)");
+      beginBlock (writer); // for
+      writeEqualsCheck (writer, repeated ? type : ((FieldType.ArrayType)type).getBaseType (), false, left + "[" + lv + "]", right + "[" + lv + "]", lvCount + 1);
+      endBlock (writer); // for
+      endBlock (writer); // if
+    } else if ((type instanceof FieldType.MessageType) && !(type instanceof FieldType.AnonMessageType)) {
+      // resolves to the IEquatable overload
+      writer.write ("if ((" + left + " == null) ? (" + right + " != null) : !" + left + ".Equals (" + right + ")) return false");
+      endStmt (writer);
+    } else if (isValueType (type) || isString (type)) {
+      writer.write ("if (" + left + " != " + right + ") return false");
+      endStmt (writer);
+    } else {
+      writer.write ("if (!System.Object.Equals (" + left + ", " + right + ")) return false");
+      endStmt (writer);
+    }
+  }
+  
+  private boolean isString (final FieldType type) {
+    return !(type instanceof FieldType.ArrayType) && !(type instanceof FieldType.MessageType) && !(type instanceof FieldType.EnumType) && !(type instanceof FieldType.UserType) && (type.getFudgeFieldType () == FudgeWireType.STRING_TYPE_ID);
+  }
+  
   private void writeEquals (final IndentWriter writer, final MessageDefinition message) throws IOException {
+    final MessageDefinition ext = message.getExtends ();
     writer.write ("public bool Equals (" + message.getName () + " obj)");
     beginBlock (writer);
-    writer.write ("if (obj == null) return false");
+    writer.write ("if (System.Object.ReferenceEquals (obj, this)) return true");
     endStmt (writer);
-    for (FieldDefinition field : message.getFieldDefinitions ()) {
-      FieldType type = field.getType ();
-      String left = privateFieldName (field);
-      String right = "obj." + privateFieldName (field);
-      if (isObject (type) || field.isRepeated ()) {
-        int lvCount = 0;
-        writer.write ("if (" + left + " != null)");
-        beginBlock (writer); // if
-        writer.write ("if (" + right + " == null) return false"); // L is not null, R is null
-        endStmt (writer);
-        if (field.isRepeated ()) {
-          // iterate through the repeated fields
-          final String lv = "i" + (lvCount++);
-          writer.write ("if (" + left + ".Count != " + right + ".Count) return false"); // sizes differ
-          endStmt (writer);
-          writer.write ("for (int " + lv + " = 0; " + lv + " < " + right + ".Length; " + lv + "++) ");
-          left = left + "[" + lv  +"]";
-          right = right + "[" + lv + "]";
-          beginBlock (writer);
-        }
-        while (type instanceof FieldType.ArrayType) {
-          // iterate through the array elements
-          final String lv = "i" + (lvCount++);
-          writer.write ("if (" + left + ".Length != " + right + ".Length) return false"); // sizes differ
-          endStmt (writer);
-          type = ((FieldType.ArrayType)type).getBaseType ();
-          writer.write ("for (int " + lv + " = 0; " + lv + " < " + left + ".Length; " + lv + "++) ");
-          left = left + "[" + lv  +"]";
-          right = right + "[" + lv + "]";
-          beginBlock (writer);
-        }
-        if (isObject (type)) {
-          writer.write ("if (!" + left + ".Equals (" + right + ")) return false");
-        } else {
-          writer.write ("if (" + left + " != " + right + ") return false");
-        }
-        endStmt (writer);
-        // unwind the scopes from the iterations above
-        while (lvCount > 0) {
-          endBlock (writer);
-          lvCount--;
-        }
-        endBlock (writer); // if
-        writer.write ("else if (" + right + " != null) return false"); // a is null, b is not null
-        // a and b both null is an ok condition - equality holds
-      } else {
-        writer.write ("if (" + left + " != " + right + ") return false");
-      }
+    writer.write ("if (System.Object.ReferenceEquals (obj, null)) return false");
+    endStmt (writer);
+    if (ext == null) {
+      writer.write ("if (GetType () != obj.GetType ()) return false");
       endStmt (writer);
     }
-    writer.write ("return true");
+    for (FieldDefinition field : message.getFieldDefinitions ()) {
+      if (field.getOverride () != null) continue;
+      writeEqualsCheck (writer, field.getType (), field.isRepeated (), privateFieldName (field), "obj." + privateFieldName (field), 0);
+    }
+    if (ext != null) {
+      writer.write ("return base.Equals ((" + ext.getIdentifier () + ")obj)");
+    } else {
+      writer.write ("return true");
+    }
     endStmt (writer);
     endBlock (writer); // method
-    writer.write ("public bool Equals (Object obj)");
+    writer.write ("public override bool Equals (object obj)");
     beginBlock (writer);
-    writer.write ("return (obj is " + message.getName () + ") ? Equals ((" + message.getName () + ")obj) : false");
+    writer.write ("return Equals (obj as " + message.getName () + ")");
     endStmt (writer);
     endBlock (writer); // method
   }
@@ -156,12 +163,66 @@ import org.fudgemsg.wire.types.FudgeWireType;
     return ((type instanceof FieldType.ArrayType) || (type instanceof FieldType.MessageType));
   }
   
+  /**
+   * Returns true if the type is a C# value type, i.e. an optional field of it must be held as a nullable.
+   */
+  private boolean isValueType (final FieldType type) {
+    if ((type instanceof FieldType.ArrayType) || (type instanceof FieldType.MessageType) || (type instanceof FieldType.UserType)) {
+      return false;
+    } else if (type instanceof FieldType.EnumType) {
+      return true;
+    } else {
+      switch (type.getFudgeFieldType ()) {
+      case FudgeWireType.STRING_TYPE_ID :
+      case FudgeWireType.DATE_TYPE_ID :
+      case FudgeWireType.TIME_TYPE_ID :
+        return false;
+      default :
+        return true;
+      }
+    }
+  }
+  
+  /**
+   * Returns true if the array can be added to a message directly as one of the Fudge array types.
+   */
+  private boolean isFudgeArray (final FieldType.ArrayType type) {
+    final FieldType baseType = type.getBaseType ();
+    if (!isValueType (baseType) || (baseType instanceof FieldType.EnumType)) return false;
+    switch (baseType.getFudgeFieldType ()) {
+    case FudgeWireType.BYTE_TYPE_ID :
+    case FudgeWireType.SHORT_TYPE_ID :
+    case FudgeWireType.INT_TYPE_ID :
+    case FudgeWireType.LONG_TYPE_ID :
+    case FudgeWireType.FLOAT_TYPE_ID :
+    case FudgeWireType.DOUBLE_TYPE_ID :
+      return true;
+    default :
+      return false;
+    }
+  }
+  
+  /**
+   * Returns the expression for a new array of the given type, e.g. {@code new int[n][]} for an array of {@code int[]}.
+   */
+  private String newArray (final FieldType.ArrayType type, final String size) {
+    final String baseType = typeString (type.getBaseType ());
+    final int i = baseType.indexOf ('[');
+    if (i < 0) {
+      return "new " + baseType + "[" + size + "]";
+    } else {
+      return "new " + baseType.substring (0, i) + "[" + size + "]" + baseType.substring (i);
+    }
+  }
+  
   private String typeString (final FieldType type) {
     if (type instanceof FieldType.ArrayType) {
       final FieldType.ArrayType array = (FieldType.ArrayType)type;
       return typeString (array.getBaseType ()) + "[]";
     } else if (type instanceof FieldType.EnumType) {
       return ((FieldType.EnumType)type).getEnumDefinition ().getIdentifier ();
+    } else if (type instanceof FieldType.AnonMessageType) {
+      return CLASS_FUDGEMSG;
     } else if (type instanceof FieldType.MessageType) {
       return ((FieldType.MessageType)type).getMessageDefinition ().getIdentifier ();
     } else if (type instanceof FieldType.UserType) {
@@ -185,13 +246,13 @@ import org.fudgemsg.wire.types.FudgeWireType;
       case FudgeWireType.DOUBLE_TYPE_ID :
         return "double";
       case FudgeWireType.STRING_TYPE_ID :
-        return "String";
+        return "string";
       case FudgeWireType.DATE_TYPE_ID :
-        return "FudgeDate";
+        return NAMESPACE_FUDGE + ".Types.FudgeDate";
       case FudgeWireType.DATETIME_TYPE_ID :
-        return "DateTime";
+        return "System.DateTime";
       case FudgeWireType.TIME_TYPE_ID :
-        return "FudgeTime";
+        return NAMESPACE_FUDGE + ".Types.FudgeTime";
       default :
         throw new IllegalStateException ("type '" + type + "' is not an expected type (fudge field type " + type.getFudgeFieldType () + ")");
       }
@@ -201,62 +262,99 @@ import org.fudgemsg.wire.types.FudgeWireType;
   private String realTypeString (final FieldDefinition field, final boolean concrete) {
     final String type = typeString (field.getType ());
     if (field.isRepeated ()) {
-      // TODO 2010-01-11 Andrew -- a list of the field
-      return (concrete ? "concrete-" : "") + "list-of " + type; 
+      return (concrete ? CLASS_LIST : CLASS_ILIST) + "<" + type + ">";
+    } else if (!field.isRequired () && isValueType (field.getType ())) {
+      return type + "?";
     } else {
       return type;
     }
   }
   
+  /**
+   * Writes a statement to combine the hash of a value into {@code hc}. Arrays and lists are hashed element by element
+   * and primitives are converted directly rather than boxed.
+   */
+  private void writeHashCombine (final IndentWriter writer, final FieldType type, final boolean repeated, final boolean nullable, final String name, final int lvCount) throws IOException {
+    if (repeated || (type instanceof FieldType.ArrayType)) {
+      final String lv = "fudge" + lvCount;
+      writer.write ("if (" + name + " != null) for (int " + lv + " = 0; " + lv + " < " + name + "." + (repeated ? "Count" : "Length") + "; " + lv + "++)");
+      beginBlock (writer); // for
+      writeHashCombine (writer, repeated ? type : ((FieldType.ArrayType)type).getBaseType (), false, false, name + "[" + lv + "]", lvCount + 1);
+      endBlock (writer); // for
+      return;
+    }
+    final String value = nullable ? name + ".Value" : name;
+    final String hash;
+    if (type instanceof FieldType.EnumType) {
+      hash = "(int)" + value;
+    } else if (!isValueType (type)) {
+      hash = "((" + name + " != null) ? " + name + ".GetHashCode () : 0)";
+    } else {
+      switch (type.getFudgeFieldType ()) {
+      case FudgeWireType.INDICATOR_TYPE_ID :
+      case FudgeWireType.BOOLEAN_TYPE_ID :
+        hash = "(" + value + " ? 1 : 0)";
+        break;
+      case FudgeWireType.BYTE_TYPE_ID :
+      case FudgeWireType.SHORT_TYPE_ID :
+      case FudgeWireType.INT_TYPE_ID :
+        hash = value;
+        break;
+      case FudgeWireType.LONG_TYPE_ID :
+        hash = "(int)(" + value + " ^ (" + value + " >> 32))";
+        break;
+      default :
+        hash = value + ".GetHashCode ()";
+        break;
+      }
+    }
+    if (nullable && isValueType (type)) {
+      writer.write ("hc = (hc * 31) + (" + name + ".HasValue ? " + hash + " : 0)");
+    } else {
+      writer.write ("hc = (hc * 31) + " + hash);
+    }
+    endStmt (writer);
+  }
+  
+  /**
+   * Tests whether the hash code of a message can be cached, i.e. it and everything it references can't be changed
+   * after construction. Array and list attributes are exposed directly by the accessors, so these disqualify it.
+   */
+  private boolean isHashCodeCacheable (final MessageDefinition message, final Set<MessageDefinition> visited) {
+    if (message.isExternal ()) return false;
+    if (!visited.add (message)) return true;
+    for (FieldDefinition field : message.getFieldDefinitions ()) {
+      final FieldType type = field.getType ();
+      if (field.isMutable () || field.isRepeated () || (type instanceof FieldType.ArrayType) || (type instanceof FieldType.AnonMessageType)) return false;
+      if ((type instanceof FieldType.MessageType) && !isHashCodeCacheable (((FieldType.MessageType)type).getMessageDefinition (), visited)) return false;
+    }
+    return (message.getExtends () == null) || isHashCodeCacheable (message.getExtends (), visited);
+  }
+  
   private void writeGetHashCode (final IndentWriter writer, final MessageDefinition message) throws IOException {
-    writer.write ("public int GetHashCode ()");
+    final boolean cached = isHashCodeCacheable (message, new HashSet<MessageDefinition> ());
+    if (cached) {
+      writer.write ("private int m_fudgeHashCode");
+      endStmt (writer);
+    }
+    writer.write ("public override int GetHashCode ()");
     beginBlock (writer);
-    writer.write ("int hc = 1");
+    if (cached) {
+      writer.write ("if (m_fudgeHashCode != 0) return m_fudgeHashCode");
+      endStmt (writer);
+    }
+    writer.write ("int hc = " + ((message.getExtends () != null) ? "base.GetHashCode ()" : "1"));
     endStmt (writer);
     for (FieldDefinition field : message.getFieldDefinitions ()) {
-      FieldType type = field.getType ();
-      String name = privateFieldName (field);
-      int lvCount = 0;
-      writer.write ("hc *= 31");
+      if (field.getOverride () != null) continue;
+      writeHashCombine (writer, field.getType (), field.isRepeated (), !field.isRequired (), privateFieldName (field), 0);
+    }
+    if (cached) {
+      // zero is reserved for not yet calculated
+      writer.write ("if (hc == 0) hc = 1");
       endStmt (writer);
-      if (field.isRepeated ()) {
-        // iterate through repeated fields
-        final String lv = "i" + (lvCount++);
-        writer.write ("if (" + name + " != null) for (int " + lv + " = 0; lv < " + name + ".Length; " + lv + "++)");
-        beginBlock (writer);
-        writer.write ("hc *= 31");
-        endStmt (writer);
-        name = name + "[" + lv + "]";
-      }
-      while (type instanceof FieldType.ArrayType) {
-        // iterate through the array elements
-        final String lv = "i" + (lvCount++);
-        writer.write ("if (" + name + " != null) for (int " + lv + " = 0; lv < " + name + ".Length; " + lv + "++)");
-        beginBlock (writer);
-        writer.write ("hc *= 31");
-        endStmt (writer);
-        type = ((FieldType.ArrayType)type).getBaseType ();
-        name = name + "[" + lv + "]";
-      }
-      if (isObject (type)) {
-        writer.write ("if (" + name + " != null) hc += " + name + ".GetHashCode ()");
-      } else {
-        switch (type.getFudgeFieldType ()) {
-        case FudgeWireType.BOOLEAN_TYPE_ID :
-        case FudgeWireType.INDICATOR_TYPE_ID :
-          writer.write ("if (" + name + ") hc++");
-          break;
-        default :
-          writer.write ("hc += " + name);
-          break;
-        }
-      }
+      writer.write ("m_fudgeHashCode = hc");
       endStmt (writer);
-      // unwind the scopes from iterations above
-      while (lvCount > 0) {
-        endBlock (writer);
-        lvCount--;
-      }
     }
     writer.write ("return hc");
     endStmt (writer);
@@ -267,7 +365,8 @@ import org.fudgemsg.wire.types.FudgeWireType;
   public void beginClassImplementationDeclaration (final Compiler.Context context, final MessageDefinition message, final IndentWriter writer) throws IOException {
     super.beginClassImplementationDeclaration (context, message, writer);
     final MessageDefinition ext = message.getExtends ();
-    beginDefinition (writer, "class", message, (ext != null) ? ext.getIdentifier () : null);
+    final String equatable = "System.IEquatable<" + message.getName () + ">";
+    beginDefinition (writer, "class", message, (ext != null) ? ext.getIdentifier () + ", " + equatable : equatable);
   }
   
   @Override
@@ -279,9 +378,10 @@ import org.fudgemsg.wire.types.FudgeWireType;
   
   @Override
   public void writeClassImplementationAttribute (final Compiler.Context context, final FieldDefinition field, final IndentWriter writer) throws IOException {
+    if (field.getOverride () != null) return; // held by the base class
     writer.write ("private ");
     if (!field.isMutable ()) writer.write ("readonly ");
-    writer.write (typeString (field.getType ()) + " " + privateFieldName (field));
+    writer.write (realTypeString (field, false) + " " + privateFieldName (field));
     endStmt (writer);
   }
   
@@ -289,7 +389,7 @@ import org.fudgemsg.wire.types.FudgeWireType;
     if (type instanceof FieldType.ArrayType) {
       final FieldType.ArrayType array = (FieldType.ArrayType)type;
       final FieldType baseType = array.getBaseType ();
-      writer.write (source + " = shallow-copy-of-array (" + source + ")"); // TODO
+      writer.write (source + " = (" + typeString (type) + ")" + source + ".Clone ()");
       endStmt (writer);
       if (isObject (baseType)) {
         final String lv = "fudge" + (lvCount++);
@@ -321,7 +421,7 @@ import org.fudgemsg.wire.types.FudgeWireType;
       endStmt (writer);
       writer.write ("else");
       beginBlock (writer); // elseif
-      writer.write (value + " = shallow-copy-of-list (" + value + ")"); // TODO
+      writer.write (value + " = new " + realTypeString (field, true) + " (" + value + ")");
       endStmt (writer);
       if (field.isRequired ()) {
         writer.write ("if (" + value + ".Count == 0) throw new ArgumentException (\"Repeated field list for required field cannot be empty\", \"" + value + "\")");
@@ -348,7 +448,8 @@ import org.fudgemsg.wire.types.FudgeWireType;
   
   @Override
   public void writeClassImplementationAccessor (final Compiler.Context context, final FieldDefinition field, final IndentWriter writer) throws IOException {
-    writer.write ("public " + typeString (field.getType ()) + " " + camelCaseFieldName (field));
+    if (field.getOverride () != null) return; // inherited from the base class
+    writer.write ("public " + realTypeString (field, false) + " " + camelCaseFieldName (field));
     beginBlock (writer);
     writer.write ("get");
     beginBlock (writer); // get
@@ -365,23 +466,872 @@ import org.fudgemsg.wire.types.FudgeWireType;
     endBlock (writer);
   }
   
+  /**
+   * Returns the name of the generated helper methods that convert a name or string encoded enum to and from its
+   * Fudge representation.
+   */
+  private String enumCodecName (final EnumDefinition enumDefinition, final boolean encode) {
+    return (encode ? "fudgeEncode_" : "fudgeDecode_") + enumDefinition.getIdentifier ().replace ('.', '_');
+  }
+  
+  /**
+   * Writes statements to add a value to a message. Arrays that don't have a Fudge array type are sent as a
+   * sub-message of the elements.
+   */
+  private void writeAddToFudgeMsg (final IndentWriter writer, final String msg, final String key, final String value, final FieldType type, final int lvCount) throws IOException {
+    if (type instanceof FieldType.ArrayType) {
+      final FieldType.ArrayType array = (FieldType.ArrayType)type;
+      if (isFudgeArray (array)) {
+        if (array.getBaseType ().getFudgeFieldType () == FudgeWireType.BYTE_TYPE_ID) {
+          // the runtime allows sbyte[] to be viewed as byte[] without a copy
+          writer.write (msg + ".Add (" + key + ", (byte[])(System.Array)" + value + ")");
+        } else {
+          writer.write (msg + ".Add (" + key + ", " + value + ")");
+        }
+        endStmt (writer);
+        return;
+      }
+      final FieldType baseType = array.getBaseType ();
+      final String subMsg = "fudge" + lvCount;
+      final String lv = "fudge" + (lvCount + 1);
+      writer.write ("{");
+      writer.newLineIndent ();
+      writer.write (CLASS_FUDGEMSG + " " + subMsg + " = context.NewMessage ()");
+      endStmt (writer);
+      writer.write ("for (int " + lv + " = 0; " + lv + " < " + value + ".Length; " + lv + "++)");
+      beginBlock (writer); // for
+      if (!isValueType (baseType)) {
+        writer.write ("if (" + value + "[" + lv + "] == null) " + subMsg + ".Add (null, null, " + CLASS_INDICATORTYPE + ".Instance)");
+        endStmt (writer);
+        writer.write ("else");
+        beginBlock (writer); // else
+      }
+      writeAddToFudgeMsg (writer, subMsg, "null, null", value + "[" + lv + "]", baseType, lvCount + 2);
+      if (!isValueType (baseType)) {
+        endBlock (writer); // else
+      }
+      endBlock (writer); // for
+      writer.write (msg + ".Add (" + key + ", " + subMsg + ")");
+      endStmt (writer);
+      endBlock (writer); // scope
+      return;
+    }
+    final String encoded;
+    if (type instanceof FieldType.AnonMessageType) {
+      encoded = value;
+    } else if (type instanceof FieldType.MessageType) {
+      encoded = value + ".toFudgeMsg (context)";
+    } else if (type instanceof FieldType.EnumType) {
+      final EnumDefinition enumDefinition = ((FieldType.EnumType)type).getEnumDefinition ();
+      if (enumDefinition.getType () == EnumDefinition.Type.INTEGER_ENCODED) {
+        encoded = "(int)" + value;
+      } else {
+        encoded = enumCodecName (enumDefinition, true) + " (" + value + ")";
+      }
+    } else if (type instanceof FieldType.UserType) {
+      encoded = value;
+    } else {
+      switch (type.getFudgeFieldType ()) {
+      case FudgeWireType.INDICATOR_TYPE_ID :
+        writer.write ("if (" + value + ") " + msg + ".Add (" + key + ", " + CLASS_INDICATORTYPE + ".Instance)");
+        endStmt (writer);
+        return;
+      case FudgeWireType.DATETIME_TYPE_ID :
+        encoded = "new " + CLASS_FUDGEDATETIME + " (" + value + ")";
+        break;
+      default :
+        encoded = value;
+        break;
+      }
+    }
+    writer.write (msg + ".Add (" + key + ", " + encoded + ")");
+    endStmt (writer);
+  }
+  
   private void writeToFudgeMsg (final IndentWriter writer, final MessageDefinition message) throws IOException {
-    writer.write ("public " + CLASS_FUDGEMSG + " toFudgeMsg (" + CLASS_FUDGECONTEXT + " context)");
+    final MessageDefinition ext = message.getExtends ();
+    if (ext == null) {
+      writer.write ("public " + CLASS_FUDGEMSG + " toFudgeMsg (" + CLASS_FUDGECONTEXT + " context)");
+      beginBlock (writer);
+      writer.write (CLASS_FUDGEMSG + " fudgeMsg = context.NewMessage ()");
+      endStmt (writer);
+      writer.write ("toFudgeMsg (context, fudgeMsg)");
+      endStmt (writer);
+      writer.write ("return fudgeMsg");
+      endStmt (writer);
+      endBlock (writer);
+    }
+    writer.write ("public " + ((ext == null) ? "virtual" : "override") + " void toFudgeMsg (" + CLASS_FUDGECONTEXT + " context, " + CLASS_FUDGEMSG + " msg)");
     beginBlock (writer);
-    writer.write (CLASS_FUDGEMSG + " fudgeMsg = context.newMessage ()");
+    if (ext != null) {
+      writer.write ("base.toFudgeMsg (context, msg)");
+      endStmt (writer);
+    }
+    for (FieldDefinition field : message.getFieldDefinitions ()) {
+      if (field.getOverride () != null) continue;
+      final FieldType type = field.getType ();
+      final String key = (field.getOrdinal () != null) ? "null, " + field.getOrdinal () : "\"" + field.getName () + "\", null";
+      final String name = privateFieldName (field);
+      if (field.isRepeated ()) {
+        writer.write ("if (" + name + " != null) for (int fudge0 = 0; fudge0 < " + name + ".Count; fudge0++)");
+        beginBlock (writer); // for
+        writeAddToFudgeMsg (writer, "msg", key, name + "[fudge0]", type, 1);
+        endBlock (writer); // for
+      } else if (isValueType (type)) {
+        if (field.isRequired ()) {
+          writeAddToFudgeMsg (writer, "msg", key, name, type, 0);
+        } else {
+          writer.write ("if (" + name + ".HasValue)");
+          beginBlock (writer); // if
+          writeAddToFudgeMsg (writer, "msg", key, name + ".Value", type, 0);
+          endBlock (writer); // if
+        }
+      } else {
+        writer.write ("if (" + name + " != null)");
+        beginBlock (writer); // if
+        writeAddToFudgeMsg (writer, "msg", key, name, type, 0);
+        endBlock (writer); // if
+      }
+    }
+    endBlock (writer);
+  }
+  
+  /**
+   * Writes statements to decode a field value (an object expression) into the target.
+   */
+  private void writeDecodeValue (final IndentWriter writer, final FieldType type, final String target, final String source, final int lvCount) throws IOException {
+    if (type instanceof FieldType.ArrayType) {
+      final FieldType.ArrayType array = (FieldType.ArrayType)type;
+      if (isFudgeArray (array)) {
+        if (array.getBaseType ().getFudgeFieldType () == FudgeWireType.BYTE_TYPE_ID) {
+          writer.write (target + " = (sbyte[])(System.Array)(byte[])" + source);
+        } else {
+          writer.write (target + " = (" + typeString (type) + ")" + source);
+        }
+        endStmt (writer);
+        return;
+      }
+      final FieldType baseType = array.getBaseType ();
+      final String subFields = "fudge" + lvCount;
+      final String elements = "fudge" + (lvCount + 1);
+      final String lv = "fudge" + (lvCount + 2);
+      writer.write ("{");
+      writer.newLineIndent ();
+      writer.write (CLASS_ILIST + "<" + CLASS_IFUDGEFIELD + "> " + subFields + " = ((" + CLASS_FUDGEMSG + ")" + source + ").GetAllFields ()");
+      endStmt (writer);
+      writer.write (typeString (type) + " " + elements + " = " + newArray (array, subFields + ".Count"));
+      endStmt (writer);
+      writer.write ("for (int " + lv + " = 0; " + lv + " < " + subFields + ".Count; " + lv + "++)");
+      beginBlock (writer); // for
+      if (!isValueType (baseType)) {
+        writer.write ("if (" + subFields + "[" + lv + "].Value is " + CLASS_INDICATORTYPE + ") continue");
+        endStmt (writer);
+      }
+      writeDecodeValue (writer, baseType, elements + "[" + lv + "]", subFields + "[" + lv + "].Value", lvCount + 3);
+      endBlock (writer); // for
+      writer.write (target + " = " + elements);
+      endStmt (writer);
+      endBlock (writer); // scope
+      return;
+    }
+    final String decoded;
+    if (type instanceof FieldType.AnonMessageType) {
+      decoded = "(" + CLASS_FUDGEMSG + ")" + source;
+    } else if (type instanceof FieldType.MessageType) {
+      decoded = typeString (type) + ".fromFudgeMsg ((" + CLASS_FUDGEMSG + ")" + source + ")";
+    } else if (type instanceof FieldType.EnumType) {
+      final EnumDefinition enumDefinition = ((FieldType.EnumType)type).getEnumDefinition ();
+      if (enumDefinition.getType () == EnumDefinition.Type.INTEGER_ENCODED) {
+        decoded = "(" + typeString (type) + ")System.Convert.ToInt32 (" + source + ")";
+      } else {
+        decoded = enumCodecName (enumDefinition, false) + " ((string)" + source + ")";
+      }
+    } else if (type instanceof FieldType.UserType) {
+      decoded = "(" + typeString (type) + ")" + source;
+    } else {
+      switch (type.getFudgeFieldType ()) {
+      case FudgeWireType.INDICATOR_TYPE_ID :
+        decoded = "true";
+        break;
+      case FudgeWireType.BOOLEAN_TYPE_ID :
+        decoded = "System.Convert.ToBoolean (" + source + ")";
+        break;
+      case FudgeWireType.BYTE_TYPE_ID :
+        decoded = "System.Convert.ToSByte (" + source + ")";
+        break;
+      case FudgeWireType.SHORT_TYPE_ID :
+        decoded = "System.Convert.ToInt16 (" + source + ")";
+        break;
+      case FudgeWireType.INT_TYPE_ID :
+        decoded = "System.Convert.ToInt32 (" + source + ")";
+        break;
+      case FudgeWireType.LONG_TYPE_ID :
+        decoded = "System.Convert.ToInt64 (" + source + ")";
+        break;
+      case FudgeWireType.FLOAT_TYPE_ID :
+        decoded = "System.Convert.ToSingle (" + source + ")";
+        break;
+      case FudgeWireType.DOUBLE_TYPE_ID :
+        decoded = "System.Convert.ToDouble (" + source + ")";
+        break;
+      case FudgeWireType.DATETIME_TYPE_ID :
+        decoded = "((" + CLASS_FUDGEDATETIME + ")" + source + ").ToDateTime ()";
+        break;
+      default :
+        decoded = "(" + typeString (type) + ")" + source;
+        break;
+      }
+    }
+    writer.write (target + " = " + decoded);
     endStmt (writer);
-    // TODO 2010-01-11 Andrew -- add fields to the fudge message
-    writer.write ("return fudgeMsg");
+  }
+  
+  /**
+   * Writes the case for a field within the decoding switch.
+   */
+  private void writeDecodeFieldCase (final IndentWriter writer, final String label, final FieldDefinition field, final Set<FieldDefinition> required) throws IOException {
+    writer.write ("case " + label + " :");
+    writer.newLineIndent ();
+    final String name = privateFieldName (field);
+    if (field.isRepeated ()) {
+      // count the remaining elements on the first one so the list is allocated once at its final size
+      writer.write ("if (" + name + " == null)");
+      beginBlock (writer); // if
+      writer.write ("int fudgeCount = 1");
+      endStmt (writer);
+      writer.write ("for (int fudge0 = fudgeIndex + 1; fudge0 < fudgeFields.Count; fudge0++) if (fudgeFields[fudge0]." + ((field.getOrdinal () != null) ? "Ordinal" : "Name") + " == " + label + ") fudgeCount++");
+      endStmt (writer);
+      writer.write (name + " = new " + realTypeString (field, true) + " (fudgeCount)");
+      endStmt (writer);
+      endBlock (writer); // if
+      writer.write ("{");
+      writer.newLineIndent ();
+      writer.write (typeString (field.getType ()) + " fudge0");
+      endStmt (writer);
+      writeDecodeValue (writer, field.getType (), "fudge0", "fudgeField.Value", 1);
+      writer.write (name + ".Add (fudge0)");
+      endStmt (writer);
+      endBlock (writer); // scope
+    } else {
+      writeDecodeValue (writer, field.getType (), name, "fudgeField.Value", 0);
+      if (required.contains (field) && isValueType (field.getType ())) {
+        writer.write ("fudgeFound_" + camelCaseFieldName (field) + " = true");
+        endStmt (writer);
+      }
+    }
+    writer.write ("break");
     endStmt (writer);
-    endBlock (writer);
+    writer.newLineOutdent ();
+  }
+  
+  /**
+   * Writes the start of a decoding constructor, assigning default values and declaring the flags for required value
+   * type fields. The fields to be decoded are split by whether they are keyed by ordinal or name and the required
+   * ones returned.
+   */
+  private Set<FieldDefinition> writeDecodePrologue (final Compiler.Context context, final IndentWriter writer, final MessageDefinition message, final List<FieldDefinition> ordinalFields, final List<FieldDefinition> namedFields) throws IOException {
+    final Set<FieldDefinition> required = new LinkedHashSet<FieldDefinition> ();
+    for (FieldDefinition field : message.getFieldDefinitions ()) {
+      if (field.getOverride () != null) continue;
+      if (field.getOrdinal () != null) {
+        ordinalFields.add (field);
+      } else {
+        namedFields.add (field);
+      }
+      if (field.getDefaultValue () != null) {
+        writer.write (privateFieldName (field) + " = " + getLiteral (field.getDefaultValue ().assignmentTo (context, field.getType ())));
+        endStmt (writer);
+      } else if (field.isRequired ()) {
+        required.add (field);
+        if (!field.isRepeated () && isValueType (field.getType ())) {
+          writer.write ("bool fudgeFound_" + camelCaseFieldName (field) + " = false");
+          endStmt (writer);
+        }
+      }
+    }
+    return required;
   }
   
-  private void writeFromFudgeMsg (final IndentWriter writer, final MessageDefinition message, final boolean useBuilder) throws IOException {
-    writer.write ("public static " + message.getName () + " fromFudgeMsg (" + CLASS_FUDGEMSG + " msg)");
+  /**
+   * Writes the checks at the end of a decoding constructor that the required fields were present.
+   */
+  private void writeDecodeEpilogue (final IndentWriter writer, final MessageDefinition message, final Set<FieldDefinition> required, final String parameter) throws IOException {
+    for (FieldDefinition field : required) {
+      if (!field.isRepeated () && isValueType (field.getType ())) {
+        writer.write ("if (!fudgeFound_" + camelCaseFieldName (field) + ")");
+      } else {
+        writer.write ("if (" + privateFieldName (field) + " == null)");
+      }
+      writer.write (" throw new System.ArgumentException (\"Fudge message is not a " + message.getName () + " - field '" + field.getName () + "' is not present\", \"" + parameter + "\")");
+      endStmt (writer);
+    }
+  }
+  
+  /**
+   * Writes the constructor used for decoding. The fields are visited once, each being dispatched to its attribute
+   * by ordinal (or name if it has no ordinal) without any per-field lookups in the message.
+   */
+  private void writeFudgeMsgConstructor (final Compiler.Context context, final IndentWriter writer, final MessageDefinition message) throws IOException {
+    writer.write ("protected " + message.getName () + " (" + CLASS_FUDGEMSG + " msg)");
+    if (message.getExtends () != null) {
+      writer.write (" : base (msg)");
+    }
+    beginBlock (writer); // constructor
+    final List<FieldDefinition> ordinalFields = new LinkedList<FieldDefinition> ();
+    final List<FieldDefinition> namedFields = new LinkedList<FieldDefinition> ();
+    final Set<FieldDefinition> required = writeDecodePrologue (context, writer, message, ordinalFields, namedFields);
+    if (!ordinalFields.isEmpty () || !namedFields.isEmpty ()) {
+      writer.write (CLASS_ILIST + "<" + CLASS_IFUDGEFIELD + "> fudgeFields = msg.GetAllFields ()");
+      endStmt (writer);
+      writer.write ("for (int fudgeIndex = 0; fudgeIndex < fudgeFields.Count; fudgeIndex++)");
+      beginBlock (writer); // for
+      writer.write (CLASS_IFUDGEFIELD + " fudgeField = fudgeFields[fudgeIndex]");
+      endStmt (writer);
+      if (!ordinalFields.isEmpty ()) {
+        writer.write ("if (fudgeField.Ordinal.HasValue)");
+        beginBlock (writer); // if
+        writer.write ("switch (fudgeField.Ordinal.Value)");
+        beginBlock (writer); // switch
+        for (FieldDefinition field : ordinalFields) {
+          writeDecodeFieldCase (writer, field.getOrdinal ().toString (), field, required);
+        }
+        endBlock (writer); // switch
+        endBlock (writer); // if
+      }
+      if (!namedFields.isEmpty ()) {
+        writer.write ((ordinalFields.isEmpty () ? "if" : "else if") + " (fudgeField.Name != null)");
+        beginBlock (writer); // if
+        writer.write ("switch (fudgeField.Name)");
+        beginBlock (writer); // switch
+        for (FieldDefinition field : namedFields) {
+          writeDecodeFieldCase (writer, "\"" + field.getName () + "\"", field, required);
+        }
+        endBlock (writer); // switch
+        endBlock (writer); // if
+      }
+      endBlock (writer); // for
+    }
+    writeDecodeEpilogue (writer, message, required, "msg");
+    endBlock (writer); // constructor
+  }
+  
+  private void writeFromFudgeMsg (final IndentWriter writer, final MessageDefinition message) throws IOException {
+    writer.write ("public static " + ((message.getExtends () != null) ? "new " : "") + message.getName () + " fromFudgeMsg (" + CLASS_FUDGEMSG + " msg)");
     beginBlock (writer);
-    // TODO 2010-01-11 Andrew -- decode the message fields and invoke the correct construction paradigm
+    writer.write ("return new " + message.getName () + " (msg)");
+    endStmt (writer);
     endBlock (writer);
   }
+  
+  private void collectEnumCodecs (final FieldType type, final Set<EnumDefinition> enums) {
+    if (type instanceof FieldType.ArrayType) {
+      collectEnumCodecs (((FieldType.ArrayType)type).getBaseType (), enums);
+    } else if (type instanceof FieldType.EnumType) {
+      final EnumDefinition enumDefinition = ((FieldType.EnumType)type).getEnumDefinition ();
+      if (enumDefinition.getType () != EnumDefinition.Type.INTEGER_ENCODED) enums.add (enumDefinition);
+    }
+  }
+  
+  /**
+   * Writes the conversions for name or string encoded enums used by the message. These are switches over the
+   * elements rather than the reflection based Enum.Parse and ToString.
+   */
+  private void writeEnumCodecs (final Compiler.Context context, final IndentWriter writer, final MessageDefinition message) throws IOException {
+    final Set<EnumDefinition> enums = new LinkedHashSet<EnumDefinition> ();
+    for (FieldDefinition field : message.getFieldDefinitions ()) {
+      if (field.getOverride () != null) continue;
+      collectEnumCodecs (field.getType (), enums);
+    }
+    for (EnumDefinition enumDefinition : enums) {
+      final String enumType = enumDefinition.getIdentifier ();
+      final List<String> keys = new LinkedList<String> ();
+      final List<String> literals = new LinkedList<String> ();
+      for (Map.Entry<String,LiteralValue> element : enumDefinition.getElements ()) {
+        LiteralValue value = element.getValue ();
+        if (value instanceof LiteralValue.NullValue) {
+          value = ((LiteralValue.NullValue)value).inferString (element.getKey ());
+        } else {
+          value = value.assignmentTo (context, FieldType.STRING_TYPE);
+        }
+        keys.add (element.getKey ());
+        literals.add (getLiteral (value));
+      }
+      writer.write ("private static string " + enumCodecName (enumDefinition, true) + " (" + enumType + " value)");
+      beginBlock (writer); // method
+      writer.write ("switch (value)");
+      beginBlock (writer); // switch
+      for (int i = 0; i < keys.size (); i++) {
+        writer.write ("case " + enumType + "." + keys.get (i) + " : return " + literals.get (i));
+        endStmt (writer);
+      }
+      writer.write ("default : throw new System.ArgumentException (\"Invalid " + enumDefinition.getName () + " value\", \"value\")");
+      endStmt (writer);
+      endBlock (writer); // switch
+      endBlock (writer); // method
+      writer.write ("private static " + enumType + " " + enumCodecName (enumDefinition, false) + " (string value)");
+      beginBlock (writer); // method
+      writer.write ("switch (value)");
+      beginBlock (writer); // switch
+      for (int i = 0; i < keys.size (); i++) {
+        writer.write ("case " + literals.get (i) + " : return " + enumType + "." + keys.get (i));
+        endStmt (writer);
+      }
+      writer.write ("default : throw new System.ArgumentException (\"Invalid " + enumDefinition.getName () + " encoding\", \"value\")");
+      endStmt (writer);
+      endBlock (writer); // switch
+      endBlock (writer); // method
+    }
+  }
+
+  private static final String WIRE = CSharpWireRuntime.CLASS_WIRE;
+  
+  /**
+   * Returns true if the type has a mapping in the span codec. Date and time types, typedefs, anonymous and external
+   * messages are only available through {@link #writeToFudgeMsg}.
+   */
+  private boolean isSpanType (final FieldType type, final Set<MessageDefinition> visited) {
+    if (type instanceof FieldType.ArrayType) {
+      return isSpanType (((FieldType.ArrayType)type).getBaseType (), visited);
+    } else if (type instanceof FieldType.AnonMessageType) {
+      return false;
+    } else if (type instanceof FieldType.MessageType) {
+      return isSpanCapable (((FieldType.MessageType)type).getMessageDefinition (), visited);
+    } else if (type instanceof FieldType.EnumType) {
+      return true;
+    } else if (type instanceof FieldType.UserType) {
+      return false;
+    } else {
+      switch (type.getFudgeFieldType ()) {
+      case FudgeWireType.DATE_TYPE_ID :
+      case FudgeWireType.TIME_TYPE_ID :
+      case FudgeWireType.DATETIME_TYPE_ID :
+        return false;
+      default :
+        return true;
+      }
+    }
+  }
+  
+  private boolean isSpanCapable (final MessageDefinition message, final Set<MessageDefinition> visited) {
+    if (message.isExternal ()) return false;
+    if (!visited.add (message)) return true;
+    for (FieldDefinition field : message.getFieldDefinitions ()) {
+      if (field.getOverride () != null) continue;
+      if (!isSpanType (field.getType (), visited)) return false;
+    }
+    return (message.getExtends () == null) || isSpanCapable (message.getExtends (), visited);
+  }
+  
+  /**
+   * Returns the suffix of the runtime methods for a primitive type, e.g. Int32 for WriteInt32 and ToInt32.
+   */
+  private String spanSuffix (final FieldType type) {
+    switch (type.getFudgeFieldType ()) {
+    case FudgeWireType.BOOLEAN_TYPE_ID : return "Boolean";
+    case FudgeWireType.BYTE_TYPE_ID : return "SByte";
+    case FudgeWireType.SHORT_TYPE_ID : return "Int16";
+    case FudgeWireType.INT_TYPE_ID : return "Int32";
+    case FudgeWireType.LONG_TYPE_ID : return "Int64";
+    case FudgeWireType.FLOAT_TYPE_ID : return "Single";
+    case FudgeWireType.DOUBLE_TYPE_ID : return "Double";
+    case FudgeWireType.STRING_TYPE_ID : return "String";
+    default : throw new IllegalStateException ("type '" + type + "' has no span mapping");
+    }
+  }
+  
+  /**
+   * Returns the encoded width of a fixed width primitive.
+   */
+  private int spanWidth (final FieldType type) {
+    switch (type.getFudgeFieldType ()) {
+    case FudgeWireType.INDICATOR_TYPE_ID : return 0;
+    case FudgeWireType.BOOLEAN_TYPE_ID : return 1;
+    case FudgeWireType.BYTE_TYPE_ID : return 1;
+    case FudgeWireType.SHORT_TYPE_ID : return 2;
+    case FudgeWireType.INT_TYPE_ID : return 4;
+    case FudgeWireType.LONG_TYPE_ID : return 8;
+    case FudgeWireType.FLOAT_TYPE_ID : return 4;
+    case FudgeWireType.DOUBLE_TYPE_ID : return 8;
+    default : throw new IllegalStateException ("type '" + type + "' is not fixed width");
+    }
+  }
+  
+  /**
+   * Returns the size of a field's key on the wire; the prefix and type bytes, then the ordinal or the name.
+   */
+  private int spanKeySize (final FieldDefinition field) {
+    return (field.getOrdinal () != null) ? 4 : 3 + field.getName ().length ();
+  }
+  
+  private String spanOrdinal (final FieldDefinition field) {
+    return (field.getOrdinal () != null) ? field.getOrdinal ().toString () : "-1";
+  }
+  
+  private String spanName (final FieldDefinition field) {
+    return (field.getOrdinal () != null) ? "default" : "\"" + field.getName () + "\"u8";
+  }
+  
+  /**
+   * Opens the null check, or loop for a repeated field, around encoding a field and returns the value expression.
+   */
+  private String beginSpanFieldValue (final IndentWriter writer, final FieldDefinition field) throws IOException {
+    final String name = privateFieldName (field);
+    if (field.isRepeated ()) {
+      writer.write ("if (" + name + " != null) for (int fudge0 = 0; fudge0 < " + name + ".Count; fudge0++)");
+      beginBlock (writer); // for
+      return name + "[fudge0]";
+    } else if (isValueType (field.getType ())) {
+      if (field.isRequired ()) return name;
+      writer.write ("if (" + name + ".HasValue)");
+      beginBlock (writer); // if
+      return name + ".Value";
+    } else {
+      writer.write ("if (" + name + " != null)");
+      beginBlock (writer); // if
+      return name;
+    }
+  }
+  
+  private void endSpanFieldValue (final IndentWriter writer, final FieldDefinition field) throws IOException {
+    if (field.isRepeated () || !field.isRequired () || !isValueType (field.getType ())) {
+      endBlock (writer);
+    }
+  }
+  
+  /**
+   * Writes statements adding the encoded size of the elements of an array sent as a sub-message to the target. If
+   * cached is set, message elements use the size recorded by the sizing pass instead of calculating it again.
+   */
+  private void writeSpanElementsSize (final IndentWriter writer, final FieldType.ArrayType type, final String value, final String target, final boolean cached, final int lvCount) throws IOException {
+    final FieldType baseType = type.getBaseType ();
+    final String lv = "fudge" + lvCount;
+    writer.write ("for (int " + lv + " = 0; " + lv + " < " + value + ".Length; " + lv + "++)");
+    beginBlock (writer); // for
+    if (!isValueType (baseType)) {
+      writer.write ("if (" + value + "[" + lv + "] == null) " + target + " += 2");
+      endStmt (writer);
+      writer.write ("else");
+      beginBlock (writer); // else
+    }
+    writeSpanSize (writer, baseType, value + "[" + lv + "]", 2, target, cached, lvCount + 1);
+    if (!isValueType (baseType)) {
+      endBlock (writer); // else
+    }
+    endBlock (writer); // for
+  }
+  
+  /**
+   * Writes statements adding the encoded size of a value, with a key of the given size, to the target. If cached is
+   * set, sub-messages use the size recorded by the sizing pass instead of calculating it again.
+   */
+  private void writeSpanSize (final IndentWriter writer, final FieldType type, final String value, final int keySize, final String target, final boolean cached, final int lvCount) throws IOException {
+    if (type instanceof FieldType.ArrayType) {
+      final FieldType.ArrayType array = (FieldType.ArrayType)type;
+      if (isFudgeArray (array)) {
+        final int width = spanWidth (array.getBaseType ());
+        writer.write (target + " += " + WIRE + ".VariableSize (" + keySize + ", " + value + ".Length" + ((width > 1) ? " * " + width : "") + ")");
+        endStmt (writer);
+      } else {
+        final String size = "fudge" + lvCount;
+        writer.write ("{");
+        writer.newLineIndent ();
+        writer.write ("int " + size + " = 0");
+        endStmt (writer);
+        writeSpanElementsSize (writer, array, value, size, cached, lvCount + 1);
+        writer.write (target + " += " + WIRE + ".VariableSize (" + keySize + ", " + size + ")");
+        endStmt (writer);
+        endBlock (writer); // scope
+      }
+    } else if (type instanceof FieldType.MessageType) {
+      writer.write (target + " += " + WIRE + ".VariableSize (" + keySize + ", " + value + (cached ? ".FudgeFieldsSize)" : ".GetFudgeFieldsSize ())"));
+      endStmt (writer);
+    } else if (type instanceof FieldType.EnumType) {
+      final EnumDefinition enumDefinition = ((FieldType.EnumType)type).getEnumDefinition ();
+      if (enumDefinition.getType () == EnumDefinition.Type.INTEGER_ENCODED) {
+        writer.write (target + " += " + (keySize + 4));
+      } else {
+        writer.write (target + " += " + WIRE + ".StringSize (" + keySize + ", " + enumCodecName (enumDefinition, true) + " (" + value + "))");
+      }
+      endStmt (writer);
+    } else if (type.getFudgeFieldType () == FudgeWireType.INDICATOR_TYPE_ID) {
+      writer.write ("if (" + value + ") " + target + " += " + keySize);
+      endStmt (writer);
+    } else if (type.getFudgeFieldType () == FudgeWireType.STRING_TYPE_ID) {
+      writer.write (target + " += " + WIRE + ".StringSize (" + keySize + ", " + value + ")");
+      endStmt (writer);
+    } else {
+      writer.write (target + " += " + (keySize + spanWidth (type)));
+      endStmt (writer);
+    }
+  }
+  
+  /**
+   * Writes statements encoding a value into {@code buffer} at {@code offset}.
+   */
+  private void writeSpanWrite (final IndentWriter writer, final FieldType type, final String value, final String ordinal, final String name, final int lvCount) throws IOException {
+    final String args = "buffer, offset, " + ordinal + ", " + name + ", ";
+    if (type instanceof FieldType.ArrayType) {
+      final FieldType.ArrayType array = (FieldType.ArrayType)type;
+      if (isFudgeArray (array)) {
+        writer.write ("offset = " + WIRE + ".Write" + spanSuffix (array.getBaseType ()) + "Array (" + args + value + ")");
+        endStmt (writer);
+        return;
+      }
+      final FieldType baseType = array.getBaseType ();
+      final String size = "fudge" + lvCount;
+      final String lv = "fudge" + (lvCount + 1);
+      writer.write ("{");
+      writer.newLineIndent ();
+      writer.write ("int " + size + " = 0");
+      endStmt (writer);
+      writeSpanElementsSize (writer, array, value, size, true, lvCount + 1);
+      writer.write ("offset = " + WIRE + ".WriteSubMessageHeader (" + args + size + ")");
+      endStmt (writer);
+      writer.write ("for (int " + lv + " = 0; " + lv + " < " + value + ".Length; " + lv + "++)");
+      beginBlock (writer); // for
+      if (!isValueType (baseType)) {
+        writer.write ("if (" + value + "[" + lv + "] == null) offset = " + WIRE + ".WriteIndicator (buffer, offset, -1, default)");
+        endStmt (writer);
+        writer.write ("else");
+        beginBlock (writer); // else
+      }
+      writeSpanWrite (writer, baseType, value + "[" + lv + "]", "-1", "default", lvCount + 2);
+      if (!isValueType (baseType)) {
+        endBlock (writer); // else
+      }
+      endBlock (writer); // for
+      endBlock (writer); // scope
+    } else if (type instanceof FieldType.MessageType) {
+      writer.write ("offset = " + WIRE + ".WriteSubMessageHeader (" + args + value + ".FudgeFieldsSize)");
+      endStmt (writer);
+      writer.write ("offset = " + value + ".WriteFudgeFields (buffer, offset)");
+      endStmt (writer);
+    } else if (type instanceof FieldType.EnumType) {
+      final EnumDefinition enumDefinition = ((FieldType.EnumType)type).getEnumDefinition ();
+      if (enumDefinition.getType () == EnumDefinition.Type.INTEGER_ENCODED) {
+        writer.write ("offset = " + WIRE + ".WriteInt32 (" + args + "(int)" + value + ")");
+      } else {
+        writer.write ("offset = " + WIRE + ".WriteString (" + args + enumCodecName (enumDefinition, true) + " (" + value + "))");
+      }
+      endStmt (writer);
+    } else if (type.getFudgeFieldType () == FudgeWireType.INDICATOR_TYPE_ID) {
+      writer.write ("if (" + value + ") offset = " + WIRE + ".WriteIndicator (buffer, offset, " + ordinal + ", " + name + ")");
+      endStmt (writer);
+    } else {
+      writer.write ("offset = " + WIRE + ".Write" + spanSuffix (type) + " (" + args + value + ")");
+      endStmt (writer);
+    }
+  }
+  
+  /**
+   * Writes statements decoding the current field of a reader into the target.
+   */
+  private void writeSpanDecodeValue (final IndentWriter writer, final FieldType type, final String target, final String reader, final int lvCount) throws IOException {
+    final String args = "(" + reader + ".Type, " + reader + ".Value)";
+    if (type instanceof FieldType.ArrayType) {
+      final FieldType.ArrayType array = (FieldType.ArrayType)type;
+      if (isFudgeArray (array)) {
+        writer.write (target + " = " + WIRE + ".To" + spanSuffix (array.getBaseType ()) + "Array " + args);
+        endStmt (writer);
+        return;
+      }
+      final FieldType baseType = array.getBaseType ();
+      final String elementReader = "fudge" + lvCount;
+      final String elements = "fudge" + (lvCount + 1);
+      final String lv = "fudge" + (lvCount + 2);
+      writer.write ("{");
+      writer.newLineIndent ();
+      writer.write (CSharpWireRuntime.CLASS_READER + " " + elementReader + " = " + reader + ".SubMessage ()");
+      endStmt (writer);
+      writer.write (typeString (type) + " " + elements + " = " + newArray (array, elementReader + ".Count ()"));
+      endStmt (writer);
+      writer.write ("for (int " + lv + " = 0; " + elementReader + ".Next (); " + lv + "++)");
+      beginBlock (writer); // for
+      if (!isValueType (baseType)) {
+        writer.write ("if (" + elementReader + ".Type == " + WIRE + ".TypeIndicator) continue");
+        endStmt (writer);
+      }
+      writeSpanDecodeValue (writer, baseType, elements + "[" + lv + "]", elementReader, lvCount + 3);
+      endBlock (writer); // for
+      writer.write (target + " = " + elements);
+      endStmt (writer);
+      endBlock (writer); // scope
+      return;
+    }
+    final String decoded;
+    if (type instanceof FieldType.MessageType) {
+      decoded = typeString (type) + ".ReadFudgeFields (" + reader + ".SubMessage ())";
+    } else if (type instanceof FieldType.EnumType) {
+      final EnumDefinition enumDefinition = ((FieldType.EnumType)type).getEnumDefinition ();
+      if (enumDefinition.getType () == EnumDefinition.Type.INTEGER_ENCODED) {
+        decoded = "(" + typeString (type) + ")" + WIRE + ".ToInt32 " + args;
+      } else {
+        decoded = enumCodecName (enumDefinition, false) + " (" + WIRE + ".ToStringValue " + args + ")";
+      }
+    } else if (type.getFudgeFieldType () == FudgeWireType.INDICATOR_TYPE_ID) {
+      decoded = "true";
+    } else if (type.getFudgeFieldType () == FudgeWireType.STRING_TYPE_ID) {
+      decoded = WIRE + ".ToStringValue " + args;
+    } else {
+      decoded = WIRE + ".To" + spanSuffix (type) + " " + args;
+    }
+    writer.write (target + " = " + decoded);
+    endStmt (writer);
+  }
+  
+  private void writeSpanDecodeField (final IndentWriter writer, final FieldDefinition field, final Set<FieldDefinition> required) throws IOException {
+    final String name = privateFieldName (field);
+    if (field.isRepeated ()) {
+      // count the remaining elements on the first one so the list is allocated once at its final size
+      final String key = (field.getOrdinal () != null) ? field.getOrdinal ().toString () : spanName (field);
+      writer.write ("if (" + name + " == null) " + name + " = new " + realTypeString (field, true) + " (1 + reader.CountRemaining (" + key + "))");
+      endStmt (writer);
+      writer.write ("{");
+      writer.newLineIndent ();
+      writer.write (typeString (field.getType ()) + " fudge0");
+      endStmt (writer);
+      writeSpanDecodeValue (writer, field.getType (), "fudge0", "reader", 1);
+      writer.write (name + ".Add (fudge0)");
+      endStmt (writer);
+      endBlock (writer); // scope
+    } else {
+      writeSpanDecodeValue (writer, field.getType (), name, "reader", 0);
+      if (required.contains (field) && isValueType (field.getType ())) {
+        writer.write ("fudgeFound_" + camelCaseFieldName (field) + " = true");
+        endStmt (writer);
+      }
+    }
+  }
+  
+  /**
+   * Writes the methods that decode from and encode to Fudge wire bytes directly, without an intermediate message
+   * object. Decoding visits each field once with the dispatch used for {@link #writeFudgeMsgConstructor}; encoding
+   * calculates the exact size first so the whole message is written into a single span from the buffer writer. The
+   * sizing pass records the size of each sub-message on it, so the write pass can use that for the sub-message headers
+   * instead of sizing every nested level again.
+   */
+  /* package */ void writeSpanCodec (final Compiler.Context context, final MessageDefinition message, final IndentWriter writer) throws IOException {
+    if (!isSpanCapable (message, new HashSet<MessageDefinition> ())) {
+      comment (writer, "Span codec not available - " + message.getName () + " uses types without a direct wire mapping");
+      return;
+    }
+    final MessageDefinition ext = message.getExtends ();
+    // Decoding constructor
+    writer.write ("protected " + message.getName () + " (" + CSharpWireRuntime.CLASS_READER + " reader)");
+    if (ext != null) {
+      writer.write (" : base (reader)");
+    }
+    beginBlock (writer); // constructor
+    final List<FieldDefinition> ordinalFields = new LinkedList<FieldDefinition> ();
+    final List<FieldDefinition> namedFields = new LinkedList<FieldDefinition> ();
+    final Set<FieldDefinition> required = writeDecodePrologue (context, writer, message, ordinalFields, namedFields);
+    if (!ordinalFields.isEmpty () || !namedFields.isEmpty ()) {
+      writer.write ("while (reader.Next ())");
+      beginBlock (writer); // while
+      boolean first = true;
+      if (!ordinalFields.isEmpty ()) {
+        writer.write ("if (reader.HasOrdinal)");
+        beginBlock (writer); // if
+        writer.write ("switch (reader.Ordinal)");
+        beginBlock (writer); // switch
+        for (FieldDefinition field : ordinalFields) {
+          writer.write ("case " + field.getOrdinal () + " :");
+          writer.newLineIndent ();
+          writeSpanDecodeField (writer, field, required);
+          writer.write ("break");
+          endStmt (writer);
+          writer.newLineOutdent ();
+        }
+        endBlock (writer); // switch
+        endBlock (writer); // if
+        first = false;
+      }
+      for (FieldDefinition field : namedFields) {
+        writer.write ((first ? "if" : "else if") + " (reader.IsNamed (" + spanName (field) + "))");
+        beginBlock (writer); // if
+        writeSpanDecodeField (writer, field, required);
+        endBlock (writer); // if
+        first = false;
+      }
+      endBlock (writer); // while
+    }
+    writeDecodeEpilogue (writer, message, required, "reader");
+    endBlock (writer); // constructor
+    // Encoded size
+    if (ext == null) {
+      writer.write ("private int m_FudgeFieldsSize");
+      endStmt (writer);
+      writer.write ("internal int FudgeFieldsSize");
+      beginBlock (writer); // property
+      writer.write ("get");
+      beginBlock (writer); // get
+      writer.write ("return m_FudgeFieldsSize");
+      endStmt (writer);
+      endBlock (writer); // get
+      endBlock (writer); // property
+      writer.write ("public int GetFudgeFieldsSize ()");
+      beginBlock (writer); // method
+      writer.write ("return m_FudgeFieldsSize = ComputeFudgeFieldsSize ()");
+      endStmt (writer);
+      endBlock (writer); // method
+    }
+    writer.write ("protected " + ((ext == null) ? "virtual" : "override") + " int ComputeFudgeFieldsSize ()");
+    beginBlock (writer); // method
+    writer.write ("int size = " + ((ext == null) ? "0" : "base.ComputeFudgeFieldsSize ()"));
+    endStmt (writer);
+    for (FieldDefinition field : message.getFieldDefinitions ()) {
+      if (field.getOverride () != null) continue;
+      final String value = beginSpanFieldValue (writer, field);
+      writeSpanSize (writer, field.getType (), value, spanKeySize (field), "size", false, 1);
+      endSpanFieldValue (writer, field);
+    }
+    writer.write ("return size");
+    endStmt (writer);
+    endBlock (writer); // method
+    // Encoding; GetFudgeFieldsSize must have been called first to record the sub-message sizes
+    writer.write ("public " + ((ext == null) ? "virtual" : "override") + " int WriteFudgeFields (System.Span<byte> buffer, int offset)");
+    beginBlock (writer); // method
+    if (ext != null) {
+      writer.write ("offset = base.WriteFudgeFields (buffer, offset)");
+      endStmt (writer);
+    }
+    for (FieldDefinition field : message.getFieldDefinitions ()) {
+      if (field.getOverride () != null) continue;
+      final String value = beginSpanFieldValue (writer, field);
+      writeSpanWrite (writer, field.getType (), value, spanOrdinal (field), spanName (field), 1);
+      endSpanFieldValue (writer, field);
+    }
+    writer.write ("return offset");
+    endStmt (writer);
+    endBlock (writer); // method
+    if (ext == null) {
+      writer.write ("public void WriteTo (System.Buffers.IBufferWriter<byte> writer)");
+      beginBlock (writer); // method
+      writer.write ("int size = " + WIRE + ".EnvelopeSize + GetFudgeFieldsSize ()");
+      endStmt (writer);
+      writer.write ("System.Span<byte> buffer = writer.GetSpan (size)");
+      endStmt (writer);
+      writer.write (WIRE + ".WriteEnvelope (buffer, size)");
+      endStmt (writer);
+      writer.write ("WriteFudgeFields (buffer, " + WIRE + ".EnvelopeSize)");
+      endStmt (writer);
+      writer.write ("writer.Advance (size)");
+      endStmt (writer);
+      endBlock (writer); // method
+    }
+    // Decoding entry points
+    final String modifiers = "public static " + ((ext != null) ? "new " : "");
+    writer.write (modifiers + message.getName () + " ReadFrom (System.ReadOnlySpan<byte> data)");
+    beginBlock (writer); // method
+    writer.write ("return new " + message.getName () + " (" + CSharpWireRuntime.CLASS_READER + ".OpenEnvelope (data))");
+    endStmt (writer);
+    endBlock (writer); // method
+    writer.write (modifiers + message.getName () + " ReadFudgeFields (" + CSharpWireRuntime.CLASS_READER + " fields)");
+    beginBlock (writer); // method
+    writer.write ("return new " + message.getName () + " (fields)");
+    endStmt (writer);
+    endBlock (writer); // method
+  }
 
   /**
    * We must use a builder if there are immutable fields that:
@@ -430,7 +1380,7 @@ import org.fudgemsg.wire.types.FudgeWireType;
       if (builder) {
         writer.write (localFieldName (field) + " (" + getLiteral (field.getDefaultValue ()) + ")");
       } else {
-        writer.write (camelCaseFieldName (field) + ".set (" + getLiteral (field.getDefaultValue ()) + ")");
+        writer.write (privateFieldName (field) + " = " + getLiteral (field.getDefaultValue ()));
       }
       endStmt (writer);
     }
@@ -454,8 +1404,10 @@ import org.fudgemsg.wire.types.FudgeWireType;
     } else {
       writePublicConstructor (writer, false, message);
     }
+    writeFudgeMsgConstructor (context, writer, message);
     writeToFudgeMsg (writer, message);
-    writeFromFudgeMsg (writer, message, useBuilder);
+    writeFromFudgeMsg (writer, message);
+    writeEnumCodecs (context, writer, message);
   }
   
   @Override
@@ -465,7 +1417,7 @@ import org.fudgemsg.wire.types.FudgeWireType;
     switch (enumDefinition.getType ()) {
     case DEFAULT : superType = null; break;
     case INTEGER_ENCODED : superType = "int"; break;
-    case STRING_ENCODED : superType = "string"; break;
+    case STRING_ENCODED : superType = null; break; // the string encodings are applied by the messages
     default : throw new IllegalStateException ("Unexpected value for enum type '" + enumDefinition.getType () + "'");
     }
     beginDefinition (writer, "enum", enumDefinition, superType);
@@ -480,7 +1432,7 @@ import org.fudgemsg.wire.types.FudgeWireType;
       writer.write (element.getKey ());
       if (superType != null) writer.write (" = " + getLiteral (element.getValue ()));
     }
-    endStmt (writer);
+    writer.newLine ();
     endDefinition (writer, enumDefinition);
   }
   
@@ -16,6 +16,14 @@
 
 package org.fudgemsg.proto.csharp;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.fudgemsg.proto.Compiler;
+import org.fudgemsg.proto.IndentWriter;
+import org.fudgemsg.proto.MessageDefinition;
 import org.fudgemsg.proto.proto.InnerClassCodeGenerator;
 
 /**
@@ -27,8 +35,60 @@ public class CSharpCodeGenerator extends InnerClassCodeGenerator {
   
   public static final String LANG_ID = "C#";
   
+  /**
+   * Whether to also generate the ReadFrom/WriteTo methods that work directly on the wire bytes.
+   */
+  private boolean _spanCodec = false;
+  
+  /**
+   * Whether any message has been generated with those methods, so needs the wire runtime.
+   */
+  private boolean _spanCodecUsed = false;
+  
   public CSharpCodeGenerator () {
     super (CSharpClassCode.INSTANCE);
   }
+  
+  @Override
+  public void writeClassImplementationConstructor (final Compiler.Context context, final MessageDefinition message, final IndentWriter writer) throws IOException {
+    super.writeClassImplementationConstructor (context, message, writer);
+    if (_spanCodec) {
+      CSharpClassCode.INSTANCE.writeSpanCodec (context, message, writer);
+      _spanCodecUsed = true;
+    }
+  }
+  
+  @Override
+  public void generationComplete (final Compiler.Context context, final File targetPath) {
+    super.generationComplete (context, targetPath);
+    if (_spanCodecUsed) {
+      _spanCodecUsed = false;
+      final File file = CSharpWireRuntime.getFile (targetPath);
+      try {
+        if (!file.getParentFile ().exists () && !file.getParentFile ().mkdirs ()) {
+          throw new IOException ("couldn't create folder " + file.getParentFile ());
+        }
+        if (context.getVerbosity () >= 2) context.verboseMessage ("Writing " + file);
+        final IndentWriter writer = createIndentWriter (new BufferedWriter (new FileWriter (file)));
+        try {
+          comment (writer, "Automatically created - do not modify");
+          CSharpWireRuntime.write (writer);
+        } finally {
+          writer.close ();
+        }
+      } catch (IOException e) {
+        context.error (null, e.getMessage ());
+      }
+    }
+  }
+  
+  @Override
+  public void setOption (final Compiler compiler, final String option) {
+    if (option.equals ("span")) {
+      _spanCodec = true;
+      return;
+    }
+    super.setOption (compiler, option);
+  }
    
 }
\ No newline at end of file
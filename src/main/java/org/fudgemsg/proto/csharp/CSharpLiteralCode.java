@@ -16,6 +16,8 @@
 
 package org.fudgemsg.proto.csharp;
 
+import java.util.Collection;
+
 import org.fudgemsg.proto.FieldDefinition;
 import org.fudgemsg.proto.LiteralValue;
 import org.fudgemsg.proto.c.CStyleLiteralCode;
@@ -31,6 +33,24 @@ public class CSharpLiteralCode extends CStyleLiteralCode {
   public static final LiteralCode INSTANCE = new CSharpLiteralCode ();
   
   private CSharpLiteralCode () {
+    setTrueLiteral ("true");
+    setFalseLiteral ("false");
+  }
+  
+  @Override
+  protected Collection<String> getReservedWords () {
+    Collection<String> collection = super.getReservedWords ();
+    for (String reservedWord : new String[] {"abstract", "as", "base", "bool", "break", "byte", "case", "catch", "char",
+        "checked", "class", "const", "continue", "decimal", "default", "delegate", "do", "double", "else", "enum",
+        "event", "explicit", "extern", "false", "finally", "fixed", "float", "for", "foreach", "goto", "if",
+        "implicit", "in", "int", "interface", "internal", "is", "lock", "long", "namespace", "new", "null", "object",
+        "operator", "out", "override", "params", "private", "protected", "public", "readonly", "ref", "return",
+        "sbyte", "sealed", "short", "sizeof", "stackalloc", "static", "string", "struct", "switch", "this", "throw",
+        "true", "try", "typeof", "uint", "ulong", "unchecked", "unsafe", "ushort", "using", "value", "virtual", "void",
+        "volatile", "while"}) {
+      collection.add (reservedWord);
+    }
+    return collection;
   }
   
   @Override
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2009 by OpenGamma Inc and other contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.fudgemsg.proto.csharp;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.fudgemsg.proto.IndentWriter;
+
+/**
+ * The wire encoding and decoding primitives that the span based C# codecs are written against. These are written
+ * to a single source file alongside the generated classes so there is no dependency beyond the .NET 8 base library.
+ *
+ * @author Andrew
+ */
+/* package */ final class CSharpWireRuntime {
+
+  /* package */ static final String NAMESPACE = "Fudge.Proto";
+  /* package */ static final String CLASS_WIRE = NAMESPACE + ".FudgeWire";
+  /* package */ static final String CLASS_READER = NAMESPACE + ".FudgeWireReader";
+
+  private static final String[] SOURCE = new String[] {
+    "namespace Fudge.Proto {",
+    "  using System;",
+    "  using System.Buffers.Binary;",
+    "  using System.Runtime.InteropServices;",
+    "  using System.Text;",
+    "  // Walks the fields of an encoded message; names and values are slices of the source bytes",
+    "  public ref struct FudgeWireReader {",
+    "    private readonly ReadOnlySpan<byte> m_Data;",
+    "    private int m_Offset;",
+    "    private int m_Type;",
+    "    private bool m_HasOrdinal;",
+    "    private int m_Ordinal;",
+    "    private ReadOnlySpan<byte> m_Name;",
+    "    private ReadOnlySpan<byte> m_Value;",
+    "    public FudgeWireReader (ReadOnlySpan<byte> fields) {",
+    "      m_Data = fields;",
+    "      m_Offset = 0;",
+    "      m_Type = -1;",
+    "      m_HasOrdinal = false;",
+    "      m_Ordinal = 0;",
+    "      m_Name = ReadOnlySpan<byte>.Empty;",
+    "      m_Value = ReadOnlySpan<byte>.Empty;",
+    "    }",
+    "    public static FudgeWireReader OpenEnvelope (ReadOnlySpan<byte> data) {",
+    "      if (data.Length < FudgeWire.EnvelopeSize) throw new FormatException (\"Fudge envelope is truncated\");",
+    "      int size = BinaryPrimitives.ReadInt32BigEndian (data.Slice (4));",
+    "      if ((size < FudgeWire.EnvelopeSize) || (size > data.Length)) throw new FormatException (\"Invalid Fudge envelope size\");",
+    "      return new FudgeWireReader (data.Slice (FudgeWire.EnvelopeSize, size - FudgeWire.EnvelopeSize));",
+    "    }",
+    "    public int Type { get { return m_Type; } }",
+    "    public bool HasOrdinal { get { return m_HasOrdinal; } }",
+    "    public int Ordinal { get { return m_Ordinal; } }",
+    "    public ReadOnlySpan<byte> Name { get { return m_Name; } }",
+    "    public ReadOnlySpan<byte> Value { get { return m_Value; } }",
+    "    public bool IsNamed (ReadOnlySpan<byte> name) {",
+    "      return m_Name.SequenceEqual (name);",
+    "    }",
+    "    public bool Next () {",
+    "      if (m_Offset >= m_Data.Length) return false;",
+    "      ReadOnlySpan<byte> data = m_Data.Slice (m_Offset);",
+    "      if (data.Length < 2) throw Truncated ();",
+    "      int prefix = data[0];",
+    "      m_Type = data[1];",
+    "      int offset = 2;",
+    "      m_HasOrdinal = (prefix & 0x10) != 0;",
+    "      if (m_HasOrdinal) {",
+    "        if (data.Length < offset + 2) throw Truncated ();",
+    "        m_Ordinal = BinaryPrimitives.ReadInt16BigEndian (data.Slice (offset));",
+    "        offset += 2;",
+    "      }",
+    "      if ((prefix & 0x08) != 0) {",
+    "        if (data.Length < offset + 1) throw Truncated ();",
+    "        int nameLength = data[offset++];",
+    "        if (data.Length < offset + nameLength) throw Truncated ();",
+    "        m_Name = data.Slice (offset, nameLength);",
+    "        offset += nameLength;",
+    "      } else {",
+    "        m_Name = ReadOnlySpan<byte>.Empty;",
+    "      }",
+    "      int size;",
+    "      if ((prefix & 0x80) != 0) {",
+    "        size = FudgeWire.FixedSize (m_Type);",
+    "      } else {",
+    "        switch ((prefix >> 5) & 3) {",
+    "          case 0 : size = 0; break;",
+    "          case 1 :",
+    "            if (data.Length < offset + 1) throw Truncated ();",
+    "            size = data[offset];",
+    "            offset += 1;",
+    "            break;",
+    "          case 2 :",
+    "            if (data.Length < offset + 2) throw Truncated ();",
+    "            size = BinaryPrimitives.ReadUInt16BigEndian (data.Slice (offset));",
+    "            offset += 2;",
+    "            break;",
+    "          default :",
+    "            if (data.Length < offset + 4) throw Truncated ();",
+    "            size = BinaryPrimitives.ReadInt32BigEndian (data.Slice (offset));",
+    "            offset += 4;",
+    "            break;",
+    "        }",
+    "      }",
+    "      if ((size < 0) || (data.Length - offset < size)) throw Truncated ();",
+    "      m_Value = data.Slice (offset, size);",
+    "      m_Offset += offset + size;",
+    "      return true;",
+    "    }",
+    "    // The number of fields after the current one",
+    "    public int Count () {",
+    "      FudgeWireReader reader = this;",
+    "      int count = 0;",
+    "      while (reader.Next ()) count++;",
+    "      return count;",
+    "    }",
+    "    // The number of fields after the current one with the given ordinal",
+    "    public int CountRemaining (int ordinal) {",
+    "      FudgeWireReader reader = this;",
+    "      int count = 0;",
+    "      while (reader.Next ()) if (reader.m_HasOrdinal && (reader.m_Ordinal == ordinal)) count++;",
+    "      return count;",
+    "    }",
+    "    // The number of fields after the current one with the given name",
+    "    public int CountRemaining (ReadOnlySpan<byte> name) {",
+    "      FudgeWireReader reader = this;",
+    "      int count = 0;",
+    "      while (reader.Next ()) if (reader.IsNamed (name)) count++;",
+    "      return count;",
+    "    }",
+    "    public FudgeWireReader SubMessage () {",
+    "      FudgeWire.CheckType (m_Type, FudgeWire.TypeSubMessage);",
+    "      return new FudgeWireReader (m_Value);",
+    "    }",
+    "    private static FormatException Truncated () {",
+    "      return new FormatException (\"Fudge field is truncated\");",
+    "    }",
+    "  }",
+    "  public static class FudgeWire {",
+    "    public const int EnvelopeSize = 8;",
+    "    public const int TypeIndicator = 0;",
+    "    public const int TypeBoolean = 1;",
+    "    public const int TypeByte = 2;",
+    "    public const int TypeShort = 3;",
+    "    public const int TypeInt = 4;",
+    "    public const int TypeLong = 5;",
+    "    public const int TypeByteArray = 6;",
+    "    public const int TypeShortArray = 7;",
+    "    public const int TypeIntArray = 8;",
+    "    public const int TypeLongArray = 9;",
+    "    public const int TypeFloat = 10;",
+    "    public const int TypeDouble = 11;",
+    "    public const int TypeFloatArray = 12;",
+    "    public const int TypeDoubleArray = 13;",
+    "    public const int TypeString = 14;",
+    "    public const int TypeSubMessage = 15;",
+    "    public const int TypeByteArray4 = 17;",
+    "    public const int TypeByteArray512 = 25;",
+    "    public const int TypeDate = 26;",
+    "    public const int TypeTime = 27;",
+    "    public const int TypeDateTime = 28;",
+    "    private static readonly int[] s_byteArraySizes = { 4, 8, 16, 20, 32, 64, 128, 256, 512 };",
+    "    internal static int FixedSize (int type) {",
+    "      switch (type) {",
+    "        case TypeIndicator : return 0;",
+    "        case TypeBoolean : case TypeByte : return 1;",
+    "        case TypeShort : return 2;",
+    "        case TypeInt : case TypeFloat : case TypeDate : return 4;",
+    "        case TypeLong : case TypeDouble : case TypeTime : return 8;",
+    "        case TypeDateTime : return 12;",
+    "        default :",
+    "          if ((type >= TypeByteArray4) && (type <= TypeByteArray512)) return s_byteArraySizes[type - TypeByteArray4];",
+    "          throw new FormatException (\"Fudge field type \" + type + \" is not fixed width\");",
+    "      }",
+    "    }",
+    "    public static void CheckType (int type, int expected) {",
+    "      if (type != expected) throw new FormatException (\"Fudge field type \" + type + \" found where \" + expected + \" expected\");",
+    "    }",
+    "    private static int ArrayLength (int size, int width) {",
+    "      if ((size % width) != 0) throw new FormatException (\"Invalid Fudge array size\");",
+    "      return size / width;",
+    "    }",
+    "    public static long ToInt64 (int type, ReadOnlySpan<byte> value) {",
+    "      switch (type) {",
+    "        case TypeBoolean : case TypeByte : return (sbyte)value[0];",
+    "        case TypeShort : return BinaryPrimitives.ReadInt16BigEndian (value);",
+    "        case TypeInt : return BinaryPrimitives.ReadInt32BigEndian (value);",
+    "        case TypeLong : return BinaryPrimitives.ReadInt64BigEndian (value);",
+    "        default : throw new FormatException (\"Fudge field type \" + type + \" is not an integer\");",
+    "      }",
+    "    }",
+    "    public static int ToInt32 (int type, ReadOnlySpan<byte> value) { return checked ((int)ToInt64 (type, value)); }",
+    "    public static short ToInt16 (int type, ReadOnlySpan<byte> value) { return checked ((short)ToInt64 (type, value)); }",
+    "    public static sbyte ToSByte (int type, ReadOnlySpan<byte> value) { return checked ((sbyte)ToInt64 (type, value)); }",
+    "    public static bool ToBoolean (int type, ReadOnlySpan<byte> value) { return ToInt64 (type, value) != 0; }",
+    "    public static double ToDouble (int type, ReadOnlySpan<byte> value) {",
+    "      switch (type) {",
+    "        case TypeFloat : return BinaryPrimitives.ReadSingleBigEndian (value);",
+    "        case TypeDouble : return BinaryPrimitives.ReadDoubleBigEndian (value);",
+    "        default : return ToInt64 (type, value);",
+    "      }",
+    "    }",
+    "    public static float ToSingle (int type, ReadOnlySpan<byte> value) { return (float)ToDouble (type, value); }",
+    "    public static string ToStringValue (int type, ReadOnlySpan<byte> value) {",
+    "      CheckType (type, TypeString);",
+    "      return Encoding.UTF8.GetString (value);",
+    "    }",
+    "    public static sbyte[] ToSByteArray (int type, ReadOnlySpan<byte> value) {",
+    "      if ((type != TypeByteArray) && ((type < TypeByteArray4) || (type > TypeByteArray512))) CheckType (type, TypeByteArray);",
+    "      return MemoryMarshal.Cast<byte, sbyte> (value).ToArray ();",
+    "    }",
+    "    public static short[] ToInt16Array (int type, ReadOnlySpan<byte> value) {",
+    "      CheckType (type, TypeShortArray);",
+    "      short[] result = new short[ArrayLength (value.Length, 2)];",
+    "      value.CopyTo (MemoryMarshal.AsBytes (new Span<short> (result)));",
+    "      if (BitConverter.IsLittleEndian) BinaryPrimitives.ReverseEndianness (result, result);",
+    "      return result;",
+    "    }",
+    "    public static int[] ToInt32Array (int type, ReadOnlySpan<byte> value) {",
+    "      CheckType (type, TypeIntArray);",
+    "      int[] result = new int[ArrayLength (value.Length, 4)];",
+    "      value.CopyTo (MemoryMarshal.AsBytes (new Span<int> (result)));",
+    "      if (BitConverter.IsLittleEndian) BinaryPrimitives.ReverseEndianness (result, result);",
+    "      return result;",
+    "    }",
+    "    public static long[] ToInt64Array (int type, ReadOnlySpan<byte> value) {",
+    "      CheckType (type, TypeLongArray);",
+    "      long[] result = new long[ArrayLength (value.Length, 8)];",
+    "      value.CopyTo (MemoryMarshal.AsBytes (new Span<long> (result)));",
+    "      if (BitConverter.IsLittleEndian) BinaryPrimitives.ReverseEndianness (result, result);",
+    "      return result;",
+    "    }",
+    "    public static float[] ToSingleArray (int type, ReadOnlySpan<byte> value) {",
+    "      CheckType (type, TypeFloatArray);",
+    "      float[] result = new float[ArrayLength (value.Length, 4)];",
+    "      value.CopyTo (MemoryMarshal.AsBytes (new Span<float> (result)));",
+    "      if (BitConverter.IsLittleEndian) {",
+    "        Span<int> bits = MemoryMarshal.Cast<float, int> (new Span<float> (result));",
+    "        BinaryPrimitives.ReverseEndianness (bits, bits);",
+    "      }",
+    "      return result;",
+    "    }",
+    "    public static double[] ToDoubleArray (int type, ReadOnlySpan<byte> value) {",
+    "      CheckType (type, TypeDoubleArray);",
+    "      double[] result = new double[ArrayLength (value.Length, 8)];",
+    "      value.CopyTo (MemoryMarshal.AsBytes (new Span<double> (result)));",
+    "      if (BitConverter.IsLittleEndian) {",
+    "        Span<long> bits = MemoryMarshal.Cast<double, long> (new Span<double> (result));",
+    "        BinaryPrimitives.ReverseEndianness (bits, bits);",
+    "      }",
+    "      return result;",
+    "    }",
+    "    // The encoded size of a variable width field given the size of its key",
+    "    public static int VariableSize (int keySize, int length) {",
+    "      return keySize + SizeBytes (length) + length;",
+    "    }",
+    "    public static int StringSize (int keySize, string value) {",
+    "      return VariableSize (keySize, Encoding.UTF8.GetByteCount (value));",
+    "    }",
+    "    private static int SizeBytes (int length) {",
+    "      if (length == 0) return 0;",
+    "      if (length <= 0xFF) return 1;",
+    "      if (length <= 0xFFFF) return 2;",
+    "      return 4;",
+    "    }",
+    "    // An ordinal of -1 or an empty name omits that part of the key",
+    "    private static int WriteKey (Span<byte> buffer, int offset, int prefix, int type, int ordinal, ReadOnlySpan<byte> name) {",
+    "      if (ordinal >= 0) prefix |= 0x10;",
+    "      if (name.Length > 0) prefix |= 0x08;",
+    "      buffer[offset++] = (byte)prefix;",
+    "      buffer[offset++] = (byte)type;",
+    "      if (ordinal >= 0) {",
+    "        BinaryPrimitives.WriteInt16BigEndian (buffer.Slice (offset), (short)ordinal);",
+    "        offset += 2;",
+    "      }",
+    "      if (name.Length > 0) {",
+    "        buffer[offset++] = (byte)name.Length;",
+    "        name.CopyTo (buffer.Slice (offset));",
+    "        offset += name.Length;",
+    "      }",
+    "      return offset;",
+    "    }",
+    "    private static int WriteVariableKey (Span<byte> buffer, int offset, int type, int ordinal, ReadOnlySpan<byte> name, int length) {",
+    "      switch (SizeBytes (length)) {",
+    "        case 0 :",
+    "          return WriteKey (buffer, offset, 0, type, ordinal, name);",
+    "        case 1 :",
+    "          offset = WriteKey (buffer, offset, 0x20, type, ordinal, name);",
+    "          buffer[offset] = (byte)length;",
+    "          return offset + 1;",
+    "        case 2 :",
+    "          offset = WriteKey (buffer, offset, 0x40, type, ordinal, name);",
+    "          BinaryPrimitives.WriteUInt16BigEndian (buffer.Slice (offset), (ushort)length);",
+    "          return offset + 2;",
+    "        default :",
+    "          offset = WriteKey (buffer, offset, 0x60, type, ordinal, name);",
+    "          BinaryPrimitives.WriteInt32BigEndian (buffer.Slice (offset), length);",
+    "          return offset + 4;",
+    "      }",
+    "    }",
+    "    public static void WriteEnvelope (Span<byte> buffer, int size) {",
+    "      buffer.Slice (0, 4).Clear ();",
+    "      BinaryPrimitives.WriteInt32BigEndian (buffer.Slice (4), size);",
+    "    }",
+    "    public static int WriteIndicator (Span<byte> buffer, int offset, int ordinal, ReadOnlySpan<byte> name) {",
+    "      return WriteKey (buffer, offset, 0x80, TypeIndicator, ordinal, name);",
+    "    }",
+    "    public static int WriteBoolean (Span<byte> buffer, int offset, int ordinal, ReadOnlySpan<byte> name, bool value) {",
+    "      offset = WriteKey (buffer, offset, 0x80, TypeBoolean, ordinal, name);",
+    "      buffer[offset] = value ? (byte)1 : (byte)0;",
+    "      return offset + 1;",
+    "    }",
+    "    public static int WriteSByte (Span<byte> buffer, int offset, int ordinal, ReadOnlySpan<byte> name, sbyte value) {",
+    "      offset = WriteKey (buffer, offset, 0x80, TypeByte, ordinal, name);",
+    "      buffer[offset] = (byte)value;",
+    "      return offset + 1;",
+    "    }",
+    "    public static int WriteInt16 (Span<byte> buffer, int offset, int ordinal, ReadOnlySpan<byte> name, short value) {",
+    "      offset = WriteKey (buffer, offset, 0x80, TypeShort, ordinal, name);",
+    "      BinaryPrimitives.WriteInt16BigEndian (buffer.Slice (offset), value);",
+    "      return offset + 2;",
+    "    }",
+    "    public static int WriteInt32 (Span<byte> buffer, int offset, int ordinal, ReadOnlySpan<byte> name, int value) {",
+    "      offset = WriteKey (buffer, offset, 0x80, TypeInt, ordinal, name);",
+    "      BinaryPrimitives.WriteInt32BigEndian (buffer.Slice (offset), value);",
+    "      return offset + 4;",
+    "    }",
+    "    public static int WriteInt64 (Span<byte> buffer, int offset, int ordinal, ReadOnlySpan<byte> name, long value) {",
+    "      offset = WriteKey (buffer, offset, 0x80, TypeLong, ordinal, name);",
+    "      BinaryPrimitives.WriteInt64BigEndian (buffer.Slice (offset), value);",
+    "      return offset + 8;",
+    "    }",
+    "    public static int WriteSingle (Span<byte> buffer, int offset, int ordinal, ReadOnlySpan<byte> name, float value) {",
+    "      offset = WriteKey (buffer, offset, 0x80, TypeFloat, ordinal, name);",
+    "      BinaryPrimitives.WriteSingleBigEndian (buffer.Slice (offset), value);",
+    "      return offset + 4;",
+    "    }",
+    "    public static int WriteDouble (Span<byte> buffer, int offset, int ordinal, ReadOnlySpan<byte> name, double value) {",
+    "      offset = WriteKey (buffer, offset, 0x80, TypeDouble, ordinal, name);",
+    "      BinaryPrimitives.WriteDoubleBigEndian (buffer.Slice (offset), value);",
+    "      return offset + 8;",
+    "    }",
+    "    public static int WriteString (Span<byte> buffer, int offset, int ordinal, ReadOnlySpan<byte> name, string value) {",
+    "      int length = Encoding.UTF8.GetByteCount (value);",
+    "      offset = WriteVariableKey (buffer, offset, TypeString, ordinal, name, length);",
+    "      return offset + Encoding.UTF8.GetBytes (value, buffer.Slice (offset));",
+    "    }",
+    "    public static int WriteSubMessageHeader (Span<byte> buffer, int offset, int ordinal, ReadOnlySpan<byte> name, int fieldsSize) {",
+    "      return WriteVariableKey (buffer, offset, TypeSubMessage, ordinal, name, fieldsSize);",
+    "    }",
+    "    public static int WriteSByteArray (Span<byte> buffer, int offset, int ordinal, ReadOnlySpan<byte> name, sbyte[] value) {",
+    "      offset = WriteVariableKey (buffer, offset, TypeByteArray, ordinal, name, value.Length);",
+    "      MemoryMarshal.AsBytes (new ReadOnlySpan<sbyte> (value)).CopyTo (buffer.Slice (offset));",
+    "      return offset + value.Length;",
+    "    }",
+    "    public static int WriteInt16Array (Span<byte> buffer, int offset, int ordinal, ReadOnlySpan<byte> name, short[] value) {",
+    "      offset = WriteVariableKey (buffer, offset, TypeShortArray, ordinal, name, value.Length * 2);",
+    "      Span<short> target = MemoryMarshal.Cast<byte, short> (buffer.Slice (offset, value.Length * 2));",
+    "      if (BitConverter.IsLittleEndian) BinaryPrimitives.ReverseEndianness (value, target); else value.CopyTo (target);",
+    "      return offset + value.Length * 2;",
+    "    }",
+    "    public static int WriteInt32Array (Span<byte> buffer, int offset, int ordinal, ReadOnlySpan<byte> name, int[] value) {",
+    "      offset = WriteVariableKey (buffer, offset, TypeIntArray, ordinal, name, value.Length * 4);",
+    "      Span<int> target = MemoryMarshal.Cast<byte, int> (buffer.Slice (offset, value.Length * 4));",
+    "      if (BitConverter.IsLittleEndian) BinaryPrimitives.ReverseEndianness (value, target); else value.CopyTo (target);",
+    "      return offset + value.Length * 4;",
+    "    }",
+    "    public static int WriteInt64Array (Span<byte> buffer, int offset, int ordinal, ReadOnlySpan<byte> name, long[] value) {",
+    "      offset = WriteVariableKey (buffer, offset, TypeLongArray, ordinal, name, value.Length * 8);",
+    "      Span<long> target = MemoryMarshal.Cast<byte, long> (buffer.Slice (offset, value.Length * 8));",
+    "      if (BitConverter.IsLittleEndian) BinaryPrimitives.ReverseEndianness (value, target); else value.CopyTo (target);",
+    "      return offset + value.Length * 8;",
+    "    }",
+    "    public static int WriteSingleArray (Span<byte> buffer, int offset, int ordinal, ReadOnlySpan<byte> name, float[] value) {",
+    "      offset = WriteVariableKey (buffer, offset, TypeFloatArray, ordinal, name, value.Length * 4);",
+    "      ReadOnlySpan<int> bits = MemoryMarshal.Cast<float, int> (new ReadOnlySpan<float> (value));",
+    "      Span<int> target = MemoryMarshal.Cast<byte, int> (buffer.Slice (offset, value.Length * 4));",
+    "      if (BitConverter.IsLittleEndian) BinaryPrimitives.ReverseEndianness (bits, target); else bits.CopyTo (target);",
+    "      return offset + value.Length * 4;",
+    "    }",
+    "    public static int WriteDoubleArray (Span<byte> buffer, int offset, int ordinal, ReadOnlySpan<byte> name, double[] value) {",
+    "      offset = WriteVariableKey (buffer, offset, TypeDoubleArray, ordinal, name, value.Length * 8);",
+    "      ReadOnlySpan<long> bits = MemoryMarshal.Cast<double, long> (new ReadOnlySpan<double> (value));",
+    "      Span<long> target = MemoryMarshal.Cast<byte, long> (buffer.Slice (offset, value.Length * 8));",
+    "      if (BitConverter.IsLittleEndian) BinaryPrimitives.ReverseEndianness (bits, target); else bits.CopyTo (target);",
+    "      return offset + value.Length * 8;",
+    "    }",
+    "  }",
+    "}"
+  };
+
+  private CSharpWireRuntime () {
+  }
+
+  /**
+   * Returns the file, relative to the output folder, that the runtime is written to.
+   */
+  /* package */ static File getFile (final File targetPath) {
+    return new File (new File (new File (targetPath, "Fudge"), "Proto"), "FudgeWire.cs");
+  }
+
+  /* package */ static void write (final IndentWriter writer) throws IOException {
+    for (String line : SOURCE) {
+      writer.write (line);
+      writer.newLine ();
+    }
+  }
+
+}
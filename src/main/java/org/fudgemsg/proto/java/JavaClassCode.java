@@ -20,9 +20,11 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.fudgemsg.proto.CodeGeneratorUtil;
 import org.fudgemsg.proto.Compiler;
@@ -35,6 +37,7 @@ import org.fudgemsg.proto.LiteralValue;
 import org.fudgemsg.proto.MessageDefinition;
 import org.fudgemsg.proto.TaxonomyDefinition;
 import org.fudgemsg.proto.TypeDefinition;
+import org.fudgemsg.proto.java.JavaCodeGenerator.BindingOptions;
 import org.fudgemsg.proto.java.JavaCodeGenerator.ProtoBinding;
 import org.fudgemsg.proto.proto.DocumentedClassCode;
 import org.fudgemsg.proto.proto.HeaderlessClassCode;
@@ -49,8 +52,6 @@ import org.fudgemsg.wire.types.FudgeWireType;
 
   // TODO 2010-01-07 Andrew -- we don't need the JavaWriter class; temporary local variable names can be tracked using the call stack, and the other methods can be brought back in here
 
-  /* package */static final JavaClassCode INSTANCE = new JavaClassCode();
-
   // The constants below are for safety and convenience in Java world, but the approach isn't portable to other codegens written in Java.
 
   static final String CLASS_COLLECTIONS = java.util.Collections.class.getName();
@@ -79,14 +80,103 @@ import org.fudgemsg.wire.types.FudgeWireType;
 
   static final String VALUE_INDICATOR = CLASS_INDICATOR + ".INSTANCE";
 
+  static final String ATTRIBUTE_PRESENCE = "_fudgePresence";
+
   private static final String DEFAULT_DATETIME_TYPE = "javax.time.calendar.LocalDateTime=javax.time.calendar.DateTimeProvider/toLocalDateTime";
 
-  private JavaClassCode() {
+  private boolean _presizeDecode;
+
+  private boolean _presenceBits;
+
+  private boolean _classIds;
+
+  private final Map<Definition, BindingOptions> _bindingOptions = new HashMap<Definition, BindingOptions>();
+
+  private final Map<MessageDefinition, Boolean> _immutable = new HashMap<MessageDefinition, Boolean>();
+
+  /* package */ JavaClassCode() {
     super(new DocumentedClassCode(blockCodeDelegate(new JavaBlockCode(literalCodeDelegate(JavaLiteralCode.INSTANCE)))));
   }
 
+  /**
+   * Sets whether arrays decoded from a sub-message are allocated from its field count and filled directly, instead of
+   * being collected into a list first. This is faster when the FudgeMsg holds its fields in memory, but a message that
+   * decodes lazily will have to decode all of its fields to count them.
+   */
+  /* package */ void setPresizeDecode(final boolean presizeDecode) {
+    _presizeDecode = presizeDecode;
+  }
+
+  /* package */ boolean isPresizeDecode() {
+    return _presizeDecode;
+  }
+
+  /**
+   * Sets whether optional primitive fields are held as primitives, with their presence recorded in a bit mask, instead
+   * of as boxed values that are null when absent. The accessors return the primitive, and a hasXXX method tests the
+   * presence bit. Builders are unaffected and hold boxed values.
+   */
+  /* package */ void setPresenceBits(final boolean presenceBits) {
+    _presenceBits = presenceBits;
+  }
+
+  /* package */ boolean isPresenceBits() {
+    return _presenceBits;
+  }
+
+  /**
+   * Sets whether the class headers of sub-messages are written as integer type identifiers, at their own ordinal,
+   * instead of class names. The decoders accept either form, but a receiver built without this option can only read
+   * the names.
+   */
+  /* package */ void setClassIds(final boolean classIds) {
+    _classIds = classIds;
+  }
+
+  /* package */ boolean isClassIds() {
+    return _classIds;
+  }
+
+  /**
+   * Returns the Java language binding of a definition, split on first use and held until the end of the compilation.
+   */
+  /* package */ BindingOptions getBindingOptions(final Definition definition) {
+    BindingOptions options = _bindingOptions.get(definition);
+    if (options == null) {
+      options = new BindingOptions(definition);
+      _bindingOptions.put(definition, options);
+    }
+    return options;
+  }
+
+  /* package */ String getBinding(final ProtoBinding key, final Definition definition) {
+    return getBindingOptions(definition).get(key);
+  }
+
+  /**
+   * Discards the bindings and other state held about the definitions of the completed compilation.
+   */
+  /* package */ void generationComplete() {
+    _bindingOptions.clear();
+    _immutable.clear();
+  }
+
+  /**
+   * Tests whether a message's class header is written as type identifiers, from the classIds binding of the message or
+   * its nearest super class that has one, or else the global option.
+   */
+  private boolean isClassIds(final MessageDefinition message) {
+    for (MessageDefinition msg = message; (msg != null) && !msg.isExternal(); msg = msg.getExtends()) {
+      final String classIds = getBinding(ProtoBinding.CLASS_IDS, msg);
+      if (classIds != null) {
+        return Boolean.parseBoolean(classIds);
+      }
+    }
+    return isClassIds();
+  }
+
   private String messageDelegateName(final MessageDefinition message) {
-    final String delegate = ProtoBinding.DELEGATE.get(message);
+    final String delegate = getBinding(ProtoBinding.DELEGATE, message);
     return (delegate != null) ? delegate : message.getName();
   }
 
@@ -99,15 +189,15 @@ import org.fudgemsg.wire.types.FudgeWireType;
         endStmt(writer);
       }
     }
-    final String imports = ProtoBinding.IMPORTS.get(definition);
+    final List<String> imports = getBindingOptions(definition).getImports();
     if (imports != null) {
-      for (String library : imports.split(",\\s*")) {
-        writer.importLib(library.trim());
+      for (String library : imports) {
+        writer.importLib(library);
         endStmt(writer);
       }
     }
     // TODO 2010-01-13 Andrew -- need to support the Javadoc-style annotations in the proto files and write out javadoc for Java classes 
-    final String extraImplements = ProtoBinding.IMPLEMENTS.get(definition);
+    final String extraImplements = getBinding(ProtoBinding.IMPLEMENTS, definition);
     if (extraImplements != null) {
       if (interfaceClass == null) {
         interfaceClass = extraImplements;
@@ -118,7 +208,7 @@ import org.fudgemsg.wire.types.FudgeWireType;
     writer.classDef((definition instanceof MessageDefinition) && ((MessageDefinition) definition).isAbstract(),
         definition.getOuterDefinition() != null, definition.getName(), extendsClass, interfaceClass);
     writer = beginBlock(writer); // class definition
-    final String bodyCode = ProtoBinding.BODY.get(definition);
+    final String bodyCode = getBinding(ProtoBinding.BODY, definition);
     if (bodyCode != null) {
       writer.getWriter().write(bodyCode);
       writer.getWriter().newLine();
@@ -173,31 +263,136 @@ import org.fudgemsg.wire.types.FudgeWireType;
       final IndentWriter writer) throws IOException {
     JavaWriter jWriter = new JavaWriter(writer);
     final String attribute = privateFieldName(field);
-    jWriter.method("public", realTypeString(field, false), fieldMethodName(field, "get"), null);
+    jWriter.method("public", attributeTypeString(field), fieldMethodName(field, "get"), null);
     jWriter = beginBlock(jWriter); // accessor
-    if (field.isRepeated()) {
-      // repeated fields, return an immutable list
+    if (field.isRepeated() && field.isMutable()) {
+      // mutable repeated fields, return a cached immutable view of the current list
+      final String view = listViewName(field);
       if (!field.isRequired()) {
         writer.write("if (" + attribute + " != null)");
         beginBlock(writer);
       }
-      writer.write("return " + CLASS_COLLECTIONS + ".unmodifiableList (" + attribute + ")");
+      writer.write("if (" + view + " == null) " + view + " = " + CLASS_COLLECTIONS + ".unmodifiableList (" + attribute
+          + ")");
+      endStmt(writer);
+      writer.write("return " + view);
       if (!field.isRequired()) {
         endStmt(writer);
         endBlock(writer);
         writer.write("else return null");
       }
     } else {
-      // non-repeated fields, return attribute directly
+      // non-repeated fields, or repeated fields already stored as an immutable list, return attribute directly
       jWriter.returnVariable(attribute);
     }
     endStmt(jWriter); // return
     jWriter = endBlock(jWriter); // accessor
+    if (hasPresenceBit(field)) {
+      jWriter.method("public", "boolean", fieldMethodName(field, "has"), null);
+      jWriter = beginBlock(jWriter); // presence test
+      jWriter.returnVariable(presenceTest(ATTRIBUTE_PRESENCE, field));
+      endStmt(jWriter); // return
+      jWriter = endBlock(jWriter); // presence test
+    }
     if (field.isMutable()) {
       writeMutatorMethod(writer, false, field);
     }
   }
 
+  /**
+   * Returns the name of the attribute caching the immutable view of a mutable repeated field.
+   */
+  private String listViewName(final FieldDefinition field) {
+    return privateFieldName(field) + "View";
+  }
+
+  /**
+   * Returns the expression to store a list in a repeated field. Fields of an immutable message hold an unmodifiable
+   * list so that the accessor can return it without wrapping it on every call.
+   */
+  private String listStorageExpression(final FieldDefinition field, final String list, final boolean builder) {
+    if (builder || field.isMutable()) {
+      return list;
+    } else {
+      return CLASS_COLLECTIONS + ".unmodifiableList (" + list + ")";
+    }
+  }
+
+  /**
+   * Tests whether a message uses presence bits, either from its presenceBits binding or the global option.
+   */
+  private boolean isPresenceBits(final MessageDefinition message) {
+    final String presenceBits = getBinding(ProtoBinding.PRESENCE_BITS, message);
+    return (presenceBits != null) ? Boolean.parseBoolean(presenceBits) : isPresenceBits();
+  }
+
+  /**
+   * Tests whether a field could be held as a primitive with a presence bit; i.e. it is a single optional value of a
+   * primitive type with no default.
+   */
+  private boolean isPresenceBitCandidate(final FieldDefinition field) {
+    if (field.isRepeated() || field.isRequired() || (field.getDefaultValue() != null) || (field.getOverride() != null)) {
+      return false;
+    }
+    final FieldType type = field.getType();
+    if ((type instanceof FieldType.UserType) && ((FieldType.UserType) type).getTypeDefinition().isExternal()) {
+      return false;
+    }
+    return !isObject(type) && (type.getFudgeFieldType() != FudgeWireType.INDICATOR_TYPE_ID);
+  }
+
+  /**
+   * Returns the bit in the presence mask for a field, or -1 if the field is held as a boxed value. Each message class
+   * has its own mask, so only the first 64 candidates declared in a message get a bit.
+   */
+  private int presenceBit(final FieldDefinition field) {
+    if (!isPresenceBits(field.getOuterMessage()) || !isPresenceBitCandidate(field)) {
+      return -1;
+    }
+    int bit = 0;
+    for (FieldDefinition other : field.getOuterMessage().getFieldDefinitions()) {
+      if (other == field) {
+        break;
+      }
+      if (isPresenceBitCandidate(other)) {
+        bit++;
+      }
+    }
+    return (bit < 64) ? bit : -1;
+  }
+
+  private boolean hasPresenceBit(final FieldDefinition field) {
+    return presenceBit(field) >= 0;
+  }
+
+  private boolean hasPresenceBits(final MessageDefinition message) {
+    for (FieldDefinition field : message.getFieldDefinitions()) {
+      if (hasPresenceBit(field)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private String presenceMask(final FieldDefinition field) {
+    return "0x" + Long.toHexString(1L << presenceBit(field)) + "L";
+  }
+
+  private String presenceTest(final String presence, final FieldDefinition field) {
+    return "((" + presence + " & " + presenceMask(field) + ") != 0)";
+  }
+
+  /**
+   * Returns the type of the attribute holding a field in the message (the builder always uses realTypeString).
+   */
+  private String attributeTypeString(final FieldDefinition field) {
+    if (hasPresenceBit(field)) {
+      return storageTypeString(field.getOuterMessage(), field.getType(), false);
+    } else {
+      return realTypeString(field, false);
+    }
+  }
+
   private String genericTypeString(final MessageDefinition message, final String javaClass, final FieldType type,
       final boolean concrete) {
     final StringBuilder sb = new StringBuilder(javaClass);
@@ -263,12 +458,21 @@ import org.fudgemsg.wire.types.FudgeWireType;
   @Override
   public void writeClassImplementationAttribute(final Compiler.Context context, final FieldDefinition field,
       final IndentWriter writer) throws IOException {
+    if (presenceBit(field) == 0) {
+      // declared with the first field that uses it; bits are set and cleared as the fields are assigned
+      writer.write("private long " + ATTRIBUTE_PRESENCE);
+      endStmt(writer); // presence mask decl
+    }
     writer.write("private ");
     if (!field.isMutable()) {
       writer.write("final ");
     }
-    writer.write(realTypeString(field, false) + " " + privateFieldName(field));
+    writer.write(attributeTypeString(field) + " " + privateFieldName(field));
     endStmt(writer); // attribute decl
+    if (field.isRepeated() && field.isMutable()) {
+      writer.write("private transient " + realTypeString(field, false) + " " + listViewName(field));
+      endStmt(writer); // cached view decl
+    }
     if (field.getOrdinal() != null) {
       writer.write("public static final int " + fieldOrdinal(field) + " = " + field.getOrdinal());
     } else {
@@ -400,7 +604,7 @@ import org.fudgemsg.wire.types.FudgeWireType;
         requiredFields.add(field);
       }
     }
-    writer.write(((builder || (ProtoBinding.DELEGATE.get(message) == null)) ? "public " : "protected ")
+    writer.write(((builder || (getBinding(ProtoBinding.DELEGATE, message) == null)) ? "public " : "protected ")
         + (builder ? "Builder" : message.getName()) + " (");
     if (superFields != null) {
       writer.write(fieldsToList(superFields, true));
@@ -452,7 +656,7 @@ import org.fudgemsg.wire.types.FudgeWireType;
         writer.write(fieldMethodName(field, null) + " (" + localFieldName(field) + ")");
         endStmt(writer);
       } else {
-        writeMutatorAssignment(writer, field, localFieldName(field), false, true);
+        writeMutatorAssignment(writer, field, localFieldName(field), false, true, false);
       }
     }
     for (FieldDefinition field : defaultFields) {
@@ -512,7 +716,7 @@ import org.fudgemsg.wire.types.FudgeWireType;
       endStmt(writer);
     }
     for (FieldDefinition field : thisFields) {
-      writeMutatorAssignment(writer, field, localFieldName(field), false, true);
+      writeMutatorAssignment(writer, field, localFieldName(field), false, true, false);
     }
     endBlock(writer); // constructor
   }
@@ -652,7 +856,7 @@ import org.fudgemsg.wire.types.FudgeWireType;
   }
 
   private void writeMutatorAssignment(final IndentWriter writer, final FieldDefinition field, final String value,
-      final boolean valueIsFinal, final boolean includeChecks) throws IOException {
+      final boolean valueIsFinal, final boolean includeChecks, final boolean builder) throws IOException {
     final FieldType type = field.getType();
     if (field.isRepeated()) {
       writer.write("if (" + value + " == null) ");
@@ -695,11 +899,12 @@ import org.fudgemsg.wire.types.FudgeWireType;
         }
         endBlock(writer); // for
         writer.write(privateFieldName(field) + " = "
-            + (pTypeName.equals(sTypeName) ? "" : "(" + listTypeString(field, true) + ")(" + CLASS_LIST + "<?>)")
-            + "fudge0");
+            + listStorageExpression(field, (pTypeName.equals(sTypeName) ? "" : "(" + listTypeString(field, true) + ")("
+                + CLASS_LIST + "<?>)") + "fudge0", builder));
         endStmt(writer);
       } else {
-        writer.write(privateFieldName(field) + " = new " + listTypeString(field, true) + " (" + value + ")");
+        writer.write(privateFieldName(field) + " = "
+            + listStorageExpression(field, "new " + listTypeString(field, true) + " (" + value + ")", builder));
         endStmt(writer);
       }
       endBlock(writer); // else
@@ -720,6 +925,23 @@ import org.fudgemsg.wire.types.FudgeWireType;
                 includeChecks));
         endStmt(writer);
         endBlock(writer);
+      } else if (!builder && hasPresenceBit(field)) {
+        writer.write("if (" + value + " != null)");
+        beginBlock(writer); // if
+        writer.write(privateFieldName(field) + " = " + value);
+        endStmt(writer);
+        writer.write(ATTRIBUTE_PRESENCE + " |= " + presenceMask(field));
+        endStmt(writer);
+        endBlock(writer); // if
+        writer.write("else");
+        beginBlock(writer); // else
+        // absent fields are reset so that equals can compare the attributes without testing the bits
+        writer.write(privateFieldName(field) + " = "
+            + ((field.getType().getFudgeFieldType() == FudgeWireType.BOOLEAN_TYPE_ID) ? "false" : "0"));
+        endStmt(writer);
+        writer.write(ATTRIBUTE_PRESENCE + " &= ~" + presenceMask(field));
+        endStmt(writer);
+        endBlock(writer); // else
       } else {
         if (includeChecks && field.isRequired() && isObject(field.getType())) {
           writer.write("if (" + value + " == null) throw new NullPointerException (\"" + value + "' cannot be null\")");
@@ -731,6 +953,15 @@ import org.fudgemsg.wire.types.FudgeWireType;
     }
   }
 
+  private void writeResetListView(final IndentWriter writer, final boolean builder, final FieldDefinition field)
+      throws IOException {
+    if (!builder) {
+      // the list has been replaced, so the cached view is no longer valid
+      writer.write(listViewName(field) + " = null");
+      endStmt(writer);
+    }
+  }
+
   private void writeMutatorMethod(final IndentWriter writer, final boolean builderReturn, final FieldDefinition field)
       throws IOException {
     // standard method (or singleton list on repeated fields)
@@ -756,8 +987,9 @@ import org.fudgemsg.wire.types.FudgeWireType;
       writer.write(fieldMethodName(field, "add") + " (" + lfn + ")");
       endStmt(writer); // invoke add
       endBlock(writer);
+      writeResetListView(writer, builderReturn, field);
     } else {
-      writeMutatorAssignment(writer, field, lfn, false, true);
+      writeMutatorAssignment(writer, field, lfn, false, true, builderReturn);
     }
     if (builderReturn) {
       writer.write("return this");
@@ -769,7 +1001,8 @@ import org.fudgemsg.wire.types.FudgeWireType;
       writer.write(returnType + fieldMethodName(field, builderReturn ? null : "set") + " ("
           + genericTypeString(field.getOuterMessage (), CLASS_COLLECTION, field.getType(), false) + " " + lfn + ")");
       beginBlock(writer); // method
-      writeMutatorAssignment(writer, field, lfn, false, true);
+      writeMutatorAssignment(writer, field, lfn, false, true, builderReturn);
+      writeResetListView(writer, builderReturn, field);
       if (builderReturn) {
         writer.write("return this");
         endStmt(writer); // return this
@@ -845,6 +1078,12 @@ import org.fudgemsg.wire.types.FudgeWireType;
       throws IOException {
     writer.write("protected " + message.getName() + " (final Builder builder)");
     beginBlock(writer); // constructor
+    writer.write("this (builder, false)");
+    endStmt(writer);
+    endBlock(writer); // constructor
+    // a trusted builder is one that will be discarded after construction, so its lists and arrays can be taken over
+    writer.write("protected " + message.getName() + " (final Builder builder, final boolean trusted)");
+    beginBlock(writer); // constructor
     final MessageDefinition superMessage = message.getExtends();
     if (superMessage != null) {
       if (superMessage.isExternal()) {
@@ -852,7 +1091,7 @@ import org.fudgemsg.wire.types.FudgeWireType;
         writer.write("super ()");
         endStmt(writer);
       } else if (useBuilderPattern(superMessage)) {
-        writer.write("super (builder)");
+        writer.write("super (builder, trusted)");
         endStmt(writer);
       } else {
         // Use the partial constructor
@@ -875,7 +1114,22 @@ import org.fudgemsg.wire.types.FudgeWireType;
     }
     for (FieldDefinition field : message.getFieldDefinitions()) {
       if (field.getOverride() == null) {
-        writeMutatorAssignment(writer, field, "builder." + privateFieldName(field), true, false);
+        final String value = "builder." + privateFieldName(field);
+        if (field.isRepeated() || isBigObject(field.getType())) {
+          if (field.isRepeated() && !field.isMutable()) {
+            writer.write("if (trusted) " + privateFieldName(field) + " = (" + value + " != null) ? "
+                + listStorageExpression(field, value, false) + " : null");
+          } else {
+            writer.write("if (trusted) " + privateFieldName(field) + " = " + value);
+          }
+          endStmt(writer);
+          writer.write("else");
+          beginBlock(writer); // else
+          writeMutatorAssignment(writer, field, value, true, false, false);
+          endBlock(writer); // else
+        } else {
+          writeMutatorAssignment(writer, field, value, true, false, false);
+        }
       }
     }
     endBlock(writer); // constructor
@@ -899,7 +1153,7 @@ import org.fudgemsg.wire.types.FudgeWireType;
         writer.write(")");
         endStmt(writer);
         for (FieldDefinition field : message.getFieldDefinitions()) {
-          writeMutatorAssignment(writer, field, "builder." + privateFieldName(field), true, false);
+          writeMutatorAssignment(writer, field, "builder." + privateFieldName(field), true, false, false);
         }
         endBlock(writer); // constructor
         break;
@@ -930,14 +1184,10 @@ import org.fudgemsg.wire.types.FudgeWireType;
     switch (type.getFudgeFieldType()) {
       case FudgeWireType.INT_ARRAY_TYPE_ID:
         if (((FieldType.ArrayType) type).getBaseType() instanceof FieldType.EnumType) {
-          final String temp1 = writer.localVariable("int[]", true, "new int[" + value + ".length]");
-          endStmt(writer);
-          final String temp2 = writer.forEachIndex(temp1, "length");
-          writer = beginBlock(writer);
-          writer.assignment(temp1 + "[" + temp2 + "]", value + "[" + temp2 + "].getFudgeEncoding ()");
-          endStmt(writer);
-          writer = endBlock(writer);
-          value = temp1;
+          // the enum's bulk conversion avoids a temporary array and loop here
+          final EnumDefinition enumDefinition = ((FieldType.EnumType) ((FieldType.ArrayType) type).getBaseType())
+              .getEnumDefinition();
+          value = enumDefinition.getIdentifier() + ".toFudgeEncoding (" + value + ")";
         }
         break;
       case FudgeWireType.INDICATOR_TYPE_ID:
@@ -988,9 +1238,9 @@ import org.fudgemsg.wire.types.FudgeWireType;
               endStmt(writer);
               return;
             } else {
-              final String temp1 = writer.localVariable(CLASS_MUTABLEFUDGEMSG, true,
-                  CLASS_FUDGESERIALIZER + ".addClassHeader (serializer.newMessage (), " + value
-                      + ".getClass (), " + messageDefinition.getIdentifier() + ".class)");
+              final String temp1 = writer.localVariable(CLASS_MUTABLEFUDGEMSG, true, "serializer.newMessage ()");
+              endStmt(writer);
+              writer.invoke(value, "addFudgeClassHeader", temp1 + ", " + messageDefinition.getIdentifier() + ".class");
               endStmt(writer);
               writer.invoke(value, "toFudgeMsg", "serializer, " + temp1);
               endStmt(writer);
@@ -1053,6 +1303,9 @@ import org.fudgemsg.wire.types.FudgeWireType;
         writer = beginBlock(writer); // if not null
         value = writer.forEach(storageTypeString(message, type, true), value);
         writer = beginBlock(writer); // foreach
+      } else if (hasPresenceBit(field)) {
+        writer.ifBool(presenceTest(ATTRIBUTE_PRESENCE, field));
+        writer = beginBlock(writer); // if present
       } else {
         if (isObject(type) || !field.isRequired()) {
           //TODO don't need null check on required fields!
@@ -1070,13 +1323,84 @@ import org.fudgemsg.wire.types.FudgeWireType;
         writer = endBlock(writer); // if not null
       } else {
         if (isObject(type) || !field.isRequired()) {
-          writer = endBlock(writer); // if not null
+          writer = endBlock(writer); // if not null or present
         }
       }
     }
     writer = endBlock(writer); // toFudgeMsg
   }
 
+  /**
+   * Writes the method used when the message is encoded as a sub-message field. It writes the same class names as
+   * FudgeSerializer.addClassHeader - the runtime class and its super classes, stopping at the type the receiver expects.
+   * For the classes we generate these are known, so the names are written from a static list instead of walking the
+   * class hierarchy reflectively on every encode. With the classIds option the generated classes are written as their
+   * type identifiers, at their own ordinal; a delegate class is not a message so is still written by name.
+   */
+  private void writeAddFudgeClassHeader(final Compiler.Context context, final IndentWriter writer,
+      final MessageDefinition message) throws IOException {
+    final String fallback = CLASS_FUDGESERIALIZER + ".addClassHeader (msg, getClass (), receiverTarget)";
+    final boolean delegate = getBinding(ProtoBinding.DELEGATE, message) != null;
+    final boolean classIds = isClassIds(message);
+    if (!message.isAbstract()) {
+      final StringBuilder sb = new StringBuilder();
+      final StringBuilder ids = new StringBuilder();
+      if (delegate && !classIds) {
+        sb.append(messageDelegateName(message)).append(".class, ");
+      }
+      for (MessageDefinition msg = message; (msg != null) && !msg.isExternal(); msg = msg.getExtends()) {
+        sb.append(msg.getIdentifier()).append(".class, ");
+        ids.append(CodeGeneratorUtil.getTypeId(context, msg)).append(", ");
+      }
+      writer.write("private static final Class<?>[] FUDGE_CLASS_HEADER = new Class<?>[] { "
+          + sb.substring(0, sb.length() - 2) + " }");
+      endStmt(writer);
+      if (classIds) {
+        writer.write("private static final int[] FUDGE_CLASS_IDS = new int[] { " + ids.substring(0, ids.length() - 2)
+            + " }");
+        endStmt(writer);
+      }
+    }
+    writer.write("public void addFudgeClassHeader (final " + CLASS_MUTABLEFUDGEMSG
+        + " msg, final Class<?> receiverTarget)");
+    beginBlock(writer); // addFudgeClassHeader
+    if (message.isAbstract()) {
+      writer.write(fallback);
+      endStmt(writer);
+    } else {
+      writer.write("if (getClass () == " + messageDelegateName(message) + ".class)");
+      beginBlock(writer); // if
+      if (classIds) {
+        if (delegate) {
+          writer.write("if (" + messageDelegateName(message) + ".class == receiverTarget) return");
+          endStmt(writer);
+          writer.write("msg.add (null, 0, " + messageDelegateName(message) + ".class.getName ())");
+          endStmt(writer);
+        }
+        writer.write("for (int i = 0; i < FUDGE_CLASS_HEADER.length; i++)");
+        beginBlock(writer); // for
+        writer.write("if (FUDGE_CLASS_HEADER[i] == receiverTarget) return");
+        endStmt(writer);
+        writer.write("msg.add (null, " + CodeGeneratorUtil.TYPE_ID_ORDINAL + ", FUDGE_CLASS_IDS[i])");
+        endStmt(writer);
+        endBlock(writer); // for
+      } else {
+        writer.write("for (Class<?> clazz : FUDGE_CLASS_HEADER)");
+        beginBlock(writer); // for
+        writer.write("if (clazz == receiverTarget) return");
+        endStmt(writer);
+        writer.write("msg.add (null, 0, clazz.getName ())");
+        endStmt(writer);
+        endBlock(writer); // for
+      }
+      endBlock(writer); // if
+      // a subclass we didn't generate
+      writer.write("else " + fallback);
+      endStmt(writer);
+    }
+    endBlock(writer); // addFudgeClassHeader
+  }
+
   /**
    * Returns true if the type is an array of Java objects rather than a Java primitive types. I.e. will generic collection methods work
    */
@@ -1156,8 +1480,7 @@ import org.fudgemsg.wire.types.FudgeWireType;
     }
   }
   
-  private String toArray(JavaWriter writer, final MessageDefinition message, final String source,
-      final FieldType.ArrayType type) throws IOException {
+  private String newArray(final MessageDefinition message, final FieldType.ArrayType type, final String length) {
     final StringBuilder sbNewArray = new StringBuilder("new ");
     int dims = 0;
     FieldType base = type.getBaseType();
@@ -1165,15 +1488,21 @@ import org.fudgemsg.wire.types.FudgeWireType;
       base = ((FieldType.ArrayType) base).getBaseType();
       dims++;
     }
-    sbNewArray.append(storageTypeString(message, base, false)).append('[').append(source).append(".size ()]");
+    sbNewArray.append(storageTypeString(message, base, false)).append('[').append(length).append(']');
     for (int i = 0; i < dims; i++) {
       sbNewArray.append("[]");
     }
+    return sbNewArray.toString();
+  }
+
+  private String toArray(JavaWriter writer, final MessageDefinition message, final String source,
+      final FieldType.ArrayType type) throws IOException {
+    final String sbNewArray = newArray(message, type, source + ".size ()");
     if (isObjectArray(type)) {
       return source + ".toArray (" + sbNewArray + ")";
     } else {
       final String newArray = writer
-          .localVariable(storageTypeString(message, type, false), true, sbNewArray.toString());
+          .localVariable(storageTypeString(message, type, false), true, sbNewArray);
       endStmt(writer);
       final String index = writer.localVariable("int", false, "0");
       endStmt(writer);
@@ -1206,6 +1535,54 @@ import org.fudgemsg.wire.types.FudgeWireType;
     }
   }
 
+  /**
+   * Decodes an arbitrary array into an array allocated from the sub-message field count. Returns the variable holding
+   * the array.
+   */
+  private String writeDecodeSubMessageArray(final Compiler.Context context, JavaWriter writer, final MessageDefinition message,
+      final FieldType.ArrayType type, final String subMessage, final String fieldRef, final String assignTo,
+      final String appendTo) throws IOException {
+    final FieldType baseType = type.getBaseType();
+    if (type.isFixedLength()) {
+      writer.ifSizeNot(subMessage, "getNumFields ()", type.getFixedLength());
+      writer.throwInvalidFudgeFieldException(message, fieldRef, type.toString(), null);
+      endStmt(writer);
+    }
+    final String array = writer.localVariable(storageTypeString(message, type, false), true, newArray(message, type,
+        subMessage + ".getNumFields ()"));
+    endStmt(writer);
+    if (baseType.getFudgeFieldType() == FudgeWireType.INDICATOR_TYPE_ID) {
+      writer.getWriter().write(CLASS_ARRAYS + ".fill (" + array + ", true)");
+      endStmt(writer);
+    } else {
+      final String index = writer.localVariable("int", false, "0");
+      endStmt(writer);
+      final String msgElement = writer.forEach(CLASS_FUDGEFIELD, subMessage);
+      writer = beginBlock(writer); // for
+      writer.ifBool(msgElement + ".getType() != " + CLASS_FUDGE_WIRE_TYPE + ".INDICATOR");
+      writer = beginBlock(writer); // if
+      writeDecodeFudgeField(context, writer, baseType, message, msgElement, fieldRef + "[]", subMessage, array + "["
+          + index + "]", null, true);
+      writer = endBlock(writer); // if
+      if (!isObjectArray(type)) {
+        // absent elements are left null in an object array, but can't be represented in a primitive one
+        writer.getWriter().write("else ");
+        writer.throwInvalidFudgeFieldException(message, fieldRef + "[]", baseType.toString(), null);
+        endStmt(writer);
+      }
+      writer.getWriter().write(index + "++");
+      endStmt(writer);
+      writer = endBlock(writer); // for
+    }
+    if (appendTo != null) {
+      return array;
+    } else {
+      writer.assignment(assignTo, array);
+      endStmt(writer);
+      return assignTo;
+    }
+  }
+
   private void writeDecodeFudgeField(final Compiler.Context context, JavaWriter writer, final FieldType type, final MessageDefinition message,
       final String fieldData, final String fieldRef, final String fieldContainer, String assignTo,
       final String appendTo, final boolean allowNull) throws IOException {
@@ -1242,17 +1619,9 @@ import org.fudgemsg.wire.types.FudgeWireType;
               assignTo = writer.localVariable(storageTypeString(message, type, false), true);
               endStmt(writer);
             }
-            final String intArray = writer.localVariable("int[]", true, fudgeFieldValueExpression(fieldContainer,
-                "int[]", fieldData));
-            endStmt(writer);
-            writer.assignment(assignTo, "new " + enumDefinition.getIdentifier() + "[" + intArray + ".length]");
+            writer.assignment(assignTo, enumDefinition.getIdentifier() + ".fromFudgeEncoding ("
+                + fudgeFieldValueExpression(fieldContainer, "int[]", fieldData) + ")");
             endStmt(writer);
-            final String index = writer.forEachIndex(intArray, "length");
-            writer = beginBlock(writer); // for
-            writer.assignment(assignTo + "[" + index + "]", enumDefinition.getIdentifier() + ".fromFudgeEncoding ("
-                + intArray + "[" + index + "])");
-            endStmt(writer);
-            writer = endBlock(writer); // for
           } else {
             assignTo = writeDecodeSimpleFudgeField(writer, "int[]", fieldData, fieldRef, fieldContainer,
                 assignTo, appendTo, null);
@@ -1276,6 +1645,12 @@ import org.fudgemsg.wire.types.FudgeWireType;
           final String subMessage = writer.localVariable(CLASS_FUDGEMSG, true, fudgeFieldValueExpression(
               fieldContainer, CLASS_FUDGEMSG, fieldData));
           endStmt(writer);
+          if (isPresizeDecode()) {
+            assignTo = writeDecodeSubMessageArray(context, writer, message, arrayType, subMessage, fieldRef, assignTo,
+                appendTo);
+            checkLength = false;
+            break;
+          }
           // TODO 2010-01-06 Andrew -- we could call getNumFields on the subMessage and allocate a proper array once, but might that be slower if we have a FudgeMsg implementation that makes data available as soon as its received & decoded - i.e. a big array submessage would have to be decoded in its entirety to get the length
           final String slaveList = writer.localVariable(listTypeString(message, baseType, false), true, "new "
               + listTypeString(message, baseType, true) + " ()");
@@ -1471,6 +1846,20 @@ import org.fudgemsg.wire.types.FudgeWireType;
     endBlock(writer.getWriter()); // iteration
   }
 
+  private void writeDecodeFudgeFieldsToField(final Compiler.Context context, final JavaWriter writer, final FieldDefinition field,
+      final boolean builder) throws IOException {
+    if (builder || field.isMutable()) {
+      writeDecodeFudgeFieldsToList(context, writer, field, privateFieldName(field));
+    } else {
+      // decode to a local so the attribute is only assigned once, with the unmodifiable list
+      final String tempList = writer.localVariable(listTypeString(field, false), true);
+      endStmt(writer); // temp variable
+      writeDecodeFudgeFieldsToList(context, writer, field, tempList);
+      writer.assignment(privateFieldName(field), listStorageExpression(field, tempList, builder));
+      endStmt(writer); // attribute assignment
+    }
+  }
+
   private void writeDecodeFudgeFields(final Compiler.Context context, final IndentWriter writer, final List<FieldDefinition> fields,
       final boolean builder) throws IOException {
     JavaWriter jWriter = new JavaWriter(writer);
@@ -1496,26 +1885,27 @@ import org.fudgemsg.wire.types.FudgeWireType;
         jWriter.throwInvalidFudgeFieldException(field.getOuterMessage(), field.getName(), "present", null);
         endStmt(jWriter); // if & throw
         if (field.isRepeated()) {
-          writeDecodeFudgeFieldsToList(context, jWriter, field, privateFieldName(field));
+          writeDecodeFudgeFieldsToField(context, jWriter, field, builder);
         } else {
           writeDecodeFudgeField(context, jWriter, field.getType(), field.getOuterMessage(), "fudgeField", field.getName(),
               "fudgeMsg", privateFieldName(field), null, false);
         }
       } else {
-        final String method = fieldMethodName(field, builder ? null : "set");
+        // the decoded values are new objects that nothing else can reference, so they are assigned directly rather
+        // than through the public mutators which would copy them again
         if (field.isRepeated()) {
           jWriter.ifGtZero("fudgeFields.size ()");
           jWriter = beginBlock(jWriter); // if guard
-          final String tempList = jWriter.localVariable(listTypeString(field, false), true);
-          endStmt(jWriter); // temp variable
-          writeDecodeFudgeFieldsToList(context, jWriter, field, tempList);
-          writer.write(method + " (" + tempList + ")");
-          endStmt(writer); // add to builder or object
+          writeDecodeFudgeFieldsToField(context, jWriter, field, builder);
         } else {
           jWriter.ifNotNull("fudgeField");
           jWriter = beginBlock(jWriter); // if guard
           writeDecodeFudgeField(context, jWriter, field.getType(), field.getOuterMessage(), "fudgeField", field.getName(),
-              "fudgeMsg", null, method, true);
+              "fudgeMsg", privateFieldName(field), null, true);
+          if (!builder && hasPresenceBit(field)) {
+            jWriter.getWriter().write(ATTRIBUTE_PRESENCE + " |= " + presenceMask(field));
+            endStmt(jWriter); // presence bit
+          }
         }
         jWriter = endBlock(jWriter); // if guard
       }
@@ -1604,7 +1994,17 @@ import org.fudgemsg.wire.types.FudgeWireType;
       nullCheck = true;
       endStmt(writer);
       for (FieldDefinition field : required) {
-        writeMutatorAssignment(writer, field, "source." + privateFieldName(field), true, false);
+        if (hasPresenceBit(field)) {
+          // the bits are copied with the mask below
+          writer.write(privateFieldName(field) + " = source." + privateFieldName(field));
+          endStmt(writer);
+        } else {
+          writeMutatorAssignment(writer, field, "source." + privateFieldName(field), true, false, false);
+        }
+      }
+      if (hasPresenceBits(message)) {
+        writer.write(ATTRIBUTE_PRESENCE + " = source." + ATTRIBUTE_PRESENCE);
+        endStmt(writer);
       }
     }
     if (optional.size() > 0) {
@@ -1614,7 +2014,7 @@ import org.fudgemsg.wire.types.FudgeWireType;
       }
       for (FieldDefinition field : optional) {
         if (field.getOverride() == null) {
-          writeMutatorAssignment(writer, field, "source." + privateFieldName(field), true, false);
+          writeMutatorAssignment(writer, field, "source." + privateFieldName(field), true, false, false);
         }
       }
       if (!nullCheck) {
@@ -1627,7 +2027,7 @@ import org.fudgemsg.wire.types.FudgeWireType;
               writer.write(fieldMethodName(field, "set") + " (" + fieldConstant(field) + ")");
               endStmt(writer);
             } else {
-              writeMutatorAssignment(writer, field, fieldConstant(field), true, false);
+              writeMutatorAssignment(writer, field, fieldConstant(field), true, false, false);
             }
           }
         }
@@ -1644,6 +2044,23 @@ import org.fudgemsg.wire.types.FudgeWireType;
     }
   }
 
+  /**
+   * Tests whether fromFudgeMsg can construct the message directly from a private builder. This isn't possible if the
+   * builder is bound to a delegate class, or must construct its result from the original message because a super
+   * class does not use the builder pattern.
+   */
+  private boolean isTrustedBuild(final MessageDefinition message) {
+    if (getBinding(ProtoBinding.DELEGATE, message) != null) {
+      return false;
+    }
+    for (MessageDefinition superMessage = message.getExtends(); superMessage != null; superMessage = superMessage.getExtends()) {
+      if (!useBuilderPattern(superMessage)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   private void writeFromFudgeMsg(final Compiler.Context context, final IndentWriter writer,
       final MessageDefinition message, final boolean useBuilder) throws IOException {
     final String params, paramTypes;
@@ -1662,10 +2079,55 @@ import org.fudgemsg.wire.types.FudgeWireType;
       paramTypes = CLASS_FUDGEMSG + ".class";
     }
     beginBlock(writer); // fromFudgeMsg
-    writer.write("final " + CLASS_LIST + "<" + CLASS_FUDGEFIELD + "> types = fudgeMsg.getAllByOrdinal (0)");
+    // the class names are usually the leading fields, but may be appended after the others; the search ends at the
+    // first other field after a name so only the names are read when they lead
+    final boolean classIds = isClassIds(message);
+    writer.write("boolean classHeader = false");
     endStmt(writer);
-    writer.write("for (" + CLASS_FUDGEFIELD + " field : types)");
+    writer.write("for (" + CLASS_FUDGEFIELD + " field : fudgeMsg)");
     beginBlock(writer); // for
+    if (classIds) {
+      writer.write("if ((field.getOrdinal () == null) || ((field.getOrdinal ().intValue () != 0)"
+          + " && (field.getOrdinal ().intValue () != " + CodeGeneratorUtil.TYPE_ID_ORDINAL + ")))");
+    } else {
+      writer.write("if ((field.getOrdinal () == null) || (field.getOrdinal ().intValue () != 0))");
+    }
+    beginBlock(writer); // if
+    writer.write("if (classHeader) break");
+    endStmt(writer);
+    writer.write("continue");
+    endStmt(writer);
+    endBlock(writer); // if
+    writer.write("classHeader = true");
+    endStmt(writer);
+    if (classIds) {
+      CodeGeneratorUtil.checkTypeId(context, message);
+      writer.write("if (field.getOrdinal ().intValue () == " + CodeGeneratorUtil.TYPE_ID_ORDINAL + ")");
+      beginBlock(writer); // if
+      writer.write("if (!(field.getValue () instanceof Number)) continue");
+      endStmt(writer);
+      writer.write("final int typeId = ((Number)field.getValue ()).intValue ()");
+      endStmt(writer);
+      writer.write("if (typeId == " + CodeGeneratorUtil.getTypeId(context, message) + ") break");
+      endStmt(writer);
+      // subclasses compiled alongside this one can be dispatched to directly; anything else is skipped over
+      final boolean withDeserializer = context.isToFromWithContext() || message.hasExternalMessageReferences();
+      for (MessageDefinition subclass : CodeGeneratorUtil.getSubclasses(context, message)) {
+        if (subclass.isExternal() || subclass.isAbstract()
+            || (withDeserializer != (context.isToFromWithContext() || subclass.hasExternalMessageReferences()))) {
+          continue;
+        }
+        writer.write("if (typeId == " + CodeGeneratorUtil.getTypeId(context, subclass) + ") return " + subclass.getIdentifier()
+            + ".fromFudgeMsg (" + params + ")");
+        endStmt(writer);
+      }
+      writer.write("continue");
+      endStmt(writer);
+      endBlock(writer); // if
+    }
+    // a reference to an earlier class header, or anything else that isn't a class name
+    writer.write("if (!(field.getValue () instanceof String)) continue");
+    endStmt(writer);
     writer.write("final String className = (String)field.getValue ()");
     endStmt(writer);
     writer.write("if (\"" + message.getIdentifier() + "\".equals (className)) break");
@@ -1685,17 +2147,167 @@ import org.fudgemsg.wire.types.FudgeWireType;
     if (message.isAbstract()) {
       writer.write("throw new UnsupportedOperationException (\"" + message.getName() + " is an abstract message\")");
     } else {
-      writer.write("return new ");
+      final boolean interned = isInterned(context, message);
+      writer.write(interned ? "return intern (new " : "return new ");
       if (useBuilder) {
-        writer.write("Builder (" + params + ").build ()");
+        if (isTrustedBuild(message)) {
+          // nothing else can see this builder, so the message can take its state without copying
+          writer.write(message.getName() + " (new Builder (" + params + "), true)");
+        } else {
+          writer.write("Builder (" + params + ").build ()");
+        }
       } else {
         writer.write(messageDelegateName(message) + " (" + params + ")");
       }
+      if (interned) {
+        writer.write(")");
+      }
     }
     endStmt(writer);
     endBlock(writer); // fromFudgeMsg
   }
 
+  /**
+   * Returns the capacity of the intern cache from the message's binding, or -1 if it is absent or not a positive
+   * number.
+   */
+  private int internCapacity(final MessageDefinition message) {
+    final String intern = getBinding(ProtoBinding.INTERN, message);
+    if (intern == null) {
+      return -1;
+    }
+    try {
+      final int capacity = Integer.parseInt(intern.trim());
+      return (capacity > 0) ? capacity : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Tests whether fromFudgeMsg returns shared instances of the message. Only concrete messages that are deeply immutable
+   * can be shared, as a change made through one reference would be seen by every holder of the instance and would
+   * change its hash code while it is a key in the cache.
+   */
+  /* package */ boolean isInterned(final Compiler.Context context, final MessageDefinition message) {
+    return (internCapacity(message) > 0) && !message.isAbstract() && isImmutable(context, message);
+  }
+
+  /**
+   * Tests whether a message is deeply immutable, remembering the result for the rest of the compilation. If the message
+   * is immutable then so is everything checked on the way, as any mutable type found would have made the whole test
+   * fail. A failure only says something about the message itself as the others may have been passed by assuming
+   * messages further up a recursive structure were immutable.
+   */
+  private boolean isImmutable(final Compiler.Context context, final MessageDefinition message) {
+    Boolean immutable = _immutable.get(message);
+    if (immutable == null) {
+      final Set<MessageDefinition> visited = new HashSet<MessageDefinition>();
+      immutable = isImmutable(context, message, visited);
+      if (immutable) {
+        for (MessageDefinition msg : visited) {
+          _immutable.put(msg, Boolean.TRUE);
+        }
+      } else {
+        _immutable.put(message, Boolean.FALSE);
+      }
+    }
+    return immutable;
+  }
+
+  /**
+   * Tests whether nothing reachable from a message can be changed once it is constructed. It must have no mutable fields
+   * and, as an external super class may have state we don't know about, be entirely generated.
+   */
+  private boolean isImmutable(final Compiler.Context context, final MessageDefinition message,
+      final Set<MessageDefinition> visited) {
+    final Boolean immutable = _immutable.get(message);
+    if (immutable != null) {
+      return immutable;
+    }
+    if (!visited.add(message)) {
+      // already being checked further up a recursive structure
+      return true;
+    }
+    if (useCopyConstructor(message)) {
+      return false;
+    }
+    for (MessageDefinition msg = message; msg != null; msg = msg.getExtends()) {
+      for (FieldDefinition field : msg.getFieldDefinitions()) {
+        if (!isImmutable(context, field.getType(), visited)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Tests whether a value of the type can't be changed once it is held by a message. Arrays are returned by the accessor
+   * as held, and an anonymous or external message may be mutable. A sub-message field may hold any subclass of its type
+   * so those we know of must be immutable too.
+   */
+  private boolean isImmutable(final Compiler.Context context, final FieldType type,
+      final Set<MessageDefinition> visited) {
+    if (type instanceof FieldType.ArrayType) {
+      return false;
+    } else if (type instanceof FieldType.MessageType) {
+      final MessageDefinition message = ((FieldType.MessageType) type).getMessageDefinition();
+      if ((message == MessageDefinition.ANONYMOUS) || !isImmutable(context, message, visited)) {
+        return false;
+      }
+      for (MessageDefinition subclass : CodeGeneratorUtil.getSubclasses(context, message)) {
+        if (!isImmutable(context, subclass, visited)) {
+          return false;
+        }
+      }
+      return true;
+    } else if (type instanceof FieldType.UserType) {
+      final TypeDefinition typedef = ((FieldType.UserType) type).getTypeDefinition();
+      return !typedef.isExternal() && isImmutable(context, typedef.getUnderlyingType(), visited);
+    } else {
+      // scalars, strings, enums and dates
+      return true;
+    }
+  }
+
+  /**
+   * Writes the intern cache. Equal messages decoded by fromFudgeMsg are replaced by the first instance seen, so repeated
+   * reference data is held once. When the cache is full the least recently used instance is dropped, so a working set
+   * that fits stays shared while a stream of one-off messages can't grow it without bound.
+   */
+  private void writeInternCache(final IndentWriter writer, final MessageDefinition message) throws IOException {
+    final String name = message.getName();
+    final String map = "<" + name + ", " + name + ">";
+    writer.write("private static final java.util.Map" + map + " _fudgeInternCache = new java.util.LinkedHashMap" + map
+        + " (16, 0.75f, true)");
+    endStmt(writer);
+    writer.write("public static " + name + " intern (final " + name + " message)");
+    beginBlock(writer); // intern
+    writer.write("synchronized (_fudgeInternCache)");
+    beginBlock(writer); // synchronized
+    writer.write("final " + name + " shared = _fudgeInternCache.get (message)");
+    endStmt(writer);
+    writer.write("if (shared != null) return shared");
+    endStmt(writer);
+    writer.write("if (_fudgeInternCache.size () >= " + internCapacity(message) + ")");
+    beginBlock(writer); // if
+    comment(writer, "access ordered, so the first entry is the least recently used");
+    writer.write("final java.util.Iterator<" + name + "> eldest = _fudgeInternCache.keySet ().iterator ()");
+    endStmt(writer);
+    writer.write("eldest.next ()");
+    endStmt(writer);
+    writer.write("eldest.remove ()");
+    endStmt(writer);
+    endBlock(writer); // if
+    writer.write("_fudgeInternCache.put (message, message)");
+    endStmt(writer);
+    writer.write("return message");
+    endStmt(writer);
+    endBlock(writer); // synchronized
+    endBlock(writer); // intern
+  }
+
   @Override
   public void writeClassImplementationEquality(final Compiler.Context context, final MessageDefinition message,
       final IndentWriter writer) throws IOException {
@@ -1707,6 +2319,11 @@ import org.fudgemsg.wire.types.FudgeWireType;
     endStmt(writer);
     writer.write(message.getName() + " msg = (" + message.getName() + ")o");
     endStmt(writer);
+    if (hasPresenceBits(message)) {
+      // absent fields are always reset, so once the masks match the attributes can be compared directly
+      writer.write("if (" + ATTRIBUTE_PRESENCE + " != msg." + ATTRIBUTE_PRESENCE + ") return false");
+      endStmt(writer);
+    }
     for (FieldDefinition field : message.getFieldDefinitions()) {
       if (field.getOverride() != null) {
         continue;
@@ -1740,7 +2357,7 @@ import org.fudgemsg.wire.types.FudgeWireType;
               + ")) return false");
         }
       } else {
-        if (isObject(type) || field.isRepeated() || !field.isRequired()) {
+        if ((isObject(type) || field.isRepeated() || !field.isRequired()) && !hasPresenceBit(field)) {
           writer.write("if (" + a + " != null)");
           beginBlock(writer); // if !a
           writer.write("if (" + b + " != null)");
@@ -1752,6 +2369,11 @@ import org.fudgemsg.wire.types.FudgeWireType;
           endStmt(writer);
           endBlock(writer); // if !a
           writer.write("else if (" + b + " != null) return false");
+        } else if (hasPresenceBit(field) && (type.getFudgeFieldType() == FudgeWireType.DOUBLE_TYPE_ID)) {
+          // same result as the boxed Double.equals it replaces, so NaN still equals itself
+          writer.write("if (Double.compare (" + a + ", " + b + ") != 0) return false");
+        } else if (hasPresenceBit(field) && (type.getFudgeFieldType() == FudgeWireType.FLOAT_TYPE_ID)) {
+          writer.write("if (Float.compare (" + a + ", " + b + ") != 0) return false");
         } else {
           writer.write("if (" + a + " != " + b + ") return false");
         }
@@ -1774,6 +2396,10 @@ import org.fudgemsg.wire.types.FudgeWireType;
     beginBlock(writer);
     writer.write("int hc = " + ((message.getExtends() != null) ? "super.hashCode ()" : "1"));
     endStmt(writer);
+    if (hasPresenceBits(message)) {
+      writer.write("hc = (hc * 31) + (int)(" + ATTRIBUTE_PRESENCE + " ^ (" + ATTRIBUTE_PRESENCE + " >>> 32))");
+      endStmt(writer);
+    }
     for (FieldDefinition field : message.getFieldDefinitions()) {
       if (field.getOverride() != null) {
         continue;
@@ -1793,7 +2419,7 @@ import org.fudgemsg.wire.types.FudgeWireType;
               + (isObjectArray((FieldType.ArrayType) type) ? "deepHashCode" : "hashCode") + " (" + name + ")");
         }
       } else {
-        if (isObject(type) || field.isRepeated() || !field.isRequired()) {
+        if ((isObject(type) || field.isRepeated() || !field.isRequired()) && !hasPresenceBit(field)) {
           writer.write("hc *= 31");
           endStmt(writer);
           writer.write("if (" + name + " != null) hc += " + name + ".hashCode ()");
@@ -1871,7 +2497,34 @@ import org.fudgemsg.wire.types.FudgeWireType;
     writeFullPublicConstructor(writer, useBuilder, message);
     writeProtectedCopyConstructor(context, writer, message);
     writeToFudgeMsg(context, jWriter, message);
+    writeAddFudgeClassHeader(context, writer, message);
     writeFromFudgeMsg(context, writer, message, useBuilder);
+    if (isInterned(context, message)) {
+      writeInternCache(writer, message);
+    }
+  }
+
+  /**
+   * Returns the lowest encoding of an integer encoded enum if its encodings are dense enough to decode by indexing an
+   * array from it, or null if the gaps would make the array wasteful and a switch should be used instead.
+   */
+  private static Long decodeTableBase(final EnumDefinition enumDefinition) {
+    long min = Long.MAX_VALUE;
+    long max = Long.MIN_VALUE;
+    int count = 0;
+    for (Map.Entry<String, LiteralValue> element : enumDefinition.getElements()) {
+      if (!(element.getValue() instanceof LiteralValue.IntegerValue)) {
+        return null;
+      }
+      final long value = ((LiteralValue.IntegerValue) element.getValue()).get();
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+      count++;
+    }
+    if ((count == 0) || (max - min >= 2 * count + 8)) {
+      return null;
+    }
+    return min;
   }
 
   @Override
@@ -1915,18 +2568,77 @@ import org.fudgemsg.wire.types.FudgeWireType;
         writer.write("return _fudgeEncoding");
         endStmt(writer);
         endBlock(writer); // getFudgeEncoding
-        writer.write("public static " + enumDefinition.getName() + " fromFudgeEncoding (final int fudgeEncoding)");
-        beginBlock(writer); // fromFudgeEncoding
-        writer.write("switch (fudgeEncoding)");
-        beginBlock(writer); // switch
-        for (Map.Entry<String, LiteralValue> element : enumDefinition.getElements()) {
-          writer.write("case " + getLiteral(element.getValue()) + " : return " + element.getKey());
+        final String invalid = "throw new IllegalArgumentException (\"field is not a " + enumDefinition.getName()
+            + " - invalid value '\" + fudgeEncoding + \"'\")";
+        final Long decodeBase = decodeTableBase(enumDefinition);
+        if (decodeBase != null) {
+          // the constants indexed by their encoding less the lowest, so decoding is an array lookup
+          final List<String> table = new ArrayList<String>();
+          for (Map.Entry<String, LiteralValue> element : enumDefinition.getElements()) {
+            final int index = (int) (((LiteralValue.IntegerValue) element.getValue()).get() - decodeBase);
+            while (table.size() <= index) {
+              table.add("null");
+            }
+            table.set(index, element.getKey());
+          }
+          final StringBuilder sb = new StringBuilder();
+          for (String constant : table) {
+            sb.append((sb.length() > 0) ? ", " : "").append(constant);
+          }
+          writer.write("private static final " + enumDefinition.getName() + "[] FUDGE_DECODE = new "
+              + enumDefinition.getName() + "[] { " + sb + " }");
+          endStmt(writer);
+          writer.write("public static " + enumDefinition.getName() + " fromFudgeEncoding (final int fudgeEncoding)");
+          beginBlock(writer); // fromFudgeEncoding
+          if (decodeBase == 0) {
+            writer.write("final int index = fudgeEncoding");
+          } else if (decodeBase > 0) {
+            writer.write("final int index = fudgeEncoding - " + decodeBase);
+          } else {
+            writer.write("final int index = fudgeEncoding + " + (-decodeBase));
+          }
+          endStmt(writer);
+          writer.write("final " + enumDefinition.getName()
+              + " value = ((index >= 0) && (index < FUDGE_DECODE.length)) ? FUDGE_DECODE[index] : null");
+          endStmt(writer);
+          writer.write("if (value == null) " + invalid);
+          endStmt(writer);
+          writer.write("return value");
+          endStmt(writer);
+          endBlock(writer); // fromFudgeEncoding
+        } else {
+          writer.write("public static " + enumDefinition.getName() + " fromFudgeEncoding (final int fudgeEncoding)");
+          beginBlock(writer); // fromFudgeEncoding
+          writer.write("switch (fudgeEncoding)");
+          beginBlock(writer); // switch
+          for (Map.Entry<String, LiteralValue> element : enumDefinition.getElements()) {
+            writer.write("case " + getLiteral(element.getValue()) + " : return " + element.getKey());
+            endStmt(writer);
+          }
+          writer.write("default : " + invalid);
           endStmt(writer);
+          endBlock(writer); // switch
+          endBlock(writer); // fromFudgeEncoding
         }
-        writer.write("default : throw new IllegalArgumentException (\"field is not a " + enumDefinition.getName()
-            + " - invalid value '\" + fudgeEncoding + \"'\")");
+        // bulk conversions for arrays, encoded as a single int[] field
+        writer.write("public static int[] toFudgeEncoding (final " + enumDefinition.getName() + "[] values)");
+        beginBlock(writer); // toFudgeEncoding
+        writer.write("final int[] fudgeEncodings = new int[values.length]");
+        endStmt(writer);
+        writer.write("for (int i = 0; i < values.length; i++) fudgeEncodings[i] = values[i]._fudgeEncoding");
+        endStmt(writer);
+        writer.write("return fudgeEncodings");
+        endStmt(writer);
+        endBlock(writer); // toFudgeEncoding
+        writer.write("public static " + enumDefinition.getName() + "[] fromFudgeEncoding (final int[] fudgeEncodings)");
+        beginBlock(writer); // fromFudgeEncoding
+        writer.write("final " + enumDefinition.getName() + "[] values = new " + enumDefinition.getName()
+            + "[fudgeEncodings.length]");
+        endStmt(writer);
+        writer.write("for (int i = 0; i < fudgeEncodings.length; i++) values[i] = fromFudgeEncoding (fudgeEncodings[i])");
+        endStmt(writer);
+        writer.write("return values");
         endStmt(writer);
-        endBlock(writer); // switch
         endBlock(writer); // fromFudgeEncoding
         break;
       case STRING_ENCODED:
@@ -1954,7 +2666,7 @@ import org.fudgemsg.wire.types.FudgeWireType;
         endBlock(writer); // fromFudgeEncoding
         break;
     }
-    final String bodyCode = ProtoBinding.BODY.get(enumDefinition);
+    final String bodyCode = getBinding(ProtoBinding.BODY, enumDefinition);
     if (bodyCode != null) {
       writer.write(bodyCode);
       writer.newLine();
@@ -2068,7 +2780,7 @@ import org.fudgemsg.wire.types.FudgeWireType;
 
   private String[] getDateTimeTargetType(final MessageDefinition messageDefinition) {
     final String[] result = new String[3];
-    String datetime = ProtoBinding.DATETIME.get(messageDefinition);
+    String datetime = getBinding(ProtoBinding.DATETIME, messageDefinition);
     if (datetime == null) {
       datetime = DEFAULT_DATETIME_TYPE;
     }
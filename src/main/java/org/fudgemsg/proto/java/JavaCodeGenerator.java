@@ -19,7 +19,12 @@ package org.fudgemsg.proto.java;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.fudgemsg.FudgeContext;
 import org.fudgemsg.proto.Binding;
@@ -29,6 +34,7 @@ import org.fudgemsg.proto.FieldDefinition;
 import org.fudgemsg.proto.IndentWriter;
 import org.fudgemsg.proto.MessageDefinition;
 import org.fudgemsg.proto.TypeDefinition;
+import org.fudgemsg.proto.TypeIdRegistry;
 import org.fudgemsg.proto.proto.InnerClassCodeGenerator;
 
 /**
@@ -45,6 +51,12 @@ public class JavaCodeGenerator extends InnerClassCodeGenerator {
      * Java fragment to be dropped into the class or enum generated
      */
     BODY ("body"),
+    /**
+     * Whether the class header of the message and its subclasses is written as type identifiers; overrides the global
+     * classIds option. Either true or false. Subclasses compiled separately are only recognized by name, so a message
+     * whose receivers may see them can keep names while the rest of the unit uses identifiers.
+     */
+    CLASS_IDS ("classIds"),
     /**
      * Alternative class to use for DateTime types. E.g.
      *   javax.time.calendar.LocalDateTime=javax.time.calendar.DateTimeProvider/toLocalDateTime
@@ -68,24 +80,92 @@ public class JavaCodeGenerator extends InnerClassCodeGenerator {
      * Comma separated list of packages to be imported at the head of the file (for use in implements, delegate, or body)
      */
     IMPORTS ("imports"),
+    /**
+     * Capacity of a cache of shared instances returned by {@code fromFudgeMsg} in place of equal messages. Equality and
+     * hash methods are generated for the message, and must also be generated for any super class.
+     */
+    INTERN ("intern"),
     /**
      * Comma separated list of methods (or no- prefixed) to override the global code generator config. E.g. equals, hashCode, toString, no-equals, no-hashCode, no-toString.
      */
-    METHODS ("methods");
+    METHODS ("methods"),
+    /**
+     * Whether optional primitive fields of the message are held as primitives with presence bits; overrides the global
+     * presenceBits option. Either true or false.
+     */
+    PRESENCE_BITS ("presenceBits");
     private final String _key;
     private ProtoBinding (final String key) {
       _key = key;
     }
-    /* package */ String get (final Definition definition) {
-      final Binding.Data data = definition.getLanguageBinding (LANG_ID).getData (_key);
-      return (data != null) ? data.getValue () : null;
+  }
+  
+  /**
+   * The Java language binding of a definition, looked up and split once on first use. Bindings are complete before
+   * code generation starts, so the values can't change after that. The instances are held by the class code for the
+   * duration of a compilation.
+   */
+  /* package */ static final class BindingOptions {
+    
+    private final Map<ProtoBinding, String> _values = new EnumMap<ProtoBinding, String> (ProtoBinding.class);
+    
+    private final List<String> _imports;
+    
+    private final Set<String> _methods;
+    
+    /* package */ BindingOptions (final Definition definition) {
+      final Binding binding = definition.getLanguageBinding (LANG_ID);
+      for (ProtoBinding key : ProtoBinding.values ()) {
+        final Binding.Data data = binding.getData (key._key);
+        if (data != null) _values.put (key, data.getValue ());
+      }
+      _imports = split (_values.get (ProtoBinding.IMPORTS));
+      final List<String> methods = split (_values.get (ProtoBinding.METHODS));
+      _methods = (methods != null) ? Collections.unmodifiableSet (new HashSet<String> (methods)) : null;
+    }
+    
+    private static List<String> split (final String value) {
+      if (value == null) return null;
+      final String[] values = value.split (",\\s*");
+      for (int i = 0; i < values.length; i++) {
+        values[i] = values[i].trim ();
+      }
+      return Collections.unmodifiableList (Arrays.asList (values));
+    }
+    
+    /* package */ String get (final ProtoBinding key) {
+      return _values.get (key);
     }
+    
+    /**
+     * Returns the libraries listed in the imports binding, or null if there isn't one.
+     */
+    /* package */ List<String> getImports () {
+      return _imports;
+    }
+    
+    /**
+     * Returns the entries of the methods binding, or null if there isn't one.
+     */
+    /* package */ Set<String> getMethods () {
+      return _methods;
+    }
+    
   }
   
+  private final JavaClassCode _classCode;
+  
   private String _globalFudgeContext = null;
   
+  private boolean _externalizable = false;
+  
   public JavaCodeGenerator () {
-    super (JavaClassCode.INSTANCE);
+    this (new JavaClassCode ());
+  }
+  
+  private JavaCodeGenerator (final JavaClassCode classCode) {
+    super (classCode);
+    _classCode = classCode;
   }
   
   protected void setGlobalFudgeContext (final String path) {
@@ -96,11 +176,37 @@ public class JavaCodeGenerator extends InnerClassCodeGenerator {
     return _globalFudgeContext;
   }
   
+  /**
+   * Sets whether messages are written by Java serialization in their Fudge encoding, instead of reflectively field by
+   * field.
+   */
+  protected void setExternalizable (final boolean externalizable) {
+    _externalizable = externalizable;
+  }
+  
+  protected boolean isExternalizable () {
+    return _externalizable;
+  }
+  
   @Override
   public void writeClassImplementationConstructor (final Compiler.Context context, final MessageDefinition message, final IndentWriter writer) throws IOException {
     super.writeClassImplementationConstructor (context, message, writer);
+    if (_classCode.isInterned (context, message)) {
+      // sharing relies on the equality of the whole hierarchy
+      for (MessageDefinition msg = message; msg != null; msg = msg.getExtends ()) {
+        if (!flagGenerateEquality (msg) || !flagGenerateHash (msg)) {
+          context.warning (message.getCodePosition (), "Interned message '" + message.getName () + "' will not share "
+              + "instances as '" + msg.getName () + "' has no equals or hashCode method");
+          break;
+        }
+      }
+    } else if (_classCode.getBinding (ProtoBinding.INTERN, message) != null) {
+      context.warning (message.getCodePosition (), "Message '" + message.getName () + "' can't be interned; it must be "
+          + "concrete, have a positive cache capacity, and no mutable, array or anonymous message fields in it or its "
+          + "sub-messages");
+    }
     // The hack below is something I'm not too keen on
-    String globalFudgeContext = ProtoBinding.FUDGECONTEXT.get (message);
+    String globalFudgeContext = _classCode.getBinding (ProtoBinding.FUDGECONTEXT, message);
     if (globalFudgeContext == null) {
       globalFudgeContext = getGlobalFudgeContext ();
     }
@@ -127,12 +233,82 @@ public class JavaCodeGenerator extends InnerClassCodeGenerator {
         endBlock(writer);
       }
     }
+    if (isExternalizable () && !message.isAbstract ()) {
+      writeSerializedForm (context, message, (globalFudgeContext != null) ? globalFudgeContext
+          : FudgeContext.class.getName () + ".GLOBAL_DEFAULT", writer);
+    }
+  }
+  
+  /**
+   * Writes a serialization proxy. The message's fields are final and there is no no-arg constructor, so it can't be
+   * Externalizable itself. Instead writeReplace substitutes an Externalizable holding the Fudge encoding of the message
+   * which is decoded again by readResolve.
+   */
+  private void writeSerializedForm (final Compiler.Context context, final MessageDefinition message,
+      final String fudgeContext, final IndentWriter writer) throws IOException {
+    final boolean withContext = context.isToFromWithContext () || message.hasExternalMessageReferences ();
+    writer.write ("protected Object writeReplace ()");
+    beginBlock (writer); // writeReplace
+    if (withContext) {
+      writer.write ("return new SerializedForm (" + fudgeContext + ".toByteArray (toFudgeMsg (new "
+          + JavaClassCode.CLASS_FUDGESERIALIZER + " (" + fudgeContext + "))))");
+    } else {
+      writer.write ("return new SerializedForm (" + fudgeContext + ".toByteArray (toFudgeMsg (" + fudgeContext + ")))");
+    }
+    endStmt (writer);
+    endBlock (writer); // writeReplace
+    writer.write ("private static final class SerializedForm implements java.io.Externalizable");
+    beginBlock (writer); // class
+    writer.write ("private static final long serialVersionUID = 1l");
+    endStmt (writer);
+    writer.write ("private byte[] _data");
+    endStmt (writer);
+    writer.write ("public SerializedForm ()");
+    beginBlock (writer);
+    endBlock (writer);
+    writer.write ("private SerializedForm (final byte[] data)");
+    beginBlock (writer); // constructor
+    writer.write ("_data = data");
+    endStmt (writer);
+    endBlock (writer); // constructor
+    writer.write ("public void writeExternal (final java.io.ObjectOutput out) throws java.io.IOException");
+    beginBlock (writer); // writeExternal
+    writer.write ("out.writeInt (_data.length)");
+    endStmt (writer);
+    writer.write ("out.write (_data)");
+    endStmt (writer);
+    endBlock (writer); // writeExternal
+    writer.write ("public void readExternal (final java.io.ObjectInput in) throws java.io.IOException");
+    beginBlock (writer); // readExternal
+    writer.write ("_data = new byte[in.readInt ()]");
+    endStmt (writer);
+    writer.write ("in.readFully (_data)");
+    endStmt (writer);
+    endBlock (writer); // readExternal
+    writer.write ("private Object readResolve ()");
+    beginBlock (writer); // readResolve
+    final String fudgeMsg = fudgeContext + ".deserialize (_data).getMessage ()";
+    if (withContext) {
+      writer.write ("return fromFudgeMsg (new " + JavaClassCode.CLASS_FUDGEDESERIALIZER + " (" + fudgeContext + "), "
+          + fudgeMsg + ")");
+    } else {
+      writer.write ("return fromFudgeMsg (" + fudgeMsg + ")");
+    }
+    endStmt (writer);
+    endBlock (writer); // readResolve
+    endBlock (writer); // class
   }
   
   @Override
   public void generateCode(final Compiler.Context context, final TypeDefinition typedef, final File targetPath) {
     // No-op
   }
+  
+  @Override
+  public void generationComplete (final Compiler.Context context, final File targetPath) {
+    super.generationComplete (context, targetPath);
+    _classCode.generationComplete ();
+  }
 
   @Override
   public void writeClassImplementationAttribute(final Compiler.Context context, final FieldDefinition field,
@@ -150,36 +326,31 @@ public class JavaCodeGenerator extends InnerClassCodeGenerator {
     }
   }
 
-  private List<String> methodList (final Definition definition) {
-    String m = ProtoBinding.METHODS.get (definition);
-    if (m == null) return null;
-    final String[] ms = m.split (",\\s*");
-    return Arrays.asList (ms);
-  }
-  
   @Override
   protected boolean flagGenerateEquality (final Definition definition) {
-    final List<String> methods = methodList (definition);
+    final Set<String> methods = _classCode.getBindingOptions (definition).getMethods ();
     if (methods != null) {
       if (methods.contains ("equals")) return true;
       if (methods.contains ("no-equals")) return false;
     }
+    if (_classCode.getBinding (ProtoBinding.INTERN, definition) != null) return true;
     return super.flagGenerateEquality (definition);
   }
   
   @Override
   protected boolean flagGenerateHash (final Definition definition) {
-    final List<String> methods = methodList (definition);
+    final Set<String> methods = _classCode.getBindingOptions (definition).getMethods ();
     if (methods != null) {
       if (methods.contains ("hashCode")) return true;
       if (methods.contains ("no-hashCode")) return false;
     }
+    if (_classCode.getBinding (ProtoBinding.INTERN, definition) != null) return true;
     return super.flagGenerateHash (definition);
   }
   
   @Override
   protected boolean flagGenerateString (final Definition definition) {
-    final List<String> methods = methodList (definition);
+    final Set<String> methods = _classCode.getBindingOptions (definition).getMethods ();
     if (methods != null) {
       if (methods.contains ("toString")) return true;
       if (methods.contains ("no-toString")) return false;
@@ -192,6 +363,22 @@ public class JavaCodeGenerator extends InnerClassCodeGenerator {
     if (option.equals ("equals")) option = "equality";
     if (option.equals ("hashCode")) option = "hash";
     if (option.equals ("toString")) option = "string";
+    if (option.equals ("presizeDecode")) {
+      _classCode.setPresizeDecode (true);
+      return;
+    }
+    if (option.equals ("externalizable")) {
+      setExternalizable (true);
+      return;
+    }
+    if (option.equals ("presenceBits")) {
+      _classCode.setPresenceBits (true);
+      return;
+    }
+    if (option.equals ("classIds")) {
+      _classCode.setClassIds (true);
+      return;
+    }
     super.setOption (compiler, option);
   }
   
@@ -209,6 +396,10 @@ public class JavaCodeGenerator extends InnerClassCodeGenerator {
       }
       return;
     }
+    if (option.equals ("classIdRegistry")) {
+      compiler.setTypeIdRegistry (new TypeIdRegistry (new File (value)));
+      return;
+    }
     super.setOption (compiler, option, value);
   }
    
@@ -135,9 +135,15 @@ public class CodeGenerationTest extends DefaultSettings {
       args.add ("-Xequals");
       args.add ("-XhashCode");
       args.add ("-XtoString");
+      args.add ("-XpresizeDecode");
+      args.add ("-Xexternalizable");
+      args.add ("-XclassIds");
       args.add ("-XfileHeaderFile=" + CompilerTest.getTestPath ("unit") + File.separatorChar + "fileheader.java.include");
       args.add ("-XfileFooterFile=" + CompilerTest.getTestPath ("unit") + File.separatorChar + "filefooter.java.include");
     }
+    if (language.equals ("C#")) {
+      args.add ("-Xspan");
+    }
   }
   
 }
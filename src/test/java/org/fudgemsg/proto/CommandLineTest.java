@@ -40,6 +40,13 @@ public class CommandLineTest extends DefaultSettings {
     assertEquals (0, CommandLine.compile (new String[] { "-lJava", "-XtoFromWithContext=false" })); // valid option
     assertEquals (0, CommandLine.compile (new String[] { "-lJava", "-XtoFromWithContext=true" })); // valid option
     assertEquals (0, CommandLine.compile (new String[] { "-lJava", "-Xequals", "-XhashCode", "-XtoString" })); // valid code gen options for Java
+    assertEquals (0, CommandLine.compile (new String[] { "-lJava", "-XpresizeDecode" })); // valid layout option for Java
+    assertEquals (0, CommandLine.compile (new String[] { "-lJava", "-XpresenceBits" })); // valid layout option for Java
+    assertEquals (0, CommandLine.compile (new String[] { "-lJava", "-Xexternalizable" })); // valid serialization option for Java
+    assertEquals (0, CommandLine.compile (new String[] { "-lJava", "-XclassIds" })); // valid class header option for Java
+    assertEquals (0, CommandLine.compile (new String[] { "-lC", "-XclassIds" })); // valid class header option for C
+    assertEquals (0, CommandLine.compile (new String[] { "-lJava", "-XclassIds", "-XclassIdRegistry=" + CompilerTest.getTestPath ("output", "typeIds.txt") })); // valid type identifier registry option
+    assertEquals (0, CommandLine.compile (new String[] { "-d" + CompilerTest.getTestPath ("output"), "-lC#", "-Xspan" })); // valid codec option for C#
     assertEquals (1, CommandLine.compile (new String[] { "-lJava", "-Xfoo" })); // invalid code gen option for Java
     assertEquals (1, CommandLine.compile (new String[] { "-x" })); // bad parameter
     assertEquals (0, CommandLine.compile (new String[] { "-freadonly", "-foptional" })); // field defaults
@@ -49,6 +56,10 @@ public class CommandLineTest extends DefaultSettings {
     assertEquals (0, CommandLine.compile (new String[] { "-vv" })); // verbose 2
     assertEquals (0, CommandLine.compile (new String[] { "-vvv" })); // verbose 3
     assertEquals (1, CommandLine.compile (new String[] { "-vvvv" })); // invalid
+    assertEquals (0, CommandLine.compile (new String[] { "-mtab" })); // tab separated messages
+    assertEquals (1, CommandLine.compile (new String[] { "-mxml" })); // invalid message format
+    assertEquals (0, CommandLine.compile (new String[] { "-Mwarnings=10", "-Merrors=0" })); // message limits
+    assertEquals (1, CommandLine.compile (new String[] { "-Mwarnings=many" })); // invalid message limit
   }
   
   @Test
@@ -15,10 +15,18 @@
 
 package org.fudgemsg.proto;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashSet;
+import java.util.Properties;
 import java.util.Set;
 
 import org.junit.Test;
@@ -90,6 +98,45 @@ public class CompilerTest extends DefaultSettings {
     return errors;
   }
   
+  private static Properties compileWithTypeIdRegistry (final File registry) throws IOException {
+    final Compiler compiler = new Compiler ();
+    compiler.setCodeGenerator (new CodeGeneratorFactory ().createCodeGenerator ("Java"));
+    compiler.getCodeGenerator ().setOption (compiler, "classIds");
+    compiler.setTargetPath (new File (getTestPath ("output")));
+    compiler.setTypeIdRegistry (new TypeIdRegistry (registry));
+    compiler.addSource (new SourceFile ("polymorphism.proto", new File (getTestPath ("proto", "polymorphism.proto"))));
+    compiler.compileAll ();
+    assertEquals (0, compiler.getErrorCount ());
+    final Properties typeIds = new Properties ();
+    final InputStream in = new FileInputStream (registry);
+    try {
+      typeIds.load (in);
+    } finally {
+      in.close ();
+    }
+    return typeIds;
+  }
+  
+  @Test
+  public void typeIdRegistry () throws IOException {
+    final File registry = new File (getTestPath ("output"), "typeIds.txt");
+    registry.getParentFile ().mkdirs ();
+    // a message compiled elsewhere already has the identifier that M2 hashes to
+    final String m2 = Integer.toString ("org.fudgemsg.proto.tests.polymorphism.M2".hashCode ());
+    final FileWriter out = new FileWriter (registry);
+    try {
+      out.write ("other.Message=" + m2 + "\n");
+    } finally {
+      out.close ();
+    }
+    final Properties typeIds = compileWithTypeIdRegistry (registry);
+    assertEquals (m2, typeIds.getProperty ("other.Message"));
+    assertNotNull (typeIds.getProperty ("org.fudgemsg.proto.tests.polymorphism.M2"));
+    assertFalse (m2.equals (typeIds.getProperty ("org.fudgemsg.proto.tests.polymorphism.M2")));
+    // the identifiers issued are kept by the next compilation
+    assertEquals (typeIds, compileWithTypeIdRegistry (registry));
+  }
+  
   @Test
   public void errorE201002221611 () {
     compilerError ("E201002221611a").assertMessage ("duplicate definition of identifier 'foo.Foo'").assertNoMoreMessages ();
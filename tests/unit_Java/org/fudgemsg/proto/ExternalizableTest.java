@@ -0,0 +1,78 @@
+/* Copyright 2009 by OpenGamma Inc and other contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fudgemsg.proto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.fudgemsg.proto.tests.polymorphism.M1;
+import org.fudgemsg.proto.tests.polymorphism.M2;
+import org.fudgemsg.proto.tests.polymorphism.M3;
+import org.fudgemsg.proto.tests.polymorphism.M4;
+import org.junit.Test;
+
+/**
+ * Java serialization of messages through their Fudge encoding (the externalizable option).
+ */
+public class ExternalizableTest {
+  
+  private Object roundTrip (final Object object) throws Exception {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+    final ObjectOutputStream out = new ObjectOutputStream (bytes);
+    out.writeObject (object);
+    out.close ();
+    final ObjectInputStream in = new ObjectInputStream (new ByteArrayInputStream (bytes.toByteArray ()));
+    try {
+      return in.readObject ();
+    } finally {
+      in.close ();
+    }
+  }
+  
+  @Test
+  public void testMessage () throws Exception {
+    final M4 m4 = new M4 ();
+    m4.setFoo (new M2 ());
+    m4.getFoo ().setId ("this is M2");
+    ((M2)m4.getFoo ()).setFoo ("hello");
+    m4.setBar (new M3 ());
+    m4.getBar ().setId ("this is M3");
+    ((M3)m4.getBar ()).setBar ("world");
+    m4.setOther (new M1 ());
+    final M4 m_out = (M4)roundTrip (m4);
+    assertNotSame (m4, m_out);
+    assertEquals (m4, m_out);
+    assertEquals (M2.class, m_out.getFoo ().getClass ());
+    assertEquals (M3.class, m_out.getBar ().getClass ());
+    assertEquals (M1.class, m_out.getOther ().getClass ());
+  }
+  
+  @Test
+  public void testSubclass () throws Exception {
+    final M2 m2 = new M2 ();
+    m2.setId ("this is M2");
+    m2.setFoo ("hello");
+    final Object m_out = roundTrip (m2);
+    assertEquals (M2.class, m_out.getClass ());
+    assertEquals (m2, m_out);
+  }
+  
+}
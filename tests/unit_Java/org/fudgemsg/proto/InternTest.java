@@ -0,0 +1,75 @@
+/* Copyright 2009 by OpenGamma Inc and other contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fudgemsg.proto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.fudgemsg.FudgeContext;
+import org.fudgemsg.mapping.FudgeDeserializer;
+import org.fudgemsg.mapping.FudgeSerializer;
+import org.fudgemsg.proto.tests.binding.IdentificationDomain;
+import org.fudgemsg.proto.tests.binding.InternedCodes;
+import org.fudgemsg.proto.tests.binding.InternedIdentifier;
+import org.junit.Test;
+
+/**
+ * Sharing of decoded messages through the intern binding.
+ */
+public class InternTest {
+  
+  private final FudgeContext _fudgeContext = new FudgeContext ();
+  
+  @Test
+  public void interned () {
+    final InternedIdentifier id = new InternedIdentifier ("scheme", "value", new IdentificationDomain ("domain"));
+    final byte[] data = _fudgeContext.toByteArray (id.toFudgeMsg (new FudgeSerializer (_fudgeContext)));
+    final InternedIdentifier id1 = InternedIdentifier.fromFudgeMsg (new FudgeDeserializer (_fudgeContext), _fudgeContext.deserialize (data).getMessage ());
+    final InternedIdentifier id2 = InternedIdentifier.fromFudgeMsg (new FudgeDeserializer (_fudgeContext), _fudgeContext.deserialize (data).getMessage ());
+    assertEquals (id, id1);
+    assertSame (id1, id2);
+  }
+  
+  @Test
+  public void leastRecentlyUsedDropped () {
+    final IdentificationDomain domain = new IdentificationDomain ("domain");
+    final InternedIdentifier first = InternedIdentifier.intern (new InternedIdentifier ("lru", "first", domain));
+    final InternedIdentifier second = InternedIdentifier.intern (new InternedIdentifier ("lru", "second", domain));
+    // fill the rest of the cache, touching the first so that the second is the least recently used
+    assertSame (first, InternedIdentifier.intern (new InternedIdentifier ("lru", "first", domain)));
+    for (int i = 0; i < 16; i++) {
+      InternedIdentifier.intern (new InternedIdentifier ("lru", Integer.toString (i), domain));
+      assertSame (first, InternedIdentifier.intern (new InternedIdentifier ("lru", "first", domain)));
+    }
+    assertNotSame (second, InternedIdentifier.intern (new InternedIdentifier ("lru", "second", domain)));
+  }
+  
+  @Test
+  public void notInternedWithArray () {
+    final InternedCodes codes = new InternedCodes ("scheme", new int[] { 1, 2, 3 });
+    final byte[] data = _fudgeContext.toByteArray (codes.toFudgeMsg (new FudgeSerializer (_fudgeContext)));
+    final InternedCodes codes1 = InternedCodes.fromFudgeMsg (new FudgeDeserializer (_fudgeContext), _fudgeContext.deserialize (data).getMessage ());
+    final InternedCodes codes2 = InternedCodes.fromFudgeMsg (new FudgeDeserializer (_fudgeContext), _fudgeContext.deserialize (data).getMessage ());
+    assertEquals (codes1, codes2);
+    assertNotSame (codes1, codes2);
+    // changing one decoded instance through its accessor must not affect the other
+    codes1.getCodes ()[0] = 42;
+    assertArrayEquals (new int[] { 1, 2, 3 }, codes2.getCodes ());
+  }
+  
+}
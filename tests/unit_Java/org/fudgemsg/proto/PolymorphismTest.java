@@ -16,15 +16,20 @@
 package org.fudgemsg.proto;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import org.fudgemsg.FudgeContext;
 import org.fudgemsg.FudgeMsg;
+import org.fudgemsg.MutableFudgeMsg;
 import org.fudgemsg.mapping.FudgeDeserializer;
 import org.fudgemsg.mapping.FudgeSerializer;
 import org.fudgemsg.proto.tests.polymorphism.M1;
 import org.fudgemsg.proto.tests.polymorphism.M2;
 import org.fudgemsg.proto.tests.polymorphism.M3;
 import org.fudgemsg.proto.tests.polymorphism.M4;
+import org.fudgemsg.proto.tests.polymorphism.M5;
+import org.fudgemsg.proto.tests.polymorphism.M6;
+import org.fudgemsg.proto.tests.polymorphism.M7;
 import org.junit.Test;
 
 public class PolymorphismTest {
@@ -51,4 +56,79 @@ public class PolymorphismTest {
     assertEquals (M1.class, m_out.getOther ().getClass ());
   }
   
-}
\ No newline at end of file
+  @Test
+  public void testClassIds () {
+    M2 m2 = new M2 ();
+    m2.setId ("this is M2");
+    m2.setFoo ("hello");
+    M4 m4 = new M4 ();
+    m4.setFoo (m2);
+    FudgeMsg c = m4.toFudgeMsg(new FudgeSerializer(FudgeContext.GLOBAL_DEFAULT));
+    // the header for M2 is written as its type identifier, stopping at the M1 the receiver expects; the identifiers
+    // are kept off ordinal 0, where an integer is a reference to an earlier class header
+    FudgeMsg foo = (FudgeMsg)c.getByName (M4.FOO_KEY).getValue ();
+    assertEquals (0, foo.getAllByOrdinal (0).size ());
+    assertEquals (1, foo.getAllByOrdinal (-1).size ());
+    assertTrue (foo.getByOrdinal (-1).getValue () instanceof Number);
+    M4 m_out = M4.fromFudgeMsg(new FudgeDeserializer(FudgeContext.GLOBAL_DEFAULT), c);
+    assertEquals (M2.class, m_out.getFoo ().getClass ());
+    assertEquals (m2, m_out.getFoo ());
+    M1 m1 = M1.fromFudgeMsg(new FudgeDeserializer(FudgeContext.GLOBAL_DEFAULT), foo);
+    assertEquals (M2.class, m1.getClass ());
+  }
+  
+  @Test
+  public void testTrailingClassHeaders () {
+    // a serializer may append the class names after the fields instead of writing them first
+    MutableFudgeMsg c = FudgeContext.GLOBAL_DEFAULT.newMessage ();
+    c.add (M1.ID_KEY, null, "this is M2");
+    c.add (M2.FOO_KEY, null, "hello");
+    c.add (null, 0, M2.class.getName ());
+    c.add (null, 0, M1.class.getName ());
+    M1 m_out = M1.fromFudgeMsg(new FudgeDeserializer(FudgeContext.GLOBAL_DEFAULT), c);
+    assertEquals (M2.class, m_out.getClass ());
+    assertEquals ("hello", ((M2)m_out).getFoo ());
+    c = FudgeContext.GLOBAL_DEFAULT.newMessage ();
+    c.add (M1.ID_KEY, null, "this is M1");
+    c.add (null, 0, M1.class.getName ());
+    m_out = M1.fromFudgeMsg(new FudgeDeserializer(FudgeContext.GLOBAL_DEFAULT), c);
+    assertEquals (M1.class, m_out.getClass ());
+  }
+  
+  @Test
+  public void testMixedClassHeaders () {
+    final FudgeSerializer serializer = new FudgeSerializer(FudgeContext.GLOBAL_DEFAULT);
+    final FudgeDeserializer deserializer = new FudgeDeserializer(FudgeContext.GLOBAL_DEFAULT);
+    // M7 inherits class names from M5
+    M7 m7 = new M7 ();
+    m7.setId ("this is M7");
+    m7.setBar ("world");
+    MutableFudgeMsg c = serializer.newMessage ();
+    m7.addFudgeClassHeader (c, M5.class);
+    m7.toFudgeMsg (serializer, c);
+    assertEquals (M7.class.getName (), c.getByOrdinal (0).getValue ());
+    assertEquals (M7.class, M5.fromFudgeMsg(deserializer, c).getClass ());
+    // a receiver without the classIds option skips the identifier of M6, and can only decode the base type
+    M6 m6 = new M6 ();
+    m6.setId ("this is M6");
+    m6.setFoo ("hello");
+    c = serializer.newMessage ();
+    m6.addFudgeClassHeader (c, M5.class);
+    m6.toFudgeMsg (serializer, c);
+    assertTrue (c.getByOrdinal (-1).getValue () instanceof Number);
+    M5 m_out = M5.fromFudgeMsg(deserializer, c);
+    assertEquals (M5.class, m_out.getClass ());
+    assertEquals ("this is M6", m_out.getId ());
+    assertEquals (M6.class, M6.fromFudgeMsg(deserializer, c).getClass ());
+    // a receiver with the option skips an identifier it doesn't know, and a reference to an earlier class header
+    c = serializer.newMessage ();
+    c.add (null, -1, 12345);
+    c.add (M1.ID_KEY, null, "this is M1");
+    assertEquals (M1.class, M1.fromFudgeMsg(deserializer, c).getClass ());
+    c = serializer.newMessage ();
+    c.add (null, 0, -1);
+    c.add (M1.ID_KEY, null, "this is M1");
+    assertEquals (M1.class, M1.fromFudgeMsg(deserializer, c).getClass ());
+  }
+  
+}
@@ -0,0 +1,104 @@
+/* Copyright 2009 by OpenGamma Inc and other contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fudgemsg.proto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.fudgemsg.FudgeContext;
+import org.fudgemsg.FudgeMsg;
+import org.fudgemsg.mapping.FudgeDeserializer;
+import org.fudgemsg.mapping.FudgeSerializer;
+import org.fudgemsg.proto.tests.types.PresenceTypes_Optional;
+import org.junit.Test;
+
+/**
+ * Optional primitive fields held as primitives with presence bits (the presenceBits binding).
+ */
+public class PresenceBitsTest {
+  
+  private final FudgeContext _fudgeContext = new FudgeContext ();
+  
+  private PresenceTypes_Optional roundTrip (final PresenceTypes_Optional object) {
+    final FudgeMsg msg = object.toFudgeMsg (new FudgeSerializer (_fudgeContext));
+    System.out.println (msg);
+    final PresenceTypes_Optional object2 = PresenceTypes_Optional.fromFudgeMsg (new FudgeDeserializer (_fudgeContext), msg);
+    assertEquals (object, object2);
+    assertEquals (object.hashCode (), object2.hashCode ());
+    return object2;
+  }
+  
+  @Test
+  public void absent () {
+    final PresenceTypes_Optional object = new PresenceTypes_Optional (null, null, null, null, null, null, null);
+    assertEquals (0, object.toFudgeMsg (new FudgeSerializer (_fudgeContext)).getNumFields ());
+    final PresenceTypes_Optional object2 = roundTrip (object);
+    assertFalse (object2.has_Boolean ());
+    assertFalse (object2.has_Byte ());
+    assertFalse (object2.has_Double ());
+    assertFalse (object2.has_Float ());
+    assertFalse (object2.has_Int ());
+    assertFalse (object2.has_Long ());
+    assertFalse (object2.has_Short ());
+  }
+  
+  @Test
+  public void zero () {
+    final PresenceTypes_Optional object = new PresenceTypes_Optional (false, (byte)0, 0.0, 0.0f, 0, 0L, (short)0);
+    assertEquals (7, object.toFudgeMsg (new FudgeSerializer (_fudgeContext)).getNumFields ());
+    final PresenceTypes_Optional object2 = roundTrip (object);
+    assertTrue (object2.has_Boolean ());
+    assertTrue (object2.has_Byte ());
+    assertTrue (object2.has_Double ());
+    assertTrue (object2.has_Float ());
+    assertTrue (object2.has_Int ());
+    assertTrue (object2.has_Long ());
+    assertTrue (object2.has_Short ());
+    // a zero that was sent is not the same as one that wasn't
+    assertFalse (object2.equals (new PresenceTypes_Optional (null, null, null, null, null, null, null)));
+  }
+  
+  @Test
+  public void present () {
+    final PresenceTypes_Optional object = new PresenceTypes_Optional (true, (byte)1, 2.5, 3.5f, 4, 5L, (short)6);
+    final PresenceTypes_Optional object2 = roundTrip (object);
+    assertTrue (object2.get_Boolean ());
+    assertEquals (1, object2.get_Byte ());
+    assertEquals (2.5, object2.get_Double (), 0);
+    assertEquals (3.5f, object2.get_Float (), 0);
+    assertEquals (4, object2.get_Int ());
+    assertEquals (5L, object2.get_Long ());
+    assertEquals (6, object2.get_Short ());
+    final PresenceTypes_Optional noInt = new PresenceTypes_Optional (true, (byte)1, 2.5, 3.5f, null, 5L, (short)6);
+    assertFalse (noInt.has_Int ());
+    assertEquals (0, noInt.get_Int ());
+    assertNull (noInt.toFudgeMsg (new FudgeSerializer (_fudgeContext)).getByName (PresenceTypes_Optional._INT_KEY));
+    assertFalse (object.equals (noInt));
+  }
+  
+  @Test
+  public void notANumber () {
+    final PresenceTypes_Optional object = new PresenceTypes_Optional (null, null, Double.NaN, Float.NaN, null, null, null);
+    assertEquals (object, object);
+    roundTrip (object);
+    // as with Double.equals, 0.0 and -0.0 are different values
+    assertFalse (new PresenceTypes_Optional (null, null, 0.0, null, null, null, null).equals (
+        new PresenceTypes_Optional (null, null, -0.0, null, null, null, null)));
+  }
+  
+}
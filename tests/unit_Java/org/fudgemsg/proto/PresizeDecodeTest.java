@@ -0,0 +1,100 @@
+/* Copyright 2009 by OpenGamma Inc and other contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fudgemsg.proto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.fudgemsg.FudgeContext;
+import org.fudgemsg.MutableFudgeMsg;
+import org.fudgemsg.mapping.FudgeDeserializer;
+import org.fudgemsg.proto.tests.types.ATypes_Optional;
+import org.fudgemsg.proto.tests.types.FixedArrays_Optional;
+import org.fudgemsg.types.IndicatorType;
+import org.junit.Test;
+
+/**
+ * Decoding of sub-message arrays into arrays allocated from the field count (the presizeDecode option).
+ */
+public class PresizeDecodeTest {
+  
+  private final FudgeContext _fudgeContext = new FudgeContext ();
+  
+  private MutableFudgeMsg intArrays (final int count) {
+    final MutableFudgeMsg array = _fudgeContext.newMessage ();
+    for (int i = 0; i < count; i++) {
+      array.add (null, null, new int[] { i });
+    }
+    return array;
+  }
+  
+  @Test
+  public void fixedLength () {
+    final MutableFudgeMsg msg = _fudgeContext.newMessage ();
+    msg.add (FixedArrays_Optional.FIXED_ARRAY3_KEY, null, intArrays (42));
+    final FixedArrays_Optional object = FixedArrays_Optional.fromFudgeMsg (new FudgeDeserializer (_fudgeContext), msg);
+    assertEquals (42, object.getFixedArray3 ().length);
+    assertArrayEquals (new int[] { 41 }, object.getFixedArray3 ()[41]);
+  }
+  
+  @Test(expected = IllegalArgumentException.class)
+  public void fixedLengthMismatch () {
+    final MutableFudgeMsg msg = _fudgeContext.newMessage ();
+    msg.add (FixedArrays_Optional.FIXED_ARRAY3_KEY, null, intArrays (41));
+    FixedArrays_Optional.fromFudgeMsg (new FudgeDeserializer (_fudgeContext), msg);
+  }
+  
+  @Test
+  public void indicatorElements () {
+    final MutableFudgeMsg array = _fudgeContext.newMessage ();
+    for (int i = 0; i < 3; i++) {
+      array.add (null, null, IndicatorType.INSTANCE);
+    }
+    final MutableFudgeMsg msg = _fudgeContext.newMessage ();
+    msg.add (ATypes_Optional._INDICATOR_KEY, null, array);
+    final ATypes_Optional object = ATypes_Optional.fromFudgeMsg (new FudgeDeserializer (_fudgeContext), msg);
+    assertEquals (3, object.get_Indicator ().length);
+    for (boolean element : object.get_Indicator ()) {
+      assertTrue (element);
+    }
+  }
+  
+  @Test
+  public void absentObjectElement () {
+    final MutableFudgeMsg array = _fudgeContext.newMessage ();
+    array.add (null, null, "foo");
+    array.add (null, null, IndicatorType.INSTANCE);
+    final MutableFudgeMsg msg = _fudgeContext.newMessage ();
+    msg.add (ATypes_Optional._STRING_KEY, null, array);
+    final ATypes_Optional object = ATypes_Optional.fromFudgeMsg (new FudgeDeserializer (_fudgeContext), msg);
+    assertEquals (2, object.get_String ().length);
+    assertEquals ("foo", object.get_String ()[0]);
+    assertNull (object.get_String ()[1]);
+  }
+  
+  @Test(expected = IllegalArgumentException.class)
+  public void absentPrimitiveElement () {
+    final MutableFudgeMsg array = _fudgeContext.newMessage ();
+    array.add (null, null, Boolean.TRUE);
+    array.add (null, null, IndicatorType.INSTANCE);
+    final MutableFudgeMsg msg = _fudgeContext.newMessage ();
+    msg.add (ATypes_Optional._BOOLEAN_KEY, null, array);
+    ATypes_Optional.fromFudgeMsg (new FudgeDeserializer (_fudgeContext), msg);
+  }
+  
+}
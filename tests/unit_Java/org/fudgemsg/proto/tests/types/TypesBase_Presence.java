@@ -0,0 +1,48 @@
+/* Copyright 2009 by OpenGamma Inc and other contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fudgemsg.proto.tests.types;
+
+public interface TypesBase_Presence {
+
+  public boolean get_Boolean();
+
+  public boolean has_Boolean();
+
+  public byte get_Byte();
+
+  public boolean has_Byte();
+
+  public double get_Double();
+
+  public boolean has_Double();
+
+  public float get_Float();
+
+  public boolean has_Float();
+
+  public int get_Int();
+
+  public boolean has_Int();
+
+  public long get_Long();
+
+  public boolean has_Long();
+
+  public short get_Short();
+
+  public boolean has_Short();
+
+}